@@ -0,0 +1,82 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import javax.servlet.Filter;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+
+/**
+ * A {@link ServletMetricsListener} with empty implementations of every event,
+ * for listeners that are only interested in a few of them.
+ */
+public abstract class AbstractServletMetricsListener implements ServletMetricsListener
+{
+    @Override
+    public void onServletContextStarting(ServletContext servletContext)
+    {
+    }
+
+    @Override
+    public void onServletContextReady(ServletContext servletContext)
+    {
+    }
+
+    @Override
+    public void onServletStarting(ServletContext servletContext, Servlet servlet)
+    {
+    }
+
+    @Override
+    public void onServletReady(ServletContext servletContext, Servlet servlet, Duration duration)
+    {
+    }
+
+    @Override
+    public void onFilterStarting(ServletContext servletContext, Filter filter)
+    {
+    }
+
+    @Override
+    public void onFilterReady(ServletContext servletContext, Filter filter, Duration duration)
+    {
+    }
+
+    @Override
+    public void onFilterEnter(ServletContext servletContext, Filter filter, ServletRequest request)
+    {
+    }
+
+    @Override
+    public void onFilterExit(ServletContext servletContext, Filter filter, ServletRequest request, Duration duration, Throwable cause)
+    {
+    }
+
+    @Override
+    public void onServletEnter(ServletContext servletContext, Servlet servlet, ServletRequest request)
+    {
+    }
+
+    @Override
+    public void onServletExit(ServletContext servletContext, Servlet servlet, ServletRequest request, Duration duration, Throwable cause)
+    {
+    }
+}
@@ -0,0 +1,328 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Appends binary records to memory-mapped segment files, from a background thread.
+ * <p>
+ * Records are encoded by the request threads into buffers taken from a fixed pool preallocated at
+ * startup, and queued to the writer thread, which copies them into the mapped segment and returns
+ * the buffers to the pool.
+ * When the pool is exhausted, eg: because the disk cannot keep up, records are dropped and counted
+ * rather than blocking the request threads.
+ * </p>
+ * <p>
+ * Segments are named {@code <prefix>-<sequence>.bin} and are rolled when full; a closed segment
+ * is truncated to the length of its records.
+ * Every segment starts with a header and the definitions of all the names known so far,
+ * so that it can be decoded on its own by {@link BinaryRequestLogDecoder}.
+ * </p>
+ */
+public class BinaryLogWriter extends AbstractLifeCycle
+{
+    private static final Logger LOG = Log.getLogger(BinaryLogWriter.class);
+    static final int MAGIC = 0x4A4D424C;
+    static final byte VERSION = 1;
+    static final byte END = 0;
+    static final byte DEFINITION = 1;
+    static final byte RECORD = 2;
+    // A record is a type byte, an unsigned short length and at most 0xFFFF bytes of payload.
+    static final int MAX_BUFFER_SIZE = 1 + 2 + 0xFFFF;
+
+    private final Queue<Definition> newDefinitions = new ConcurrentLinkedQueue<>();
+    private final List<Definition> definitions = new ArrayList<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final Path directory;
+    private final String prefix;
+    private final int segmentSize;
+    private final int buffers;
+    private final int bufferSize;
+    private BlockingQueue<ByteBuffer> free;
+    private BlockingQueue<ByteBuffer> pending;
+    private Thread thread;
+    private volatile boolean running;
+    private int sequence;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+
+    public BinaryLogWriter(Path directory, String prefix)
+    {
+        this(directory, prefix, 64 * 1024 * 1024, 256, 2048);
+    }
+
+    /**
+     * @param directory the directory of the segment files
+     * @param prefix the prefix of the segment file names
+     * @param segmentSize the max size of a segment file
+     * @param buffers the number of preallocated buffers, bounding the records queued to the writer thread
+     * @param bufferSize the max size of a record, at most 65538 as the length of a record is an unsigned short
+     */
+    public BinaryLogWriter(Path directory, String prefix, int segmentSize, int buffers, int bufferSize)
+    {
+        if (buffers <= 0)
+        {
+            throw new IllegalArgumentException("Invalid buffers: " + buffers);
+        }
+        if (bufferSize <= 0 || bufferSize > MAX_BUFFER_SIZE)
+        {
+            throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+        }
+        if (segmentSize < 2 * bufferSize)
+        {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+        this.buffers = buffers;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    protected void doStart() throws Exception
+    {
+        Files.createDirectories(directory);
+        sequence = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "-*.bin"))
+        {
+            for (Path path : stream)
+            {
+                String name = path.getFileName().toString();
+                try
+                {
+                    sequence = Math.max(sequence, Integer.parseInt(name.substring(prefix.length() + 1, name.length() - 4)));
+                }
+                catch (NumberFormatException x)
+                {
+                    LOG.ignore(x);
+                }
+            }
+        }
+
+        free = new ArrayBlockingQueue<>(buffers);
+        pending = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++)
+        {
+            free.offer(ByteBuffer.allocate(bufferSize));
+        }
+        openSegment();
+
+        running = true;
+        thread = new Thread(this::run, "binary-log-" + prefix);
+        thread.setDaemon(true);
+        thread.start();
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception
+    {
+        running = false;
+        thread.join();
+        thread = null;
+        closeSegment();
+        super.doStop();
+    }
+
+    /**
+     * @return a cleared buffer to encode a record into, or null if none is available and the record must be dropped
+     */
+    ByteBuffer acquire()
+    {
+        ByteBuffer buffer = running ? free.poll() : null;
+        if (buffer == null)
+        {
+            dropped.incrementAndGet();
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer whose record could not be encoded, counting the record as dropped.
+     *
+     * @param buffer a buffer obtained from {@link #acquire()}
+     */
+    void release(ByteBuffer buffer)
+    {
+        dropped.incrementAndGet();
+        buffer.clear();
+        free.offer(buffer);
+    }
+
+    /**
+     * @param buffer a buffer obtained from {@link #acquire()}, flipped to the encoded record
+     */
+    void append(ByteBuffer buffer)
+    {
+        pending.offer(buffer);
+    }
+
+    /**
+     * Defines a name referenced by records, written before any record queued after this call.
+     *
+     * @param id the id of the name
+     * @param name the name
+     */
+    void define(int id, String name)
+    {
+        newDefinitions.offer(new Definition(id, name.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return the number of records dropped because no buffer was available or the record could not be encoded
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of records written
+     */
+    public long getWritten()
+    {
+        return written.get();
+    }
+
+    private void run()
+    {
+        try
+        {
+            while (running || !pending.isEmpty())
+            {
+                ByteBuffer buffer = pending.poll(100, TimeUnit.MILLISECONDS);
+                // Definitions are queued before the records referencing them.
+                Definition definition = newDefinitions.poll();
+                while (definition != null)
+                {
+                    definitions.add(definition);
+                    write(definition);
+                    definition = newDefinitions.poll();
+                }
+                if (buffer != null)
+                {
+                    if (segment.remaining() < buffer.remaining())
+                    {
+                        closeSegment();
+                        openSegment();
+                    }
+                    segment.put(buffer);
+                    written.incrementAndGet();
+                    buffer.clear();
+                    free.offer(buffer);
+                }
+            }
+        }
+        catch (Throwable x)
+        {
+            running = false;
+            LOG.warn("Binary log writer failed, records are dropped", x);
+        }
+    }
+
+    private void write(Definition definition) throws IOException
+    {
+        int length = 1 + 2 * VarLong.MAX_LENGTH + definition.name.length;
+        if (segment.remaining() < length)
+        {
+            closeSegment();
+            openSegment();
+        }
+        segment.put(DEFINITION);
+        VarLong.put(segment, definition.id);
+        VarLong.put(segment, definition.name.length);
+        segment.put(definition.name);
+    }
+
+    private void openSegment() throws IOException
+    {
+        Path path = directory.resolve(String.format("%s-%06d.bin", prefix, ++sequence));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segment.putInt(MAGIC);
+        segment.put(VERSION);
+        for (Definition definition : definitions)
+        {
+            write(definition);
+        }
+    }
+
+    private void closeSegment() throws IOException
+    {
+        if (channel == null)
+        {
+            return;
+        }
+        segment.force();
+        int length = segment.position();
+        segment = null;
+        try
+        {
+            channel.truncate(length);
+        }
+        catch (IOException x)
+        {
+            // Some platforms cannot truncate a mapped file, the remaining zeros read as the end of the records.
+            LOG.ignore(x);
+        }
+        channel.close();
+        channel = null;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x{%s,%s/%s-*.bin,written=%d,dropped=%d}", getClass().getSimpleName(), hashCode(), getState(), directory, prefix, getWritten(), getDropped());
+    }
+
+    private static class Definition
+    {
+        private final int id;
+        private final byte[] name;
+
+        private Definition(int id, byte[] name)
+        {
+            this.id = id;
+            this.name = name;
+        }
+    }
+}
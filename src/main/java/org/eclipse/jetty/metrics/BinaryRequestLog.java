@@ -0,0 +1,312 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.Filter;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+
+import org.eclipse.jetty.server.HttpChannel;
+import org.eclipse.jetty.server.Request;
+
+/**
+ * A request log writing one compact binary record per request when it completes,
+ * with the metrics of the request, through a {@link BinaryLogWriter}.
+ * <p>
+ * A record holds the request id, the timestamp, the status, the bytes received and sent,
+ * the timings of the request phases and the duration of every Filter and Servlet call.
+ * Components are written as ids, defined once per segment with their context path and class name.
+ * Numbers are written as variable length integers, durations in microseconds.
+ * Records can be read with {@link BinaryRequestLogDecoder}.
+ * </p>
+ * <p>
+ * The phases are notified by the {@link MetricsHandler}, which must be added to the connectors
+ * with {@link MetricsHandler#addToAllConnectors(org.eclipse.jetty.server.Server)}.
+ * The {@link BinaryLogWriter} must be started, eg: by adding it as a bean of the server.
+ * </p>
+ */
+public class BinaryRequestLog extends AbstractServletMetricsListener implements HttpChannel.Listener
+{
+    public static final String ATTR_RECORD = BinaryRequestLog.class.getName() + ".record";
+    static final int MAX_CALLS = 64;
+    static final int FLAG_FILTER = 1;
+    static final int FLAG_FAILED = 2;
+    static final int FLAG_TRUNCATED = 4;
+    // The longest encoding of the fields before the calls, and of one call.
+    private static final int HEADER_MAX_LENGTH = 1 + 2 + 16 + 8 + 7 * VarLong.MAX_LENGTH + 1;
+    private static final int CALL_MAX_LENGTH = 2 * VarLong.MAX_LENGTH + 1;
+
+    private final ConcurrentMap<String, Integer> nameIds = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ServletContext, ConcurrentMap<Object, Integer>> componentIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final BinaryLogWriter writer;
+
+    public BinaryRequestLog(BinaryLogWriter writer)
+    {
+        this.writer = writer;
+    }
+
+    public BinaryLogWriter getWriter()
+    {
+        return writer;
+    }
+
+    private int getId(ServletContext servletContext, Object component)
+    {
+        ConcurrentMap<Object, Integer> ids = componentIds.get(servletContext);
+        if (ids == null)
+        {
+            ids = componentIds.computeIfAbsent(servletContext, c -> new ConcurrentHashMap<>());
+        }
+        Integer id = ids.get(component);
+        if (id == null)
+        {
+            id = ids.computeIfAbsent(component, c -> getNameId(servletContext, c));
+        }
+        return id;
+    }
+
+    /**
+     * Ids are defined per name, so that the components of a redeployed context reuse the ids of their predecessors.
+     */
+    private int getNameId(ServletContext servletContext, Object component)
+    {
+        String contextPath = servletContext.getContextPath();
+        String name = (contextPath.isEmpty() ? "/" : contextPath) + " " + component.getClass().getName();
+        return nameIds.computeIfAbsent(name, n ->
+        {
+            int newId = nextId.getAndIncrement();
+            writer.define(newId, n);
+            return newId;
+        });
+    }
+
+    private static RequestRecord getRecord(ServletRequest request)
+    {
+        Object record = request.getAttribute(ATTR_RECORD);
+        return record instanceof RequestRecord ? (RequestRecord)record : null;
+    }
+
+    @Override
+    public int getInterests()
+    {
+        return INTEREST_EXITS;
+    }
+
+    @Override
+    public void onServletContextStopped(ServletContext servletContext)
+    {
+        componentIds.remove(servletContext);
+    }
+
+    @Override
+    public void onRequestBegin(Request request)
+    {
+        request.setAttribute(ATTR_RECORD, new RequestRecord(System.nanoTime()));
+    }
+
+    @Override
+    public void onBeforeDispatch(Request request)
+    {
+        RequestRecord record = getRecord(request);
+        if (record != null && record.beforeDispatch == 0)
+        {
+            record.beforeDispatch = System.nanoTime();
+        }
+    }
+
+    @Override
+    public void onAfterDispatch(Request request)
+    {
+        RequestRecord record = getRecord(request);
+        if (record != null)
+        {
+            record.afterDispatch = System.nanoTime();
+        }
+    }
+
+    @Override
+    public void onResponseBegin(Request request)
+    {
+        RequestRecord record = getRecord(request);
+        if (record != null && record.responseBegin == 0)
+        {
+            record.responseBegin = System.nanoTime();
+        }
+    }
+
+    @Override
+    public void onFilterExit(ServletContext servletContext, Filter filter, ServletRequest request, Duration duration, Throwable cause)
+    {
+        RequestRecord record = getRecord(request);
+        if (record != null)
+        {
+            record.add(getId(servletContext, filter), FLAG_FILTER | (cause == null ? 0 : FLAG_FAILED), duration.toNanos());
+        }
+    }
+
+    @Override
+    public void onServletExit(ServletContext servletContext, Servlet servlet, ServletRequest request, Duration duration, Throwable cause)
+    {
+        RequestRecord record = getRecord(request);
+        if (record != null)
+        {
+            record.add(getId(servletContext, servlet), cause == null ? 0 : FLAG_FAILED, duration.toNanos());
+        }
+    }
+
+    @Override
+    public void onComplete(Request request)
+    {
+        RequestRecord record = getRecord(request);
+        if (record == null)
+        {
+            return;
+        }
+        long complete = System.nanoTime();
+        ByteBuffer buffer = writer.acquire();
+        if (buffer == null)
+        {
+            return;
+        }
+
+        if (buffer.capacity() < HEADER_MAX_LENGTH)
+        {
+            writer.release(buffer);
+            return;
+        }
+        boolean appended = false;
+        try
+        {
+            buffer.put(BinaryLogWriter.RECORD);
+            // The length of the record, written when known.
+            buffer.putShort((short)0);
+            UUID uuid = toUUID(request.getAttribute(MetricsHandler.ATTR_REQUEST_ID));
+            buffer.putLong(uuid == null ? 0 : uuid.getMostSignificantBits());
+            buffer.putLong(uuid == null ? 0 : uuid.getLeastSignificantBits());
+            buffer.putLong(request.getTimeStamp());
+            VarLong.put(buffer, request.getResponse().getStatus());
+            VarLong.put(buffer, request.getHttpInput().getContentReceived());
+            VarLong.put(buffer, request.getHttpChannel().getBytesWritten());
+            // Phases, as microseconds since the beginning of the request, plus one so that 0 is a missing phase.
+            VarLong.put(buffer, offset(record.begin, record.beforeDispatch));
+            VarLong.put(buffer, offset(record.begin, record.afterDispatch));
+            VarLong.put(buffer, offset(record.begin, record.responseBegin));
+            VarLong.put(buffer, offset(record.begin, complete));
+
+            // Only the calls that surely fit in the buffer are written, the record is then flagged as truncated.
+            int calls = Math.min(Math.min(record.calls, MAX_CALLS), (buffer.remaining() - 1) / CALL_MAX_LENGTH);
+            buffer.put((byte)calls);
+            for (int i = 0; i < calls; i++)
+            {
+                VarLong.put(buffer, record.ids[i]);
+                buffer.put((byte)(record.flags[i] | (i == calls - 1 && record.calls > calls ? FLAG_TRUNCATED : 0)));
+                VarLong.put(buffer, record.durations[i] / 1000);
+            }
+
+            buffer.putShort(1, (short)(buffer.position() - 3));
+            buffer.flip();
+            writer.append(buffer);
+            appended = true;
+        }
+        finally
+        {
+            if (!appended)
+            {
+                writer.release(buffer);
+            }
+        }
+    }
+
+    private static long offset(long begin, long time)
+    {
+        return time == 0 ? 0 : Math.max(0, (time - begin) / 1000) + 1;
+    }
+
+    private static UUID toUUID(Object requestId)
+    {
+        if (requestId instanceof String)
+        {
+            try
+            {
+                return UUID.fromString((String)requestId);
+            }
+            catch (IllegalArgumentException x)
+            {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x{%s}", getClass().getSimpleName(), hashCode(), writer);
+    }
+
+    /**
+     * The metrics of a request accumulated until it completes, in the order the calls exited.
+     */
+    private static class RequestRecord
+    {
+        private final long begin;
+        private long beforeDispatch;
+        private long afterDispatch;
+        private long responseBegin;
+        private int calls;
+        private int[] ids = new int[8];
+        private byte[] flags = new byte[8];
+        private long[] durations = new long[8];
+
+        private RequestRecord(long begin)
+        {
+            this.begin = begin;
+        }
+
+        private void add(int id, int flag, long duration)
+        {
+            if (calls >= MAX_CALLS)
+            {
+                // Only the number of calls beyond the max is kept, to flag the record as truncated.
+                calls++;
+                return;
+            }
+            if (calls == ids.length)
+            {
+                int length = Math.min(calls * 2, MAX_CALLS);
+                ids = Arrays.copyOf(ids, length);
+                flags = Arrays.copyOf(flags, length);
+                durations = Arrays.copyOf(durations, length);
+            }
+            ids[calls] = id;
+            flags[calls] = (byte)flag;
+            durations[calls] = duration;
+            calls++;
+        }
+    }
+}
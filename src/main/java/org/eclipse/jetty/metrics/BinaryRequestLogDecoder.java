@@ -0,0 +1,164 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Decodes the segment files of a {@link BinaryRequestLog} to text, one line per request.
+ * <p>
+ * Usage: {@code java -cp jetty-metrics.jar org.eclipse.jetty.metrics.BinaryRequestLogDecoder <segment-file>...}
+ * </p>
+ * <p>
+ * Phases are printed as the offset from the beginning of the request, calls as
+ * {@code F} (filter) or {@code S} (servlet), the component and the duration, with a {@code !}
+ * suffix if the call failed, in the order the calls exited.
+ * </p>
+ */
+public class BinaryRequestLogDecoder
+{
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length == 0)
+        {
+            System.err.println("Usage: java " + BinaryRequestLogDecoder.class.getName() + " <segment-file>...");
+            System.exit(1);
+        }
+        for (String arg : args)
+        {
+            decode(Paths.get(arg), System.out);
+        }
+    }
+
+    /**
+     * @param segment the segment file
+     * @param out the stream to print the requests to
+     * @throws IOException if the segment cannot be read or is not a segment
+     */
+    public static void decode(Path segment, PrintStream out) throws IOException
+    {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ))
+        {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.remaining() < 5 || buffer.getInt() != BinaryLogWriter.MAGIC)
+        {
+            throw new IOException("Not a binary request log segment: " + segment);
+        }
+        byte version = buffer.get();
+        if (version != BinaryLogWriter.VERSION)
+        {
+            throw new IOException("Unsupported version " + version + ": " + segment);
+        }
+
+        Map<Integer, String> names = new HashMap<>();
+        StringBuilder line = new StringBuilder();
+        while (buffer.hasRemaining())
+        {
+            byte type = buffer.get();
+            if (type == BinaryLogWriter.END)
+            {
+                break;
+            }
+            if (type == BinaryLogWriter.DEFINITION)
+            {
+                int id = (int)VarLong.get(buffer);
+                byte[] name = new byte[(int)VarLong.get(buffer)];
+                buffer.get(name);
+                names.put(id, new String(name, StandardCharsets.UTF_8));
+            }
+            else if (type == BinaryLogWriter.RECORD)
+            {
+                int length = buffer.getShort() & 0xFFFF;
+                int end = buffer.position() + length;
+                line.setLength(0);
+                decodeRecord(buffer, names, line);
+                out.println(line);
+                buffer.position(end);
+            }
+            else
+            {
+                throw new IOException("Unknown record type " + type + " at " + (buffer.position() - 1) + ": " + segment);
+            }
+        }
+    }
+
+    private static void decodeRecord(ByteBuffer buffer, Map<Integer, String> names, StringBuilder line)
+    {
+        UUID uuid = new UUID(buffer.getLong(), buffer.getLong());
+        line.append(uuid).append(' ').append(Instant.ofEpochMilli(buffer.getLong()));
+        line.append(" status=").append(VarLong.get(buffer));
+        line.append(" in=").append(VarLong.get(buffer));
+        line.append(" out=").append(VarLong.get(buffer));
+        appendPhase(line, "dispatch", VarLong.get(buffer));
+        appendPhase(line, "handled", VarLong.get(buffer));
+        appendPhase(line, "response", VarLong.get(buffer));
+        appendPhase(line, "complete", VarLong.get(buffer));
+
+        int calls = buffer.get() & 0xFF;
+        line.append(" calls=[");
+        for (int i = 0; i < calls; i++)
+        {
+            int id = (int)VarLong.get(buffer);
+            int flags = buffer.get();
+            long micros = VarLong.get(buffer);
+            if (i > 0)
+            {
+                line.append(", ");
+            }
+            line.append((flags & BinaryRequestLog.FLAG_FILTER) != 0 ? "F " : "S ");
+            String name = names.get(id);
+            line.append(name == null ? "#" + id : name).append(' ').append(micros).append("us");
+            if ((flags & BinaryRequestLog.FLAG_FAILED) != 0)
+            {
+                line.append('!');
+            }
+            if ((flags & BinaryRequestLog.FLAG_TRUNCATED) != 0)
+            {
+                line.append(", ...");
+            }
+        }
+        line.append(']');
+    }
+
+    private static void appendPhase(StringBuilder line, String phase, long offset)
+    {
+        line.append(' ').append(phase).append('=');
+        if (offset == 0)
+        {
+            line.append('-');
+        }
+        else
+        {
+            line.append('+').append(offset - 1).append("us");
+        }
+    }
+}
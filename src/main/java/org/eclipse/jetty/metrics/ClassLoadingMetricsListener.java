@@ -0,0 +1,61 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import org.eclipse.jetty.webapp.WebAppContext;
+
+/**
+ * A {@link ServletMetricsListener} that is told the class loading work of every WebApp,
+ * split into phases.
+ * <p>
+ * The {@link MetricsHandler} gives a {@link MetricsWebAppClassLoader} to the WebApps started while
+ * it has a listener implementing this interface, unless they already have a class loader.
+ * </p>
+ */
+public interface ClassLoadingMetricsListener extends ServletMetricsListener
+{
+    enum Phase
+    {
+        /**
+         * From the start of the WebApp until it is ready.
+         */
+        STARTUP,
+        /**
+         * The first requests, for the warmup period after the WebApp is ready.
+         */
+        WARMUP,
+        /**
+         * After the warmup period, until the WebApp is stopped.
+         */
+        STEADY
+    }
+
+    /**
+     * Event that a class loading phase of a WebApp has ended.
+     * <p>
+     * The end of the WARMUP phase is notified on the first class loader call after the warmup
+     * period, or when the WebApp stops.
+     * </p>
+     *
+     * @param context the WebApp
+     * @param phase the phase that ended
+     * @param stats the class loading work during the phase
+     */
+    void onClassLoadingPhaseEnd(WebAppContext context, Phase phase, ClassLoadingStats stats);
+}
@@ -0,0 +1,124 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The class loading work of a {@link MetricsWebAppClassLoader} during one phase of its WebApp.
+ * <p>
+ * Nested calls (eg: the loading of a super class while defining a class) are part of the
+ * outermost call, so the times are the time the threads spent in the class loader.
+ * </p>
+ */
+public class ClassLoadingStats
+{
+    private final AtomicLong loadClassCalls = new AtomicLong();
+    private final AtomicLong loadClassFailures = new AtomicLong();
+    private final AtomicLong loadClassTime = new AtomicLong();
+    private final AtomicLong classesDefined = new AtomicLong();
+    private final AtomicLong defineClassTime = new AtomicLong();
+    private final AtomicLong resourceLookups = new AtomicLong();
+    private final AtomicLong resourceLookupTime = new AtomicLong();
+
+    void onLoadClass(long time, boolean failed)
+    {
+        loadClassCalls.incrementAndGet();
+        loadClassTime.addAndGet(time);
+        if (failed)
+        {
+            loadClassFailures.incrementAndGet();
+        }
+    }
+
+    void onDefineClass(long time)
+    {
+        classesDefined.incrementAndGet();
+        defineClassTime.addAndGet(time);
+    }
+
+    void onResourceLookup(long time)
+    {
+        resourceLookups.incrementAndGet();
+        resourceLookupTime.addAndGet(time);
+    }
+
+    /**
+     * @return the number of outermost {@code loadClass()} calls, including those delegated to the parent class loader
+     */
+    public long getLoadClassCalls()
+    {
+        return loadClassCalls.get();
+    }
+
+    /**
+     * @return the number of outermost {@code loadClass()} calls that threw {@link ClassNotFoundException}
+     */
+    public long getLoadClassFailures()
+    {
+        return loadClassFailures.get();
+    }
+
+    /**
+     * @return the time spent in outermost {@code loadClass()} calls, in nanoseconds
+     */
+    public long getLoadClassTime()
+    {
+        return loadClassTime.get();
+    }
+
+    /**
+     * @return the number of classes defined from the WebApp, after finding their bytes and transforming them
+     */
+    public long getClassesDefined()
+    {
+        return classesDefined.get();
+    }
+
+    /**
+     * @return the time spent reading, transforming and defining the classes of the WebApp, in nanoseconds
+     */
+    public long getDefineClassTime()
+    {
+        return defineClassTime.get();
+    }
+
+    /**
+     * @return the number of {@code getResource()} and {@code getResources()} calls outside of class loading
+     */
+    public long getResourceLookups()
+    {
+        return resourceLookups.get();
+    }
+
+    /**
+     * @return the time spent in resource lookups outside of class loading, in nanoseconds
+     */
+    public long getResourceLookupTime()
+    {
+        return resourceLookupTime.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x{loadClass=%d/%dns,failures=%d,defined=%d/%dns,resources=%d/%dns}", getClass().getSimpleName(), hashCode(),
+            getLoadClassCalls(), getLoadClassTime(), getLoadClassFailures(), getClassesDefined(), getDefineClassTime(), getResourceLookups(), getResourceLookupTime());
+    }
+}
@@ -0,0 +1,260 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An adaptive limit of the number of concurrent calls to a Servlet, in the style of the gradient
+ * algorithm of Netflix concurrency-limits.
+ * <p>
+ * Every completed call is a latency sample.
+ * The limit is multiplied by the gradient between the long term and the short term moving averages
+ * of the latency: when latency grows the gradient drops below 1 and the limit shrinks, when latency
+ * is stable the gradient is 1 and the limit grows by a queue allowance of the square root of the limit.
+ * The limit does not grow while less than half of it is used, since the latency then says nothing
+ * about the capacity.
+ * </p>
+ * <p>
+ * Calls never block: they are admitted or rejected immediately, or queued as {@link Waiter}s
+ * that are admitted, in order, as permits are released.
+ * </p>
+ */
+public class ConcurrencyLimit
+{
+    private static final double SHORT_ALPHA = 0.1;
+    private static final double LONG_ALPHA = 2.0 / 601;
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean sampling = new AtomicBoolean();
+    private final int minLimit;
+    private final int maxLimit;
+    private volatile int limit;
+    // Only accessed by the thread that won the sampling flag.
+    private double estimatedLimit;
+    private double shortRtt;
+    private double longRtt;
+
+    /**
+     * @param initialLimit the limit before any sample is taken
+     * @param minLimit the lowest limit
+     * @param maxLimit the highest limit
+     */
+    public ConcurrencyLimit(int initialLimit, int minLimit, int maxLimit)
+    {
+        if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit)
+        {
+            throw new IllegalArgumentException("Invalid limits: " + minLimit + " <= " + initialLimit + " <= " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.estimatedLimit = initialLimit;
+    }
+
+    /**
+     * Acquires a permit without waiting.
+     *
+     * @return true if the call can proceed, and {@link #release(long)} must then be called
+     */
+    public boolean tryAcquire()
+    {
+        while (true)
+        {
+            int current = inFlight.get();
+            if (current >= limit)
+            {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1))
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Acquires a permit without waiting, counting the call as rejected if there is none.
+     *
+     * @return true if the call can proceed, and {@link #release(long)} must then be called
+     */
+    public boolean acquire()
+    {
+        if (tryAcquire())
+        {
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Queues a call that could not acquire a permit, to be admitted when a permit is released.
+     * <p>
+     * The caller does not block: the waiter is told when it is admitted, typically to resume
+     * a suspended request, and must give up with {@link #remove(Waiter)} when it stops waiting.
+     * </p>
+     *
+     * @param waiter the waiter
+     */
+    public void enqueue(Waiter waiter)
+    {
+        waiters.offer(waiter);
+        // A permit may have been released before the waiter was queued.
+        admitWaiters();
+    }
+
+    /**
+     * Removes a waiter that gives up waiting, counting its call as rejected.
+     *
+     * @param waiter the waiter
+     * @return true if the waiter was still queued
+     */
+    public boolean remove(Waiter waiter)
+    {
+        rejected.incrementAndGet();
+        return waiters.remove(waiter);
+    }
+
+    /**
+     * Releases a permit and adapts the limit to the latency of the call.
+     *
+     * @param latency the latency of the call, in nanoseconds, or a negative value to not take a sample
+     */
+    public void release(long latency)
+    {
+        int used = inFlight.getAndDecrement();
+        // Samples that contend with another are skipped rather than waiting, the averages barely miss them.
+        if (latency >= 0 && sampling.compareAndSet(false, true))
+        {
+            try
+            {
+                sample(latency, used);
+            }
+            finally
+            {
+                sampling.set(false);
+            }
+        }
+        if (!waiters.isEmpty())
+        {
+            admitWaiters();
+        }
+    }
+
+    private void admitWaiters()
+    {
+        while (!waiters.isEmpty() && tryAcquire())
+        {
+            Waiter waiter = waiters.poll();
+            if (waiter == null || !waiter.admit())
+            {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private void sample(long latency, int used)
+    {
+        if (longRtt == 0)
+        {
+            shortRtt = latency;
+            longRtt = latency;
+            return;
+        }
+        shortRtt += SHORT_ALPHA * (latency - shortRtt);
+        longRtt += LONG_ALPHA * (latency - longRtt);
+        // Recover faster from a sustained latency increase, so that it becomes the new baseline.
+        if (longRtt / shortRtt > 2)
+        {
+            longRtt *= 0.95;
+        }
+
+        if (used < estimatedLimit / 2)
+        {
+            return;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+        double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        newLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        limit = (int)estimatedLimit;
+    }
+
+    /**
+     * @return the current limit of concurrent calls
+     */
+    public int getLimit()
+    {
+        return limit;
+    }
+
+    /**
+     * @return the number of calls in flight
+     */
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the number of calls waiting for a permit
+     */
+    public int getWaiting()
+    {
+        return waiters.size();
+    }
+
+    /**
+     * @return the number of calls rejected
+     */
+    public long getRejected()
+    {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x{limit=%d,inFlight=%d,waiting=%d,rejected=%d}", getClass().getSimpleName(), hashCode(), getLimit(), getInFlight(), getWaiting(), getRejected());
+    }
+
+    /**
+     * A call queued by {@link #enqueue(Waiter)}.
+     */
+    @FunctionalInterface
+    public interface Waiter
+    {
+        /**
+         * Called when a permit is handed to the waiter, which must then call {@link #release(long)}.
+         *
+         * @return true if the waiter took the permit, false if it already gave up waiting
+         */
+        boolean admit();
+    }
+}
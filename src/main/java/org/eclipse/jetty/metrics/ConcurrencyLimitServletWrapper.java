@@ -0,0 +1,268 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * Admits the REQUEST dispatches to a Servlet under its {@link ConcurrencyLimit},
+ * rejecting the others with a 503.
+ * Other dispatches happen within an admitted request and are never rejected.
+ * <p>
+ * With a max wait, a request beyond the limit is suspended, without holding a thread, until a permit
+ * is released or the max wait expires; an admitted request is then resumed with an ASYNC dispatch.
+ * Requests that do not support async are rejected immediately.
+ * </p>
+ * <p>
+ * The permit of a request that starts async is held until the request completes,
+ * and its latency is sampled then.
+ * </p>
+ */
+public class ConcurrencyLimitServletWrapper extends ServletHolder.Wrapper
+{
+    private static final String ADMITTED_ATTRIBUTE = ConcurrencyLimitServletWrapper.class.getName() + ".admitted";
+
+    private final ConcurrencyLimit limit;
+    private final long maxWait;
+    private final Runnable onDestroy;
+
+    /**
+     * @param servlet the servlet
+     * @param limit the limit of the servlet
+     * @param maxWait the max time a request waits to be admitted, in nanoseconds
+     */
+    public ConcurrencyLimitServletWrapper(Servlet servlet, ConcurrencyLimit limit, long maxWait)
+    {
+        this(servlet, limit, maxWait, null);
+    }
+
+    ConcurrencyLimitServletWrapper(Servlet servlet, ConcurrencyLimit limit, long maxWait, Runnable onDestroy)
+    {
+        super(servlet);
+        this.limit = limit;
+        this.maxWait = maxWait;
+        this.onDestroy = onDestroy;
+    }
+
+    public ConcurrencyLimit getConcurrencyLimit()
+    {
+        return limit;
+    }
+
+    @Override
+    public void service(ServletRequest req, ServletResponse res) throws ServletException, IOException
+    {
+        DispatcherType dispatcherType = req.getDispatcherType();
+        if (dispatcherType == DispatcherType.ASYNC && req.getAttribute(ADMITTED_ATTRIBUTE) == this)
+        {
+            // Resumed by the Waiter that took a permit.
+            req.removeAttribute(ADMITTED_ATTRIBUTE);
+            admitted(req, res);
+            return;
+        }
+        if (dispatcherType != DispatcherType.REQUEST)
+        {
+            getWrapped().service(req, res);
+            return;
+        }
+
+        if (maxWait > 0 && req.isAsyncSupported())
+        {
+            if (limit.tryAcquire())
+            {
+                admitted(req, res);
+            }
+            else
+            {
+                suspend(req);
+            }
+        }
+        else if (limit.acquire())
+        {
+            admitted(req, res);
+        }
+        else if (!res.isCommitted())
+        {
+            ((HttpServletResponse)res).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+    }
+
+    private void admitted(ServletRequest req, ServletResponse res) throws ServletException, IOException
+    {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try
+        {
+            getWrapped().service(req, res);
+            failed = false;
+        }
+        finally
+        {
+            if (req.isAsyncStarted())
+            {
+                // Completion callbacks only run once this dispatch returns, so the listener cannot miss them.
+                req.getAsyncContext().addListener(new Release(start, failed));
+            }
+            else
+            {
+                // Failures may be fast or slow for reasons unrelated to the load, they are not sampled.
+                limit.release(failed ? -1 : System.nanoTime() - start);
+            }
+        }
+    }
+
+    private void suspend(ServletRequest req)
+    {
+        AsyncContext asyncContext = req.startAsync();
+        Admission admission = new Admission(asyncContext, asyncContext.getTimeout());
+        asyncContext.setTimeout(Math.max(1, TimeUnit.NANOSECONDS.toMillis(maxWait)));
+        asyncContext.addListener(admission);
+        limit.enqueue(admission);
+    }
+
+    @Override
+    public void destroy()
+    {
+        try
+        {
+            super.destroy();
+        }
+        finally
+        {
+            if (onDestroy != null)
+            {
+                onDestroy.run();
+            }
+        }
+    }
+
+    /**
+     * Releases the permit of an admitted request that went async, when it completes.
+     */
+    private class Release implements AsyncListener
+    {
+        private final long start;
+        private volatile boolean failed;
+
+        private Release(long start, boolean failed)
+        {
+            this.start = start;
+            this.failed = failed;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event)
+        {
+            limit.release(failed ? -1 : System.nanoTime() - start);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event)
+        {
+            failed = true;
+        }
+
+        @Override
+        public void onError(AsyncEvent event)
+        {
+            failed = true;
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event)
+        {
+            // Listeners are cleared when async is started again.
+            event.getAsyncContext().addListener(this);
+        }
+    }
+
+    /**
+     * A suspended request waiting for a permit, resumed when it is admitted
+     * and rejected when its max wait expires.
+     */
+    private class Admission implements ConcurrencyLimit.Waiter, AsyncListener
+    {
+        private final AtomicBoolean done = new AtomicBoolean();
+        private final AsyncContext asyncContext;
+        private final long timeout;
+
+        private Admission(AsyncContext asyncContext, long timeout)
+        {
+            this.asyncContext = asyncContext;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public boolean admit()
+        {
+            if (!done.compareAndSet(false, true))
+            {
+                return false;
+            }
+            asyncContext.getRequest().setAttribute(ADMITTED_ATTRIBUTE, ConcurrencyLimitServletWrapper.this);
+            // The timeout carries over to the async cycles the Servlet may start.
+            asyncContext.setTimeout(timeout);
+            asyncContext.dispatch();
+            return true;
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event)
+        {
+            if (done.compareAndSet(false, true))
+            {
+                limit.remove(this);
+                ((HttpServletResponse)asyncContext.getResponse()).setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                asyncContext.complete();
+            }
+        }
+
+        @Override
+        public void onError(AsyncEvent event)
+        {
+            if (done.compareAndSet(false, true))
+            {
+                limit.remove(this);
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event)
+        {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event)
+        {
+        }
+    }
+}
@@ -0,0 +1,114 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.servlet.Servlet;
+
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * Optional admission control, adapting a {@link ConcurrencyLimit} per Servlet to its
+ * in-flight calls and recent latency.
+ * <p>
+ * Requests beyond the limit of a Servlet are rejected with a 503, immediately or after waiting
+ * suspended for a permit until the max wait, so that a Servlet slowed down by its downstream does not take
+ * every thread of the server and collapse the throughput of all the others.
+ * The limit of a Servlet is discarded when the Servlet is destroyed, eg: when its context stops.
+ * </p>
+ * <p>
+ * The limiter is independent of the {@link MetricsHandler}, and is added to the contexts
+ * with {@link #addToContext(ServletContextHandler)} before they are started.
+ * </p>
+ */
+public class ConcurrencyLimiter implements ServletHolder.WrapFunction
+{
+    private final ConcurrentMap<Servlet, ConcurrencyLimit> limits = new ConcurrentHashMap<>();
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long maxWait;
+
+    public ConcurrencyLimiter()
+    {
+        this(20, 1, 200, Duration.ZERO);
+    }
+
+    /**
+     * @param initialLimit the limit of every Servlet before any sample is taken
+     * @param minLimit the lowest limit of every Servlet
+     * @param maxLimit the highest limit of every Servlet
+     * @param maxWait the max time a request waits suspended to be admitted, zero to reject it immediately
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, Duration maxWait)
+    {
+        // Validates the limits.
+        new ConcurrencyLimit(initialLimit, minLimit, maxLimit);
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxWait = maxWait.toNanos();
+    }
+
+    public void addToContext(ServletContextHandler context)
+    {
+        context.addBean(this);
+    }
+
+    @Override
+    public Servlet wrapServlet(Servlet servlet)
+    {
+        Servlet unwrapped = servlet;
+        while (unwrapped instanceof ServletHolder.Wrapper)
+        {
+            if (unwrapped instanceof ConcurrencyLimitServletWrapper)
+            {
+                return servlet;
+            }
+            unwrapped = ((ServletHolder.Wrapper)unwrapped).getWrapped();
+        }
+        Servlet limited = unwrapped;
+        ConcurrencyLimit limit = limits.computeIfAbsent(limited, s -> new ConcurrencyLimit(initialLimit, minLimit, maxLimit));
+        return new ConcurrencyLimitServletWrapper(servlet, limit, maxWait, () -> limits.remove(limited, limit));
+    }
+
+    /**
+     * @param servlet the servlet
+     * @return the limit of the servlet, or null if the servlet is not limited
+     */
+    public ConcurrencyLimit getConcurrencyLimit(Servlet servlet)
+    {
+        return limits.get(servlet);
+    }
+
+    public Map<Servlet, ConcurrencyLimit> getConcurrencyLimits()
+    {
+        return limits;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x{limit=%d<=%d<=%d,maxWait=%dns}", getClass().getSimpleName(), hashCode(), minLimit, initialLimit, maxLimit, maxWait);
+    }
+}
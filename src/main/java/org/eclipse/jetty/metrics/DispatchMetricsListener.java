@@ -0,0 +1,95 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+
+/**
+ * A {@link ServletMetricsListener} that is told the {@link DispatcherType} and the dispatch
+ * nesting depth of every Filter and Servlet call.
+ * <p>
+ * The depth is 0 for the Servlet handling the dispatch from the container (REQUEST, ASYNC or ERROR),
+ * and is incremented for every nested {@link javax.servlet.RequestDispatcher#include(ServletRequest, javax.servlet.ServletResponse)}
+ * or {@link javax.servlet.RequestDispatcher#forward(ServletRequest, javax.servlet.ServletResponse)}.
+ * Filters have the depth of the Servlet they are in front of.
+ * </p>
+ * <p>
+ * For listeners implementing this interface, the wrappers call these events
+ * instead of the plain enter / exit events of {@link ServletMetricsListener}.
+ * </p>
+ */
+public interface DispatchMetricsListener extends ServletMetricsListener
+{
+    /**
+     * Event indicating a specific Filter was entered for a dispatch.
+     *
+     * @param servletContext the specific context that the filter belongs to.
+     * @param filter the filter that was entered
+     * @param request the request that caused this filter to be entered.
+     * @param dispatcherType the type of the dispatch
+     * @param depth the dispatch nesting depth
+     * @see #onFilterEnter(ServletContext, Filter, ServletRequest)
+     */
+    void onFilterDispatchEnter(ServletContext servletContext, Filter filter, ServletRequest request, DispatcherType dispatcherType, int depth);
+
+    /**
+     * Event indicating a specific Filter was exited for a dispatch.
+     *
+     * @param servletContext the specific context that the filter belongs to.
+     * @param filter the filter that was exited
+     * @param request the request that caused this filter to be exited.
+     * @param dispatcherType the type of the dispatch
+     * @param depth the dispatch nesting depth
+     * @param duration the duration for this filter servicing.
+     * @param cause if exit condition was a result of a throwable, this will be populate, it will be null if exit was normal
+     * @see #onFilterExit(ServletContext, Filter, ServletRequest, Duration, Throwable)
+     */
+    void onFilterDispatchExit(ServletContext servletContext, Filter filter, ServletRequest request, DispatcherType dispatcherType, int depth, Duration duration, Throwable cause);
+
+    /**
+     * Event indicating a specific Servlet was entered for a dispatch.
+     *
+     * @param servletContext the specific context that the servlet belongs to.
+     * @param servlet the servlet that was entered.
+     * @param request the request that entered this servlet.
+     * @param dispatcherType the type of the dispatch
+     * @param depth the dispatch nesting depth
+     * @see #onServletEnter(ServletContext, Servlet, ServletRequest)
+     */
+    void onServletDispatchEnter(ServletContext servletContext, Servlet servlet, ServletRequest request, DispatcherType dispatcherType, int depth);
+
+    /**
+     * Event indicating a specific Servlet was exited for a dispatch.
+     *
+     * @param servletContext the specific context that the servlet belongs to.
+     * @param servlet the servlet that was exited.
+     * @param request the request that exited this servlet.
+     * @param dispatcherType the type of the dispatch
+     * @param depth the dispatch nesting depth
+     * @param duration the duration for this servlet servicing.
+     * @param cause if exit condition was a result of a throwable, this will be populate, it will be null if exit was normal
+     * @see #onServletExit(ServletContext, Servlet, ServletRequest, Duration, Throwable)
+     */
+    void onServletDispatchExit(ServletContext servletContext, Servlet servlet, ServletRequest request, DispatcherType dispatcherType, int depth, Duration duration, Throwable cause);
+}
@@ -0,0 +1,158 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+
+/**
+ * Aggregates Servlet and Filter latencies separately for every {@link DispatcherType},
+ * so that includes, forwards and error pages do not skew the latencies of the REQUEST dispatches.
+ */
+public class DispatchTypeMetricsListener extends AbstractServletMetricsListener implements DispatchMetricsListener
+{
+    private static final DispatcherType[] DISPATCHER_TYPES = DispatcherType.values();
+
+    private final MetricRegistry registry = new MetricRegistry();
+    private final MetricRegistry.Table<Servlet, DispatchStats> servlets = registry.newTable(DispatchTypeMetricsListener::newDispatchStats);
+    private final MetricRegistry.Table<Filter, DispatchStats> filters = registry.newTable(DispatchTypeMetricsListener::newDispatchStats);
+
+    private static DispatchStats newDispatchStats(Object component)
+    {
+        return new DispatchStats();
+    }
+
+    /**
+     * @return the registry of the series of this listener, to bound their memory and to read their evictions
+     */
+    public MetricRegistry getMetricRegistry()
+    {
+        return registry;
+    }
+
+    @Override
+    public void onServletContextStopped(ServletContext servletContext)
+    {
+        registry.evictContext(servletContext);
+    }
+
+    @Override
+    public int getInterests()
+    {
+        return INTEREST_EXITS;
+    }
+
+    @Override
+    public void onFilterDispatchEnter(ServletContext servletContext, Filter filter, ServletRequest request, DispatcherType dispatcherType, int depth)
+    {
+    }
+
+    @Override
+    public void onFilterDispatchExit(ServletContext servletContext, Filter filter, ServletRequest request, DispatcherType dispatcherType, int depth, Duration duration, Throwable cause)
+    {
+        DispatchStats stats = filters.acquire(servletContext, filter);
+        stats.record(dispatcherType, depth, duration.toNanos());
+    }
+
+    @Override
+    public void onServletDispatchEnter(ServletContext servletContext, Servlet servlet, ServletRequest request, DispatcherType dispatcherType, int depth)
+    {
+    }
+
+    @Override
+    public void onServletDispatchExit(ServletContext servletContext, Servlet servlet, ServletRequest request, DispatcherType dispatcherType, int depth, Duration duration, Throwable cause)
+    {
+        DispatchStats stats = servlets.acquire(servletContext, servlet);
+        stats.record(dispatcherType, depth, duration.toNanos());
+    }
+
+    public Set<Servlet> getServlets()
+    {
+        return servlets.keySet();
+    }
+
+    public Set<Filter> getFilters()
+    {
+        return filters.keySet();
+    }
+
+    /**
+     * @param servlet the servlet
+     * @param dispatcherType the dispatcher type
+     * @return the latencies of the servlet for the dispatcher type, or null if the servlet was never called
+     */
+    public LatencyHistogram getServletHistogram(Servlet servlet, DispatcherType dispatcherType)
+    {
+        DispatchStats stats = servlets.get(servlet);
+        return stats == null ? null : stats.histograms[dispatcherType.ordinal()];
+    }
+
+    /**
+     * @param filter the filter
+     * @param dispatcherType the dispatcher type
+     * @return the latencies of the filter for the dispatcher type, or null if the filter was never called
+     */
+    public LatencyHistogram getFilterHistogram(Filter filter, DispatcherType dispatcherType)
+    {
+        DispatchStats stats = filters.get(filter);
+        return stats == null ? null : stats.histograms[dispatcherType.ordinal()];
+    }
+
+    /**
+     * @param servlet the servlet
+     * @param dispatcherType the dispatcher type
+     * @return the deepest dispatch nesting seen for the servlet and dispatcher type
+     */
+    public int getServletMaxDepth(Servlet servlet, DispatcherType dispatcherType)
+    {
+        DispatchStats stats = servlets.get(servlet);
+        return stats == null ? 0 : stats.maxDepths.get(dispatcherType.ordinal());
+    }
+
+    private static class DispatchStats
+    {
+        private final LatencyHistogram[] histograms = new LatencyHistogram[DISPATCHER_TYPES.length];
+        private final AtomicIntegerArray maxDepths = new AtomicIntegerArray(DISPATCHER_TYPES.length);
+
+        private DispatchStats()
+        {
+            for (int i = 0; i < histograms.length; i++)
+            {
+                histograms[i] = new LatencyHistogram();
+            }
+        }
+
+        private void record(DispatcherType dispatcherType, int depth, long duration)
+        {
+            int index = dispatcherType.ordinal();
+            histograms[index].record(duration);
+            int maxDepth = maxDepths.get(index);
+            while (depth > maxDepth && !maxDepths.compareAndSet(index, maxDepth, depth))
+            {
+                maxDepth = maxDepths.get(index);
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+
+import org.eclipse.jetty.server.HttpChannel;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+
+/**
+ * Counts the failures of Servlets and Filters, by exception class and by response status.
+ * <p>
+ * Exceptions are counted per component in a small, bounded table keyed on the identity of their
+ * {@link Class}; exceptions of classes that do not fit in the table are counted as overflow.
+ * Statuses are counted in primitive arrays indexed by status code, per Servlet when it exits
+ * and for the whole server when the request completes.
+ * The status of a Servlet that started async is only final when the request completes,
+ * so it is counted then, for the last Servlet that started async.
+ * Neither the message nor the stack trace of the exceptions is ever looked at, so that
+ * a storm of exceptions does not become a storm of String formatting or logging.
+ * </p>
+ * <p>
+ * Request completion is notified by the {@link MetricsHandler}, which must be
+ * added to the connectors with {@link MetricsHandler#addToAllConnectors(org.eclipse.jetty.server.Server)}.
+ * </p>
+ */
+public class ErrorMetricsListener extends AbstractServletMetricsListener implements HttpChannel.Listener
+{
+    private static final int MAX_STATUS = 600;
+
+    private final MetricRegistry registry = new MetricRegistry();
+    private final MetricRegistry.Table<Servlet, ErrorStats> servlets = registry.newTable(this::newErrorStats);
+    private final MetricRegistry.Table<Filter, ErrorStats> filters = registry.newTable(this::newErrorStats);
+    private final AtomicLongArray statuses = new AtomicLongArray(MAX_STATUS);
+    private final String asyncAttribute = ErrorMetricsListener.class.getName() + "@" + Integer.toHexString(hashCode());
+    private final int maxExceptionClasses;
+
+    public ErrorMetricsListener()
+    {
+        this(16);
+    }
+
+    /**
+     * @param maxExceptionClasses the number of distinct exception classes counted per component
+     */
+    public ErrorMetricsListener(int maxExceptionClasses)
+    {
+        this.maxExceptionClasses = maxExceptionClasses;
+    }
+
+    private ErrorStats newErrorStats(Object component)
+    {
+        return new ErrorStats(maxExceptionClasses);
+    }
+
+    private static int statusIndex(int status)
+    {
+        return status > 0 && status < MAX_STATUS ? status : 0;
+    }
+
+    /**
+     * @return the registry of the series of this listener, to bound their memory and to read their evictions
+     */
+    public MetricRegistry getMetricRegistry()
+    {
+        return registry;
+    }
+
+    @Override
+    public void onServletContextStopped(ServletContext servletContext)
+    {
+        registry.evictContext(servletContext);
+    }
+
+    @Override
+    public int getInterests()
+    {
+        return INTEREST_EXITS;
+    }
+
+    @Override
+    public void onFilterExit(ServletContext servletContext, Filter filter, ServletRequest request, Duration duration, Throwable cause)
+    {
+        if (cause == null)
+        {
+            return;
+        }
+        ErrorStats stats = filters.acquire(servletContext, filter);
+        stats.exceptions.increment(cause.getClass());
+    }
+
+    @Override
+    public void onServletExit(ServletContext servletContext, Servlet servlet, ServletRequest request, Duration duration, Throwable cause)
+    {
+        // Included servlets cannot change the status.
+        Request baseRequest = request.getDispatcherType() == DispatcherType.INCLUDE ? null : Request.getBaseRequest(request);
+        if (baseRequest != null && baseRequest.isAsyncStarted())
+        {
+            // The status is not final yet, it is counted when the request completes.
+            ErrorStats stats = servlets.acquire(servletContext, servlet);
+            if (cause != null)
+            {
+                stats.exceptions.increment(cause.getClass());
+            }
+            baseRequest.setAttribute(asyncAttribute, stats);
+            return;
+        }
+        if (baseRequest != null && baseRequest.getDispatcherType() == DispatcherType.ASYNC)
+        {
+            // The response is complete, the status is counted now rather than when the request completes.
+            baseRequest.removeAttribute(asyncAttribute);
+        }
+        Response response = baseRequest == null ? null : baseRequest.getResponse();
+        int status = response == null ? 0 : response.getStatus();
+        if (cause == null && status < 400)
+        {
+            return;
+        }
+        ErrorStats stats = servlets.acquire(servletContext, servlet);
+        if (cause != null)
+        {
+            stats.exceptions.increment(cause.getClass());
+        }
+        if (status >= 400)
+        {
+            stats.statuses.incrementAndGet(statusIndex(status));
+        }
+    }
+
+    @Override
+    public void onComplete(Request request)
+    {
+        int status = request.getResponse().getStatus();
+        statuses.incrementAndGet(statusIndex(status));
+        Object stats = request.getAttribute(asyncAttribute);
+        if (stats instanceof ErrorStats && status >= 400)
+        {
+            ((ErrorStats)stats).statuses.incrementAndGet(statusIndex(status));
+        }
+    }
+
+    /**
+     * @param status the status code
+     * @return the number of completed requests with the status
+     */
+    public long getStatusCount(int status)
+    {
+        return statuses.get(statusIndex(status));
+    }
+
+    /**
+     * @param statusClass the status class, eg: 4 for 4xx statuses
+     * @return the number of completed requests with a status of the class
+     */
+    public long getStatusClassCount(int statusClass)
+    {
+        long count = 0;
+        for (int status = statusClass * 100; status < (statusClass + 1) * 100 && status < MAX_STATUS; status++)
+        {
+            count += statuses.get(status);
+        }
+        return count;
+    }
+
+    public Set<Servlet> getServlets()
+    {
+        return servlets.keySet();
+    }
+
+    public Set<Filter> getFilters()
+    {
+        return filters.keySet();
+    }
+
+    /**
+     * @param servlet the servlet
+     * @param status the error status code
+     * @return the number of times the servlet exited with the status
+     */
+    public long getServletStatusCount(Servlet servlet, int status)
+    {
+        ErrorStats stats = servlets.get(servlet);
+        return stats == null ? 0 : stats.statuses.get(statusIndex(status));
+    }
+
+    /**
+     * @param servlet the servlet
+     * @return the number of times the servlet threw, by exception class
+     */
+    public Map<Class<?>, Long> getServletExceptionCounts(Servlet servlet)
+    {
+        ErrorStats stats = servlets.get(servlet);
+        return stats == null ? new LinkedHashMap<>() : stats.exceptions.toMap();
+    }
+
+    /**
+     * @param servlet the servlet
+     * @return the number of times the servlet threw exceptions whose classes did not fit in the table
+     */
+    public long getServletExceptionOverflow(Servlet servlet)
+    {
+        ErrorStats stats = servlets.get(servlet);
+        return stats == null ? 0 : stats.exceptions.overflow.get();
+    }
+
+    /**
+     * @param filter the filter
+     * @return the number of times the filter threw, by exception class
+     */
+    public Map<Class<?>, Long> getFilterExceptionCounts(Filter filter)
+    {
+        ErrorStats stats = filters.get(filter);
+        return stats == null ? new LinkedHashMap<>() : stats.exceptions.toMap();
+    }
+
+    /**
+     * @param filter the filter
+     * @return the number of times the filter threw exceptions whose classes did not fit in the table
+     */
+    public long getFilterExceptionOverflow(Filter filter)
+    {
+        ErrorStats stats = filters.get(filter);
+        return stats == null ? 0 : stats.exceptions.overflow.get();
+    }
+
+    private static class ErrorStats
+    {
+        private final ExceptionTable exceptions;
+        private final AtomicLongArray statuses = new AtomicLongArray(MAX_STATUS);
+
+        private ErrorStats(int maxExceptionClasses)
+        {
+            this.exceptions = new ExceptionTable(maxExceptionClasses);
+        }
+    }
+
+    /**
+     * An open addressing table of counters keyed on the identity of the exception classes,
+     * slots are claimed with a compare-and-set and are never removed.
+     */
+    private static class ExceptionTable
+    {
+        private final AtomicReferenceArray<Class<?>> classes;
+        private final AtomicLongArray counts;
+        private final AtomicLong overflow = new AtomicLong();
+
+        private ExceptionTable(int capacity)
+        {
+            this.classes = new AtomicReferenceArray<>(capacity);
+            this.counts = new AtomicLongArray(capacity);
+        }
+
+        private void increment(Class<?> type)
+        {
+            int capacity = classes.length();
+            int start = (System.identityHashCode(type) & 0x7FFFFFFF) % capacity;
+            for (int i = 0; i < capacity; i++)
+            {
+                int index = (start + i) % capacity;
+                Class<?> slot = classes.get(index);
+                if (slot == null && classes.compareAndSet(index, null, type))
+                {
+                    slot = type;
+                }
+                else if (slot == null)
+                {
+                    slot = classes.get(index);
+                }
+                if (slot == type)
+                {
+                    counts.incrementAndGet(index);
+                    return;
+                }
+            }
+            overflow.incrementAndGet();
+        }
+
+        private Map<Class<?>, Long> toMap()
+        {
+            Map<Class<?>, Long> map = new LinkedHashMap<>();
+            for (int i = 0; i < classes.length(); i++)
+            {
+                Class<?> type = classes.get(i);
+                if (type != null)
+                {
+                    map.put(type, counts.get(i));
+                }
+            }
+            return map;
+        }
+    }
+}
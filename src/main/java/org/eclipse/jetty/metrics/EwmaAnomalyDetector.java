@@ -0,0 +1,401 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import java.util.EventListener;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.servlet.Filter;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+
+/**
+ * Detects, within Jetty, when the latency, throughput or error rate of a Servlet or Filter
+ * departs from its baseline, and notifies an {@link AnomalyListener}.
+ * <p>
+ * The baseline of every metric is an exponentially weighted moving average and variance,
+ * kept in primitive fields per component.
+ * Latency is checked on every exit; throughput and error rate are checked every time an interval
+ * closes, which happens on the first exit after the interval elapsed, or when {@link #checkIntervals()}
+ * is called, eg: periodically by a scheduler, so that a component that stops receiving traffic is reported.
+ * The intervals that elapsed without any call count as intervals with no throughput.
+ * A metric is anomalous when it is more than the configured number of standard deviations away
+ * from its mean, once the baseline has seen enough samples.
+ * The standard deviation is floored, relatively to the mean for latency and throughput and absolutely for
+ * the error rate, so that the first deviation from a perfectly steady baseline is not anomalous.
+ * After notifying an anomaly, further anomalies of the same metric and component are not notified
+ * during one interval, so that a sustained anomaly does not flood the listener.
+ * </p>
+ * <p>
+ * Exits do not lock: calls are counted with adders, an interval is closed by the single thread that
+ * claims it, and latency samples that contend with another update of the same baseline are skipped.
+ * </p>
+ */
+public class EwmaAnomalyDetector extends AbstractServletMetricsListener
+{
+    public enum Metric
+    {
+        /**
+         * The duration of a single call, in nanoseconds.
+         */
+        LATENCY,
+        /**
+         * The number of calls per second over an interval.
+         */
+        THROUGHPUT,
+        /**
+         * The ratio of failed calls over an interval, between 0 and 1.
+         */
+        ERROR_RATE
+    }
+
+    /**
+     * Listener notified of anomalies, from the thread that exited the component or that checked the intervals.
+     */
+    public interface AnomalyListener extends EventListener
+    {
+        /**
+         * @param servletContext the context of the component
+         * @param component the Servlet or Filter
+         * @param metric the anomalous metric
+         * @param value the value of the metric
+         * @param mean the mean of the baseline of the metric
+         * @param stdDev the standard deviation of the baseline of the metric
+         */
+        void onAnomaly(ServletContext servletContext, Object component, Metric metric, double value, double mean, double stdDev);
+    }
+
+    private final MetricRegistry registry = new MetricRegistry();
+    private final MetricRegistry.Table<Object, Baseline> baselines = registry.newTable(this::newBaseline);
+    private final AnomalyListener anomalyListener;
+    private final double alpha;
+    private final double sigmas;
+    private final long intervalNanos;
+    private final int warmup;
+    // Beyond this many empty intervals the baseline has converged to no throughput anyway.
+    private final long maxEmptyIntervals;
+    private volatile double minRelativeStdDev = 0.1;
+    private volatile double minErrorRateStdDev = 0.01;
+
+    /**
+     * @param anomalyListener the listener to notify of anomalies
+     * @param alpha the weight of a new sample in the moving averages, between 0 and 1 (eg: 0.05)
+     * @param sigmas the number of standard deviations away from the mean that is anomalous (eg: 4)
+     * @param interval the interval over which throughput and error rate are measured (eg: 1 second)
+     * @param warmup the number of samples of a baseline before it is checked for anomalies (eg: 30)
+     */
+    public EwmaAnomalyDetector(AnomalyListener anomalyListener, double alpha, double sigmas, Duration interval, int warmup)
+    {
+        if (alpha <= 0 || alpha > 1)
+        {
+            throw new IllegalArgumentException("Invalid alpha: " + alpha);
+        }
+        this.anomalyListener = anomalyListener;
+        this.alpha = alpha;
+        this.sigmas = sigmas;
+        this.intervalNanos = interval.toNanos();
+        this.warmup = warmup;
+        this.maxEmptyIntervals = (long)Math.ceil(10 / alpha);
+    }
+
+    private Baseline newBaseline(Object component)
+    {
+        return new Baseline(nanoTime());
+    }
+
+    long nanoTime()
+    {
+        return System.nanoTime();
+    }
+
+    /**
+     * @return the registry of the series of this listener, to bound their memory and to read their evictions
+     */
+    public MetricRegistry getMetricRegistry()
+    {
+        return registry;
+    }
+
+    public double getMinRelativeStdDev()
+    {
+        return minRelativeStdDev;
+    }
+
+    /**
+     * @param minRelativeStdDev the lowest standard deviation of the latency and throughput baselines,
+     * as a ratio of their mean (eg: 0.1)
+     */
+    public void setMinRelativeStdDev(double minRelativeStdDev)
+    {
+        this.minRelativeStdDev = minRelativeStdDev;
+    }
+
+    public double getMinErrorRateStdDev()
+    {
+        return minErrorRateStdDev;
+    }
+
+    /**
+     * @param minErrorRateStdDev the lowest standard deviation of the error rate baseline (eg: 0.01)
+     */
+    public void setMinErrorRateStdDev(double minErrorRateStdDev)
+    {
+        this.minErrorRateStdDev = minErrorRateStdDev;
+    }
+
+    @Override
+    public void onServletContextStopped(ServletContext servletContext)
+    {
+        registry.evictContext(servletContext);
+    }
+
+    @Override
+    public int getInterests()
+    {
+        return INTEREST_EXITS;
+    }
+
+    @Override
+    public void onFilterExit(ServletContext servletContext, Filter filter, ServletRequest request, Duration duration, Throwable cause)
+    {
+        onExit(servletContext, filter, duration.toNanos(), cause != null);
+    }
+
+    @Override
+    public void onServletExit(ServletContext servletContext, Servlet servlet, ServletRequest request, Duration duration, Throwable cause)
+    {
+        onExit(servletContext, servlet, duration.toNanos(), cause != null);
+    }
+
+    private void onExit(ServletContext servletContext, Object component, long latency, boolean failed)
+    {
+        Baseline baseline = baselines.acquire(servletContext, component);
+        if (baseline.servletContext == null)
+        {
+            baseline.servletContext = servletContext;
+        }
+        long now = nanoTime();
+
+        // The calls counted so far belong to the interval that this exit may close.
+        closeIntervals(component, baseline, now);
+        baseline.calls.increment();
+        if (failed)
+        {
+            baseline.failures.increment();
+        }
+
+        double latencyMean = baseline.latencyMean;
+        double latencyStdDev = Math.max(Math.sqrt(baseline.latencyVariance), minRelativeStdDev * latencyMean);
+        if (baseline.latencySamples >= warmup && isAnomaly(latency, latencyMean, latencyStdDev))
+        {
+            long last = baseline.lastLatencyAnomaly.get();
+            if (now - last >= intervalNanos && baseline.lastLatencyAnomaly.compareAndSet(last, now))
+            {
+                anomalyListener.onAnomaly(servletContext, component, Metric.LATENCY, latency, latencyMean, latencyStdDev);
+            }
+        }
+        if (baseline.updatingLatency.compareAndSet(false, true))
+        {
+            try
+            {
+                baseline.updateLatency(latency, alpha);
+            }
+            finally
+            {
+                baseline.updatingLatency.set(false);
+            }
+        }
+    }
+
+    /**
+     * Closes the intervals of every component that elapsed without any call since, so that
+     * a component that stops receiving traffic is checked for a throughput anomaly.
+     */
+    public void checkIntervals()
+    {
+        long now = nanoTime();
+        for (Object component : baselines.keySet())
+        {
+            Baseline baseline = baselines.get(component);
+            if (baseline != null)
+            {
+                closeIntervals(component, baseline, now);
+            }
+        }
+    }
+
+    private void closeIntervals(Object component, Baseline baseline, long now)
+    {
+        long start = baseline.intervalStart.get();
+        long elapsed = now - start;
+        if (elapsed < intervalNanos)
+        {
+            return;
+        }
+        long intervals = elapsed / intervalNanos;
+        // Only the thread that moves the interval start closes the intervals.
+        if (!baseline.intervalStart.compareAndSet(start, start + intervals * intervalNanos))
+        {
+            return;
+        }
+
+        long calls = baseline.calls.sumThenReset();
+        long failures = baseline.failures.sumThenReset();
+        checkInterval(component, baseline, now, calls * 1_000_000_000D / intervalNanos);
+        if (calls > 0)
+        {
+            double errorRate = (double)failures / calls;
+            double errorMean = baseline.errorMean;
+            double errorStdDev = Math.max(Math.sqrt(baseline.errorVariance), minErrorRateStdDev);
+            if (baseline.errorSamples >= warmup && isAnomaly(errorRate, errorMean, errorStdDev) && now - baseline.lastErrorAnomaly >= intervalNanos)
+            {
+                baseline.lastErrorAnomaly = now;
+                anomalyListener.onAnomaly(baseline.servletContext, component, Metric.ERROR_RATE, errorRate, errorMean, errorStdDev);
+            }
+            baseline.updateErrorRate(errorRate, alpha);
+        }
+        for (long i = Math.min(intervals - 1, maxEmptyIntervals); i > 0; i--)
+        {
+            checkInterval(component, baseline, now, 0);
+        }
+    }
+
+    private void checkInterval(Object component, Baseline baseline, long now, double throughput)
+    {
+        double throughputMean = baseline.throughputMean;
+        double throughputStdDev = Math.max(Math.sqrt(baseline.throughputVariance), minRelativeStdDev * throughputMean);
+        if (baseline.throughputSamples >= warmup && isAnomaly(throughput, throughputMean, throughputStdDev) && now - baseline.lastThroughputAnomaly >= intervalNanos)
+        {
+            baseline.lastThroughputAnomaly = now;
+            anomalyListener.onAnomaly(baseline.servletContext, component, Metric.THROUGHPUT, throughput, throughputMean, throughputStdDev);
+        }
+        baseline.updateThroughput(throughput, alpha);
+    }
+
+    private boolean isAnomaly(double value, double mean, double stdDev)
+    {
+        return Math.abs(value - mean) > sigmas * stdDev;
+    }
+
+    /**
+     * @param component the Servlet or Filter
+     * @return the mean latency baseline of the component, in nanoseconds, or NaN if unknown
+     */
+    public double getLatencyMean(Object component)
+    {
+        Baseline baseline = baselines.get(component);
+        return baseline == null ? Double.NaN : baseline.latencyMean;
+    }
+
+    /**
+     * @param component the Servlet or Filter
+     * @return the throughput baseline of the component, in calls per second, or NaN if unknown
+     */
+    public double getThroughputMean(Object component)
+    {
+        Baseline baseline = baselines.get(component);
+        return baseline == null ? Double.NaN : baseline.throughputMean;
+    }
+
+    /**
+     * @param component the Servlet or Filter
+     * @return the error rate baseline of the component, between 0 and 1, or NaN if unknown
+     */
+    public double getErrorRateMean(Object component)
+    {
+        Baseline baseline = baselines.get(component);
+        return baseline == null ? Double.NaN : baseline.errorMean;
+    }
+
+    /**
+     * The latency fields are written by the thread that claimed the update flag,
+     * the interval fields by the thread that closed the interval.
+     */
+    private static class Baseline
+    {
+        private final AtomicBoolean updatingLatency = new AtomicBoolean();
+        private final AtomicLong lastLatencyAnomaly;
+        private final AtomicLong intervalStart;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private volatile ServletContext servletContext;
+        private volatile long latencySamples;
+        private volatile double latencyMean;
+        private volatile double latencyVariance;
+        private volatile long throughputSamples;
+        private volatile double throughputMean;
+        private volatile double throughputVariance;
+        private volatile long lastThroughputAnomaly;
+        private volatile long errorSamples;
+        private volatile double errorMean;
+        private volatile double errorVariance;
+        private volatile long lastErrorAnomaly;
+
+        private Baseline(long now)
+        {
+            this.intervalStart = new AtomicLong(now);
+            long never = now - Long.MAX_VALUE / 2;
+            this.lastLatencyAnomaly = new AtomicLong(never);
+            this.lastThroughputAnomaly = never;
+            this.lastErrorAnomaly = never;
+        }
+
+        private void updateLatency(double value, double alpha)
+        {
+            if (latencySamples++ == 0)
+            {
+                latencyMean = value;
+                return;
+            }
+            double diff = value - latencyMean;
+            double increment = alpha * diff;
+            latencyMean += increment;
+            latencyVariance = (1 - alpha) * (latencyVariance + diff * increment);
+        }
+
+        private void updateThroughput(double throughput, double alpha)
+        {
+            if (throughputSamples++ == 0)
+            {
+                throughputMean = throughput;
+                return;
+            }
+            double diff = throughput - throughputMean;
+            double increment = alpha * diff;
+            throughputMean += increment;
+            throughputVariance = (1 - alpha) * (throughputVariance + diff * increment);
+        }
+
+        private void updateErrorRate(double errorRate, double alpha)
+        {
+            if (errorSamples++ == 0)
+            {
+                errorMean = errorRate;
+                return;
+            }
+            double diff = errorRate - errorMean;
+            double increment = alpha * diff;
+            errorMean += increment;
+            errorVariance = (1 - alpha) * (errorVariance + diff * increment);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps, for every bucket of a {@link LatencyHistogram}, the request ID and the timestamp of a recent sample,
+ * so that exporters can publish exemplars linking a latency to the request log or the trace of a request.
+ * <p>
+ * The exemplars are kept in fixed-size slot arrays, one slot per bucket, overwritten in place
+ * without allocating.
+ * Every slot is guarded by a sequence number, odd while it is written: a writer finding the slot
+ * being written by another drops its sample, and a reader finding the slot changed while reading it
+ * reads it again, so that an exemplar never mixes the fields of two samples.
+ * </p>
+ */
+public class Exemplars
+{
+    private final AtomicLongArray sequences = new AtomicLongArray(LatencyHistogram.BUCKETS);
+    private final AtomicLongArray values = new AtomicLongArray(LatencyHistogram.BUCKETS);
+    private final AtomicLongArray timestamps = new AtomicLongArray(LatencyHistogram.BUCKETS);
+    private final AtomicReferenceArray<String> requestIds = new AtomicReferenceArray<>(LatencyHistogram.BUCKETS);
+
+    /**
+     * @param value the latency, in nanoseconds
+     * @param requestId the request ID, eg: from {@link MetricsHandler#ATTR_REQUEST_ID}
+     * @param timestamp the time of the sample, in milliseconds since the epoch
+     */
+    public void record(long value, String requestId, long timestamp)
+    {
+        int index = LatencyHistogram.bucketIndex(value);
+        long sequence = sequences.get(index);
+        if ((sequence & 1) != 0 || !sequences.compareAndSet(index, sequence, sequence + 1))
+        {
+            return;
+        }
+        values.set(index, value);
+        timestamps.set(index, timestamp);
+        requestIds.set(index, requestId);
+        sequences.set(index, sequence + 2);
+    }
+
+    /**
+     * @param index the bucket index
+     * @return the exemplar of the bucket, or null if the bucket has none
+     */
+    public Exemplar getExemplar(int index)
+    {
+        while (true)
+        {
+            long sequence = sequences.get(index);
+            if (sequence == 0)
+            {
+                return null;
+            }
+            if ((sequence & 1) != 0)
+            {
+                Thread.yield();
+                continue;
+            }
+            long value = values.get(index);
+            long timestamp = timestamps.get(index);
+            String requestId = requestIds.get(index);
+            if (sequences.get(index) == sequence)
+            {
+                return new Exemplar(index, value, requestId, timestamp);
+            }
+        }
+    }
+
+    /**
+     * @param value a latency, in nanoseconds, eg: a percentile of the histogram
+     * @return the exemplar of the bucket of the value, or else of the nearest bucket that has one, or null if there are none
+     */
+    public Exemplar getExemplarNear(long value)
+    {
+        int index = LatencyHistogram.bucketIndex(value);
+        for (int distance = 0; distance < LatencyHistogram.BUCKETS; distance++)
+        {
+            if (index + distance < LatencyHistogram.BUCKETS)
+            {
+                Exemplar exemplar = getExemplar(index + distance);
+                if (exemplar != null)
+                {
+                    return exemplar;
+                }
+            }
+            if (distance > 0 && index - distance >= 0)
+            {
+                Exemplar exemplar = getExemplar(index - distance);
+                if (exemplar != null)
+                {
+                    return exemplar;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the exemplars of all the buckets that have one, by increasing latency
+     */
+    public List<Exemplar> getExemplars()
+    {
+        List<Exemplar> exemplars = new ArrayList<>();
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++)
+        {
+            Exemplar exemplar = getExemplar(i);
+            if (exemplar != null)
+            {
+                exemplars.add(exemplar);
+            }
+        }
+        return exemplars;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x{exemplars=%d}", getClass().getSimpleName(), hashCode(), getExemplars().size());
+    }
+
+    public static class Exemplar
+    {
+        private final int bucketIndex;
+        private final long value;
+        private final String requestId;
+        private final long timestamp;
+
+        private Exemplar(int bucketIndex, long value, String requestId, long timestamp)
+        {
+            this.bucketIndex = bucketIndex;
+            this.value = value;
+            this.requestId = requestId;
+            this.timestamp = timestamp;
+        }
+
+        public int getBucketIndex()
+        {
+            return bucketIndex;
+        }
+
+        /**
+         * @return the latency of the sample, in nanoseconds
+         */
+        public long getValue()
+        {
+            return value;
+        }
+
+        /**
+         * @return the request ID of the sample, or null if the request had none
+         */
+        public String getRequestId()
+        {
+            return requestId;
+        }
+
+        /**
+         * @return the time of the sample, in milliseconds since the epoch
+         */
+        public long getTimestamp()
+        {
+            return timestamp;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s@%x{value=%d,requestId=%s,timestamp=%s}", getClass().getSimpleName(), hashCode(), value, requestId, Instant.ofEpochMilli(timestamp));
+        }
+    }
+}
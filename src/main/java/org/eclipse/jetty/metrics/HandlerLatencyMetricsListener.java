@@ -0,0 +1,119 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+
+/**
+ * Aggregates the inclusive and exclusive latencies of every {@link Handler} of the server tree.
+ * <p>
+ * The handlers must be wrapped with {@link MetricsHandler#addToAllHandlers(org.eclipse.jetty.server.Server)}.
+ * Handlers do not belong to a context, so their series are only evicted by the budget or the idle time
+ * of the {@link #getMetricRegistry() registry}.
+ * </p>
+ */
+public class HandlerLatencyMetricsListener extends AbstractServletMetricsListener implements HandlerMetricsListener
+{
+    private final MetricRegistry registry = new MetricRegistry();
+    private final MetricRegistry.Table<Handler, HandlerStats> handlers = registry.newTable(HandlerLatencyMetricsListener::newHandlerStats);
+
+    private static HandlerStats newHandlerStats(Handler handler)
+    {
+        return new HandlerStats();
+    }
+
+    /**
+     * @return the registry of the series of this listener, to bound their memory and to read their evictions
+     */
+    public MetricRegistry getMetricRegistry()
+    {
+        return registry;
+    }
+
+    @Override
+    public int getInterests()
+    {
+        // Only the handler events are used.
+        return 0;
+    }
+
+    @Override
+    public void onHandlerEnter(Handler handler, Request baseRequest)
+    {
+    }
+
+    @Override
+    public void onHandlerExit(Handler handler, Request baseRequest, Duration inclusive, Duration exclusive, Throwable cause)
+    {
+        HandlerStats stats = handlers.acquire(null, handler);
+        stats.inclusive.record(inclusive.toNanos());
+        stats.exclusive.record(exclusive.toNanos());
+        if (cause != null)
+        {
+            stats.failures.incrementAndGet();
+        }
+    }
+
+    public Set<Handler> getHandlers()
+    {
+        return handlers.keySet();
+    }
+
+    /**
+     * @param handler the handler
+     * @return the latencies of the handler calls, or null if the handler was never called
+     */
+    public LatencyHistogram getInclusiveHistogram(Handler handler)
+    {
+        HandlerStats stats = handlers.get(handler);
+        return stats == null ? null : stats.inclusive;
+    }
+
+    /**
+     * @param handler the handler
+     * @return the latencies of the handler calls less the nested handler calls, or null if the handler was never called
+     */
+    public LatencyHistogram getExclusiveHistogram(Handler handler)
+    {
+        HandlerStats stats = handlers.get(handler);
+        return stats == null ? null : stats.exclusive;
+    }
+
+    /**
+     * @param handler the handler
+     * @return the number of handler calls that threw
+     */
+    public long getFailures(Handler handler)
+    {
+        HandlerStats stats = handlers.get(handler);
+        return stats == null ? 0 : stats.failures.get();
+    }
+
+    private static class HandlerStats
+    {
+        private final LatencyHistogram inclusive = new LatencyHistogram();
+        private final LatencyHistogram exclusive = new LatencyHistogram();
+        private final AtomicLong failures = new AtomicLong();
+    }
+}
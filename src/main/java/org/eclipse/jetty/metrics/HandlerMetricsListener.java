@@ -0,0 +1,62 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+
+/**
+ * A {@link ServletMetricsListener} that is told the time spent in every {@link Handler}
+ * of the server tree, once the handlers are wrapped with {@link MetricsHandler#addToAllHandlers(org.eclipse.jetty.server.Server)}.
+ * <p>
+ * The inclusive duration of a handler covers the whole of its {@link Handler#handle(String, Request, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)} call,
+ * its exclusive duration excludes the inclusive durations of the wrapped handlers nested in it,
+ * eg: the exclusive duration of a {@link org.eclipse.jetty.server.handler.gzip.GzipHandler}
+ * is the time it spends setting up and compressing outside of the handlers it wraps.
+ * </p>
+ * <p>
+ * Only the calls on the request thread are measured: a request going asynchronous is measured up to the return
+ * of the thread to the container, and the asynchronous dispatches are measured as new calls.
+ * The scoping work of a {@link org.eclipse.jetty.server.handler.ScopedHandler} nested in another
+ * is done before the nested handlers are called, and so is counted by the outermost one.
+ * </p>
+ */
+public interface HandlerMetricsListener extends ServletMetricsListener
+{
+    /**
+     * Event indicating a specific Handler was entered.
+     *
+     * @param handler the handler that was entered
+     * @param baseRequest the request that entered the handler
+     */
+    void onHandlerEnter(Handler handler, Request baseRequest);
+
+    /**
+     * Event indicating a specific Handler was exited.
+     *
+     * @param handler the handler that was exited
+     * @param baseRequest the request that exited the handler
+     * @param inclusive the duration of the handler call
+     * @param exclusive the duration of the handler call, less the calls to the nested handlers
+     * @param cause if exit condition was a result of a throwable, this will be populate, it will be null if exit was normal
+     */
+    void onHandlerExit(Handler handler, Request baseRequest, Duration inclusive, Duration exclusive, Throwable cause);
+}
@@ -0,0 +1,128 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.util.Collection;
+
+import org.eclipse.jetty.util.IncludeExclude;
+
+/**
+ * Include / exclude rules deciding which Servlets or Filters are instrumented.
+ * <p>
+ * Rules can be expressed on the class name of the component, on its name (as in
+ * {@code <servlet-name>} or {@code <filter-name>}), and on its mappings (the exact path specs,
+ * eg: {@code /} or {@code *.jsp}).
+ * A component is instrumented if it passes all three kinds of rules, an empty kind of rule passing everything.
+ * For mappings, a component is excluded if any of its path specs is excluded.
+ * </p>
+ * <p>
+ * The rules are evaluated once, when the component is wrapped by the {@link MetricsHandler},
+ * excluded components are not wrapped at all.
+ * </p>
+ */
+public class InstrumentationRules
+{
+    private final IncludeExclude<String> classNames = new IncludeExclude<>();
+    private final IncludeExclude<String> names = new IncludeExclude<>();
+    private final IncludeExclude<String> mappings = new IncludeExclude<>();
+
+    public void includeClassName(String... className)
+    {
+        classNames.include(className);
+    }
+
+    public void excludeClassName(String... className)
+    {
+        classNames.exclude(className);
+    }
+
+    public void includeName(String... name)
+    {
+        names.include(name);
+    }
+
+    public void excludeName(String... name)
+    {
+        names.exclude(name);
+    }
+
+    public void includeMapping(String... pathSpec)
+    {
+        mappings.include(pathSpec);
+    }
+
+    public void excludeMapping(String... pathSpec)
+    {
+        mappings.exclude(pathSpec);
+    }
+
+    /**
+     * @return true if there are no rules, and so every component is instrumented
+     */
+    public boolean isEmpty()
+    {
+        return classNames.isEmpty() && names.isEmpty() && mappings.isEmpty();
+    }
+
+    /**
+     * @return true if there are rules that can only be evaluated knowing the name or the mappings of the component
+     */
+    public boolean hasHolderRules()
+    {
+        return !names.isEmpty() || !mappings.isEmpty();
+    }
+
+    /**
+     * @param className the class name of the component
+     * @param name the name of the component, or null if unknown
+     * @param pathSpecs the path specs the component is mapped to, possibly empty
+     * @return true if the component is to be instrumented
+     */
+    public boolean isInstrumented(String className, String name, Collection<String> pathSpecs)
+    {
+        if (!classNames.test(className))
+        {
+            return false;
+        }
+        if (name != null && !names.test(name))
+        {
+            return false;
+        }
+        boolean included = false;
+        for (String pathSpec : pathSpecs)
+        {
+            Boolean matched = mappings.isIncludedAndNotExcluded(pathSpec);
+            if (Boolean.FALSE.equals(matched))
+            {
+                return false;
+            }
+            if (Boolean.TRUE.equals(matched))
+            {
+                included = true;
+            }
+        }
+        return included || !mappings.hasIncludes();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x{classNames=%s,names=%s,mappings=%s}", getClass().getSimpleName(), hashCode(), classNames, names, mappings);
+    }
+}
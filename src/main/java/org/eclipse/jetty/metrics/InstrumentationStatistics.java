@@ -0,0 +1,166 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the instrumentation done by a {@link MetricsHandler}: the components it wrapped or left alone,
+ * and the components registered dynamically.
+ * <p>
+ * These replace logging every wrap, which slowed down the startup of applications registering
+ * thousands of components.
+ * </p>
+ */
+public class InstrumentationStatistics
+{
+    private final AtomicLong wrappedServlets = new AtomicLong();
+    private final AtomicLong excludedServlets = new AtomicLong();
+    private final AtomicLong wrappedFilters = new AtomicLong();
+    private final AtomicLong excludedFilters = new AtomicLong();
+    private final AtomicLong alreadyWrapped = new AtomicLong();
+    private final AtomicLong wrappedConfigurations = new AtomicLong();
+    private final AtomicLong eventListeners = new AtomicLong();
+    private final AtomicLong dynamicRegistrations = new AtomicLong();
+    private final AtomicLong lateRegistrations = new AtomicLong();
+
+    void onServletWrapped()
+    {
+        wrappedServlets.incrementAndGet();
+    }
+
+    void onServletExcluded()
+    {
+        excludedServlets.incrementAndGet();
+    }
+
+    void onFilterWrapped()
+    {
+        wrappedFilters.incrementAndGet();
+    }
+
+    void onFilterExcluded()
+    {
+        excludedFilters.incrementAndGet();
+    }
+
+    void onAlreadyWrapped()
+    {
+        alreadyWrapped.incrementAndGet();
+    }
+
+    void onConfigurationWrapped()
+    {
+        wrappedConfigurations.incrementAndGet();
+    }
+
+    void onEventListener()
+    {
+        eventListeners.incrementAndGet();
+    }
+
+    void onDynamicRegistration(boolean late)
+    {
+        dynamicRegistrations.incrementAndGet();
+        if (late)
+        {
+            lateRegistrations.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of Servlets wrapped
+     */
+    public long getWrappedServlets()
+    {
+        return wrappedServlets.get();
+    }
+
+    /**
+     * @return the number of Servlets not wrapped because of the {@link MetricsHandler#getServletRules() rules}
+     */
+    public long getExcludedServlets()
+    {
+        return excludedServlets.get();
+    }
+
+    /**
+     * @return the number of Filters wrapped
+     */
+    public long getWrappedFilters()
+    {
+        return wrappedFilters.get();
+    }
+
+    /**
+     * @return the number of Filters not wrapped because of the {@link MetricsHandler#getFilterRules() rules}
+     */
+    public long getExcludedFilters()
+    {
+        return excludedFilters.get();
+    }
+
+    /**
+     * @return the number of Servlets, Filters and Configurations not wrapped because they already were
+     */
+    public long getAlreadyWrapped()
+    {
+        return alreadyWrapped.get();
+    }
+
+    /**
+     * @return the number of WebApp Configurations wrapped
+     */
+    public long getWrappedConfigurations()
+    {
+        return wrappedConfigurations.get();
+    }
+
+    /**
+     * @return the number of event listeners seen, they are never wrapped
+     */
+    public long getEventListeners()
+    {
+        return eventListeners.get();
+    }
+
+    /**
+     * @return the number of Servlets, Filters and listeners registered dynamically, including the late ones
+     */
+    public long getDynamicRegistrations()
+    {
+        return dynamicRegistrations.get();
+    }
+
+    /**
+     * @return the number of Servlets, Filters and listeners registered after their context started
+     */
+    public long getLateRegistrations()
+    {
+        return lateRegistrations.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x{servlets=%d/%d,filters=%d/%d,alreadyWrapped=%d,configurations=%d,eventListeners=%d,dynamic=%d,late=%d}",
+            getClass().getSimpleName(), hashCode(), getWrappedServlets(), getExcludedServlets(), getWrappedFilters(), getExcludedFilters(),
+            getAlreadyWrapped(), getWrappedConfigurations(), getEventListeners(), getDynamicRegistrations(), getLateRegistrations());
+    }
+}
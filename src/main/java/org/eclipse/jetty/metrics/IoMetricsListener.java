@@ -0,0 +1,86 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+
+/**
+ * A {@link ServletMetricsListener} that is told the Servlet 3.1 non-blocking I/O callbacks
+ * of every Servlet.
+ * <p>
+ * For listeners implementing this interface, the {@link MetricsServletWrapper} wraps the request and the response
+ * of the REQUEST dispatches of the Servlets supporting async, so that the {@link javax.servlet.ReadListener}
+ * and the {@link javax.servlet.WriteListener} they register are wrapped too.
+ * Every callback is notified when it returns, and the totals of the request are notified when its
+ * {@link javax.servlet.AsyncContext} completes.
+ * </p>
+ */
+public interface IoMetricsListener extends ServletMetricsListener
+{
+    enum Callback
+    {
+        /**
+         * {@link javax.servlet.ReadListener#onDataAvailable()}
+         */
+        DATA_AVAILABLE,
+        /**
+         * {@link javax.servlet.ReadListener#onAllDataRead()}
+         */
+        ALL_DATA_READ,
+        /**
+         * {@link javax.servlet.ReadListener#onError(Throwable)}
+         */
+        READ_ERROR,
+        /**
+         * {@link javax.servlet.WriteListener#onWritePossible()}
+         */
+        WRITE_POSSIBLE,
+        /**
+         * {@link javax.servlet.WriteListener#onError(Throwable)}
+         */
+        WRITE_ERROR
+    }
+
+    /**
+     * Event indicating a non-blocking I/O callback returned.
+     *
+     * @param servletContext the specific context that the servlet belongs to.
+     * @param servlet the servlet that registered the I/O listener
+     * @param request the request of the I/O
+     * @param callback the callback that returned
+     * @param duration the duration of the callback
+     * @param cause if the callback threw, this will be populated, it will be null if the callback returned normally
+     */
+    void onIoCallback(ServletContext servletContext, Servlet servlet, ServletRequest request, Callback callback, Duration duration, Throwable cause);
+
+    /**
+     * Event indicating the completion of a request that used non-blocking I/O.
+     *
+     * @param servletContext the specific context that the servlet belongs to.
+     * @param servlet the servlet that registered the I/O listeners
+     * @param request the request that completed
+     * @param callbacks the number of I/O callbacks of the request
+     * @param callbackTime the total duration of the I/O callbacks
+     * @param ioWait the time from the registration of the first I/O listener to the completion, outside of the callbacks
+     */
+    void onIoComplete(ServletContext servletContext, Servlet servlet, ServletRequest request, int callbacks, Duration callbackTime, Duration ioWait);
+}
@@ -0,0 +1,152 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+
+/**
+ * Aggregates the non-blocking I/O of every Servlet: the latencies of its I/O callbacks by kind,
+ * and the number of callbacks and the I/O wait of its requests, eg: to tell whether a streaming
+ * endpoint is slow because of its own processing or because of its clients.
+ */
+public class IoStatisticsListener extends AbstractServletMetricsListener implements IoMetricsListener
+{
+    private static final Callback[] CALLBACKS = Callback.values();
+
+    private final MetricRegistry registry = new MetricRegistry();
+    private final MetricRegistry.Table<Servlet, IoStats> servlets = registry.newTable(IoStatisticsListener::newIoStats);
+
+    private static IoStats newIoStats(Servlet servlet)
+    {
+        return new IoStats();
+    }
+
+    private IoStats getIoStats(ServletContext servletContext, Servlet servlet)
+    {
+        return servlets.acquire(servletContext, servlet);
+    }
+
+    /**
+     * @return the registry of the series of this listener, to bound their memory and to read their evictions
+     */
+    public MetricRegistry getMetricRegistry()
+    {
+        return registry;
+    }
+
+    @Override
+    public void onServletContextStopped(ServletContext servletContext)
+    {
+        registry.evictContext(servletContext);
+    }
+
+    @Override
+    public int getInterests()
+    {
+        // Only the I/O events are used.
+        return 0;
+    }
+
+    @Override
+    public void onIoCallback(ServletContext servletContext, Servlet servlet, ServletRequest request, Callback callback, Duration duration, Throwable cause)
+    {
+        IoStats stats = getIoStats(servletContext, servlet);
+        stats.callbacks[callback.ordinal()].record(duration.toNanos());
+        if (cause != null)
+        {
+            stats.failures.incrementAndGet(callback.ordinal());
+        }
+    }
+
+    @Override
+    public void onIoComplete(ServletContext servletContext, Servlet servlet, ServletRequest request, int callbacks, Duration callbackTime, Duration ioWait)
+    {
+        IoStats stats = getIoStats(servletContext, servlet);
+        stats.callbacksPerRequest.record(callbacks);
+        stats.ioWaits.record(ioWait.toNanos());
+    }
+
+    public Set<Servlet> getServlets()
+    {
+        return servlets.keySet();
+    }
+
+    /**
+     * @param servlet the servlet
+     * @param callback the kind of callback
+     * @return the latencies of the callbacks of the servlet, or null if the servlet never did non-blocking I/O
+     */
+    public LatencyHistogram getCallbackHistogram(Servlet servlet, Callback callback)
+    {
+        IoStats stats = servlets.get(servlet);
+        return stats == null ? null : stats.callbacks[callback.ordinal()];
+    }
+
+    /**
+     * @param servlet the servlet
+     * @param callback the kind of callback
+     * @return the number of callbacks of the servlet that threw
+     */
+    public long getCallbackFailures(Servlet servlet, Callback callback)
+    {
+        IoStats stats = servlets.get(servlet);
+        return stats == null ? 0 : stats.failures.get(callback.ordinal());
+    }
+
+    /**
+     * @param servlet the servlet
+     * @return the distribution of the number of callbacks per completed request, or null if the servlet never did non-blocking I/O
+     */
+    public LatencyHistogram getCallbacksPerRequest(Servlet servlet)
+    {
+        IoStats stats = servlets.get(servlet);
+        return stats == null ? null : stats.callbacksPerRequest;
+    }
+
+    /**
+     * @param servlet the servlet
+     * @return the I/O waits of the completed requests, or null if the servlet never did non-blocking I/O
+     */
+    public LatencyHistogram getIoWaitHistogram(Servlet servlet)
+    {
+        IoStats stats = servlets.get(servlet);
+        return stats == null ? null : stats.ioWaits;
+    }
+
+    private static class IoStats
+    {
+        private final LatencyHistogram[] callbacks = new LatencyHistogram[CALLBACKS.length];
+        private final AtomicLongArray failures = new AtomicLongArray(CALLBACKS.length);
+        private final LatencyHistogram callbacksPerRequest = new LatencyHistogram();
+        private final LatencyHistogram ioWaits = new LatencyHistogram();
+
+        private IoStats()
+        {
+            for (int i = 0; i < callbacks.length; i++)
+            {
+                callbacks[i] = new LatencyHistogram();
+            }
+        }
+    }
+}
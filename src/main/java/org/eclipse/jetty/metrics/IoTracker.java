@@ -0,0 +1,403 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.eclipse.jetty.metrics.IoMetricsListener.Callback;
+
+/**
+ * Tracks the non-blocking I/O of one request for an {@link IoMetricsListener}.
+ * <p>
+ * The request and response wrappers hand out streams that wrap the {@link ReadListener}
+ * and the {@link WriteListener} registered on them, and the request wrapper listens to the
+ * {@link AsyncContext} it starts to notify the totals of the request when it completes.
+ * </p>
+ */
+class IoTracker implements AsyncListener
+{
+    private final IoMetricsListener ioListener;
+    private final ServletContext servletContext;
+    private final Servlet servlet;
+    private final ServletRequest request;
+    private final AtomicLong registered = new AtomicLong();
+    private final AtomicInteger callbacks = new AtomicInteger();
+    private final AtomicLong callbackTime = new AtomicLong();
+    private final AtomicBoolean listening = new AtomicBoolean();
+
+    IoTracker(IoMetricsListener ioListener, ServletContext servletContext, Servlet servlet, ServletRequest request)
+    {
+        this.ioListener = ioListener;
+        this.servletContext = servletContext;
+        this.servlet = servlet;
+        this.request = request;
+    }
+
+    HttpServletRequest wrapRequest(HttpServletRequest request)
+    {
+        return new TrackingRequest(request);
+    }
+
+    HttpServletResponse wrapResponse(HttpServletResponse response)
+    {
+        return new TrackingResponse(response);
+    }
+
+    private void onRegistered()
+    {
+        // Zero is a valid nanoTime, but losing one request to it is harmless.
+        registered.compareAndSet(0, System.nanoTime());
+    }
+
+    private void onCallback(Callback callback, long start, Throwable cause)
+    {
+        long end = System.nanoTime();
+        long dur = end - start;
+        callbacks.incrementAndGet();
+        callbackTime.addAndGet(dur);
+        ioListener.onIoCallback(servletContext, servlet, request, callback, Duration.ofNanos(dur), cause);
+    }
+
+    private void listen(AsyncContext asyncContext)
+    {
+        if (listening.compareAndSet(false, true))
+        {
+            asyncContext.addListener(this);
+        }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event)
+    {
+        long start = registered.get();
+        if (start == 0)
+        {
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        long time = callbackTime.get();
+        ioListener.onIoComplete(servletContext, servlet, request, callbacks.get(), Duration.ofNanos(time), Duration.ofNanos(Math.max(0, elapsed - time)));
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event)
+    {
+    }
+
+    @Override
+    public void onError(AsyncEvent event)
+    {
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event)
+    {
+        // Listeners must register again when async is restarted.
+        event.getAsyncContext().addListener(this);
+    }
+
+    private class TrackingRequest extends HttpServletRequestWrapper
+    {
+        private TrackingInputStream input;
+
+        private TrackingRequest(HttpServletRequest request)
+        {
+            super(request);
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException
+        {
+            ServletInputStream stream = super.getInputStream();
+            if (input == null || input.delegate != stream)
+            {
+                input = new TrackingInputStream(stream);
+            }
+            return input;
+        }
+
+        @Override
+        public AsyncContext startAsync() throws IllegalStateException
+        {
+            AsyncContext asyncContext = super.startAsync();
+            listen(asyncContext);
+            return asyncContext;
+        }
+
+        @Override
+        public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse) throws IllegalStateException
+        {
+            AsyncContext asyncContext = super.startAsync(servletRequest, servletResponse);
+            listen(asyncContext);
+            return asyncContext;
+        }
+    }
+
+    private class TrackingResponse extends HttpServletResponseWrapper
+    {
+        private TrackingOutputStream output;
+
+        private TrackingResponse(HttpServletResponse response)
+        {
+            super(response);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException
+        {
+            ServletOutputStream stream = super.getOutputStream();
+            if (output == null || output.delegate != stream)
+            {
+                output = new TrackingOutputStream(stream);
+            }
+            return output;
+        }
+    }
+
+    private class TrackingInputStream extends ServletInputStream
+    {
+        private final ServletInputStream delegate;
+
+        private TrackingInputStream(ServletInputStream delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean isFinished()
+        {
+            return delegate.isFinished();
+        }
+
+        @Override
+        public boolean isReady()
+        {
+            return delegate.isReady();
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener)
+        {
+            onRegistered();
+            delegate.setReadListener(new TrackingReadListener(readListener));
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            return delegate.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            return delegate.read(b, off, len);
+        }
+
+        @Override
+        public int readLine(byte[] b, int off, int len) throws IOException
+        {
+            return delegate.readLine(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            return delegate.available();
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            return delegate.skip(n);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            delegate.close();
+        }
+    }
+
+    private class TrackingOutputStream extends ServletOutputStream
+    {
+        private final ServletOutputStream delegate;
+
+        private TrackingOutputStream(ServletOutputStream delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean isReady()
+        {
+            return delegate.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener)
+        {
+            onRegistered();
+            delegate.setWriteListener(new TrackingWriteListener(writeListener));
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            delegate.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            delegate.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            delegate.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            delegate.close();
+        }
+    }
+
+    private class TrackingReadListener implements ReadListener
+    {
+        private final ReadListener delegate;
+
+        private TrackingReadListener(ReadListener delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException
+        {
+            long start = System.nanoTime();
+            try
+            {
+                delegate.onDataAvailable();
+                onCallback(Callback.DATA_AVAILABLE, start, null);
+            }
+            catch (Throwable cause)
+            {
+                onCallback(Callback.DATA_AVAILABLE, start, cause);
+                throw cause;
+            }
+        }
+
+        @Override
+        public void onAllDataRead() throws IOException
+        {
+            long start = System.nanoTime();
+            try
+            {
+                delegate.onAllDataRead();
+                onCallback(Callback.ALL_DATA_READ, start, null);
+            }
+            catch (Throwable cause)
+            {
+                onCallback(Callback.ALL_DATA_READ, start, cause);
+                throw cause;
+            }
+        }
+
+        @Override
+        public void onError(Throwable failure)
+        {
+            long start = System.nanoTime();
+            try
+            {
+                delegate.onError(failure);
+                onCallback(Callback.READ_ERROR, start, null);
+            }
+            catch (Throwable cause)
+            {
+                onCallback(Callback.READ_ERROR, start, cause);
+                throw cause;
+            }
+        }
+    }
+
+    private class TrackingWriteListener implements WriteListener
+    {
+        private final WriteListener delegate;
+
+        private TrackingWriteListener(WriteListener delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void onWritePossible() throws IOException
+        {
+            long start = System.nanoTime();
+            try
+            {
+                delegate.onWritePossible();
+                onCallback(Callback.WRITE_POSSIBLE, start, null);
+            }
+            catch (Throwable cause)
+            {
+                onCallback(Callback.WRITE_POSSIBLE, start, cause);
+                throw cause;
+            }
+        }
+
+        @Override
+        public void onError(Throwable failure)
+        {
+            long start = System.nanoTime();
+            try
+            {
+                delegate.onError(failure);
+                onCallback(Callback.WRITE_ERROR, start, null);
+            }
+            catch (Throwable cause)
+            {
+                onCallback(Callback.WRITE_ERROR, start, cause);
+                throw cause;
+            }
+        }
+    }
+}
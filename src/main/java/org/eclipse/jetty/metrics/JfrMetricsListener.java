@@ -0,0 +1,62 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import org.eclipse.jetty.webapp.Configuration;
+import org.eclipse.jetty.webapp.WebAppContext;
+
+/**
+ * Emits Java Flight Recorder events for Servlet and Filter calls and initializations,
+ * and for the configuration steps of WebApps.
+ * <p>
+ * This library is a multi-release jar: on Java 11 and later this class is replaced by one
+ * emitting {@code jdk.jfr.Event}s, which cost next to nothing while no recording is enabling them.
+ * On Java 8 this class does nothing, see {@link #isSupported()}.
+ * </p>
+ */
+public class JfrMetricsListener extends AbstractServletMetricsListener implements WebAppMetricsListener
+{
+    /**
+     * @return true if this JVM can emit the events
+     */
+    public static boolean isSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public void onWebAppConfigureStart(WebAppContext context, Configuration configuration, ConfigurationStep configurationStep)
+    {
+    }
+
+    @Override
+    public void onWebAppConfigureFinished(WebAppContext context, Configuration configuration, ConfigurationStep configurationStep)
+    {
+    }
+
+    @Override
+    public void onWebAppStarting(WebAppContext context)
+    {
+    }
+
+    @Override
+    public void onWebAppReady(WebAppContext context)
+    {
+    }
+}
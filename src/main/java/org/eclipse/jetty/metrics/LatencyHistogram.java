@@ -0,0 +1,278 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent, fixed size, log-linear histogram of nanosecond latencies.
+ * <p>
+ * Every power of two is split into {@value #SUB_BUCKETS} linear sub-buckets, which
+ * bounds the relative error of any reported value to about 3%.
+ * Values larger than {@link #MAX_VALUE} (about 68 seconds) are counted in the last bucket.
+ * </p>
+ * <p>
+ * Recording is a handful of atomic increments and never allocates.
+ * Reads are not atomic with respect to concurrent writers.
+ * </p>
+ */
+public class LatencyHistogram implements LatencyRecorder
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_VALUE_BITS = 36;
+    public static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+    public static final int BUCKETS = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value the value, in nanoseconds
+     * @return the index of the bucket that counts the value
+     */
+    public static int bucketIndex(long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int)Math.max(0, value);
+        }
+        if (value > MAX_VALUE)
+        {
+            value = MAX_VALUE;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int)(value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @param index the bucket index
+     * @return the lowest value counted by the bucket
+     */
+    public static long bucketLowestValue(int index)
+    {
+        int group = index >>> SUB_BUCKET_BITS;
+        if (group == 0)
+        {
+            return index;
+        }
+        long subBucket = (index & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+        return subBucket << (group - 1);
+    }
+
+    /**
+     * @param index the bucket index
+     * @return the value reported for samples counted by the bucket, the middle of its range
+     */
+    public static long bucketValue(int index)
+    {
+        int group = index >>> SUB_BUCKET_BITS;
+        if (group <= 1)
+        {
+            return bucketLowestValue(index);
+        }
+        return bucketLowestValue(index) + (1L << (group - 2));
+    }
+
+    @Override
+    public void record(long value)
+    {
+        counts.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+        {
+            current = max.get();
+        }
+    }
+
+    @Override
+    public void record(long value, long expectedInterval)
+    {
+        record(value);
+        backFill(value, expectedInterval, this::addBackFill);
+    }
+
+    private void addBackFill(int index, long bucket, long bucketTotal)
+    {
+        counts.addAndGet(index, bucket);
+        count.addAndGet(bucket);
+        total.addAndGet(bucketTotal);
+    }
+
+    /**
+     * Computes, bucket by bucket, the samples back-filled by {@link #record(long, long)},
+     * so that a long stall with a short interval does not record millions of samples one by one.
+     *
+     * @param value the latency, in nanoseconds
+     * @param expectedInterval the expected interval between the requests, in nanoseconds
+     * @param buckets told the bucket index, the number and the sum of the back-filled samples of every bucket
+     */
+    static void backFill(long value, long expectedInterval, BackFill buckets)
+    {
+        if (expectedInterval <= 0)
+        {
+            return;
+        }
+        long missing = value - expectedInterval;
+        while (missing >= expectedInterval)
+        {
+            int index = bucketIndex(missing);
+            long lowest = Math.max(expectedInterval, bucketLowestValue(index));
+            long samples = (missing - lowest) / expectedInterval + 1;
+            long last = missing - (samples - 1) * expectedInterval;
+            // The sum of an arithmetic progression, in floating point as it can exceed a long for tiny intervals.
+            buckets.add(index, samples, (long)Math.min(Long.MAX_VALUE, samples * ((double)missing + last) / 2));
+            missing = last - expectedInterval;
+        }
+    }
+
+    interface BackFill
+    {
+        void add(int index, long samples, long total);
+    }
+
+    /**
+     * Adds all the samples of the given histogram to this histogram.
+     *
+     * @param histogram the histogram to add
+     */
+    public void add(LatencyHistogram histogram)
+    {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            long bucket = histogram.counts.get(i);
+            if (bucket != 0)
+            {
+                counts.addAndGet(i, bucket);
+            }
+        }
+        addTotals(histogram.count.get(), histogram.total.get(), histogram.max.get());
+    }
+
+    void addBucket(int index, long bucket)
+    {
+        counts.addAndGet(index, bucket);
+    }
+
+    void addTotals(long count, long total, long max)
+    {
+        this.count.addAndGet(count);
+        this.total.addAndGet(total);
+        long current = this.max.get();
+        while (max > current && !this.max.compareAndSet(current, max))
+        {
+            current = this.max.get();
+        }
+    }
+
+    /**
+     * @return a copy of this histogram
+     */
+    @Override
+    public LatencyHistogram getHistogram()
+    {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.add(this);
+        return copy;
+    }
+
+    /**
+     * Clears all samples, concurrent writers may have their samples lost.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getCount(int index)
+    {
+        return counts.get(index);
+    }
+
+    /**
+     * @return the sum of all recorded values, in nanoseconds
+     */
+    public long getTotal()
+    {
+        return total.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public long getMean()
+    {
+        long n = getCount();
+        return n == 0 ? 0 : getTotal() / n;
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the value at the percentile, in nanoseconds, or 0 if the histogram is empty
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            n += counts.get(i);
+        }
+        if (n == 0)
+        {
+            return 0;
+        }
+        long rank = Math.max(1, (long)Math.ceil(Math.min(100.0, percentile) / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts.get(i);
+            if (seen >= rank)
+            {
+                return Math.min(bucketValue(i), Math.max(getMax(), bucketLowestValue(i)));
+            }
+        }
+        return getMax();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x{count=%d,mean=%d,p50=%d,p99=%d,max=%d}",
+            getClass().getSimpleName(), hashCode(), getCount(), getMean(),
+            getValueAtPercentile(50), getValueAtPercentile(99), getMax());
+    }
+}
@@ -0,0 +1,143 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compact binary serialization of {@link LatencyHistogram}s, to ship them from every node
+ * to a collector that merges them.
+ * <p>
+ * All histograms share the same bucket boundaries, so merging the histograms of several nodes
+ * is exact: the percentiles of the merged histogram are those of all the samples of all the nodes,
+ * within the relative error of the buckets, which averaging per-node percentiles is not.
+ * </p>
+ * <p>
+ * Only the non-empty buckets are written, as variable length gaps between bucket indexes and
+ * counts, so a typical per-interval histogram of a Servlet takes a few hundred bytes.
+ * </p>
+ */
+public final class LatencyHistogramCodec
+{
+    private static final byte VERSION = 1;
+
+    private LatencyHistogramCodec()
+    {
+    }
+
+    /**
+     * @param histogram the histogram to encode, which should not be recorded into concurrently
+     * @return the encoded histogram
+     */
+    public static byte[] encode(LatencyHistogram histogram)
+    {
+        int buckets = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++)
+        {
+            if (histogram.getCount(i) != 0)
+            {
+                buckets++;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(1 + (4 + 2 * buckets) * VarLong.MAX_LENGTH);
+        buffer.put(VERSION);
+        VarLong.put(buffer, histogram.getCount());
+        VarLong.put(buffer, histogram.getTotal());
+        VarLong.put(buffer, histogram.getMax());
+        VarLong.put(buffer, buckets);
+        int previous = -1;
+        for (int i = 0; i < LatencyHistogram.BUCKETS && buckets > 0; i++)
+        {
+            long count = histogram.getCount(i);
+            if (count != 0)
+            {
+                VarLong.put(buffer, i - previous - 1);
+                VarLong.put(buffer, count);
+                previous = i;
+                buckets--;
+            }
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * @param bytes an histogram encoded by {@link #encode(LatencyHistogram)}
+     * @return the decoded histogram
+     * @throws IllegalArgumentException if the bytes are not an encoded histogram
+     */
+    public static LatencyHistogram decode(byte[] bytes)
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        decodeInto(bytes, histogram);
+        return histogram;
+    }
+
+    /**
+     * Merges encoded histograms, eg: from several nodes.
+     *
+     * @param encoded the histograms encoded by {@link #encode(LatencyHistogram)}
+     * @return the histogram of all the samples of the given histograms
+     * @throws IllegalArgumentException if some bytes are not an encoded histogram
+     */
+    public static LatencyHistogram merge(Iterable<byte[]> encoded)
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (byte[] bytes : encoded)
+        {
+            decodeInto(bytes, histogram);
+        }
+        return histogram;
+    }
+
+    private static void decodeInto(byte[] bytes, LatencyHistogram histogram)
+    {
+        try
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            byte version = buffer.get();
+            if (version != VERSION)
+            {
+                throw new IllegalArgumentException("Unsupported version " + version);
+            }
+            long count = VarLong.get(buffer);
+            long total = VarLong.get(buffer);
+            long max = VarLong.get(buffer);
+            long buckets = VarLong.get(buffer);
+            int index = -1;
+            for (long i = 0; i < buckets; i++)
+            {
+                long gap = VarLong.get(buffer);
+                if (gap >= LatencyHistogram.BUCKETS - index - 1)
+                {
+                    throw new IllegalArgumentException("Invalid bucket index");
+                }
+                index += (int)gap + 1;
+                histogram.addBucket(index, VarLong.get(buffer));
+            }
+            histogram.addTotals(count, total, max);
+        }
+        catch (BufferUnderflowException x)
+        {
+            throw new IllegalArgumentException("Truncated histogram", x);
+        }
+    }
+}
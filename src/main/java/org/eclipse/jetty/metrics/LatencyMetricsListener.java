@@ -0,0 +1,390 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.Filter;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+
+/**
+ * Aggregates the latencies of every Servlet and Filter since startup.
+ * <p>
+ * Optionally, the latencies are also recorded corrected for the coordinated omission:
+ * when a component stalls, eg: during a GC pause, only the few requests that were being serviced
+ * are recorded, while the requests queued behind them are not, and the high percentiles are understated.
+ * Given the interval at which requests are expected to arrive, either configured or learned per component,
+ * the corrected histograms are back-filled with the samples a stall hid, see {@link LatencyRecorder#record(long, long)}.
+ * The correction assumes requests are serviced one at a time, so it overstates the tail of components
+ * servicing many requests concurrently; the raw histograms are always recorded too.
+ * </p>
+ * <p>
+ * Optionally, {@link Exemplars} are kept for the buckets of the raw histograms, linking them to
+ * the {@link MetricsHandler#ATTR_REQUEST_ID request IDs} of recent samples.
+ * </p>
+ */
+public class LatencyMetricsListener extends AbstractServletMetricsListener
+{
+    public enum RecordingMode
+    {
+        /**
+         * All threads record into a single {@link LatencyHistogram} per component.
+         */
+        SHARED,
+        /**
+         * Every thread records into its own shard per component, see {@link ThreadShardedLatencyRecorder}.
+         */
+        THREAD_SHARDED
+    }
+
+    private final MetricRegistry registry = new MetricRegistry();
+    private final MetricRegistry.Table<Servlet, LatencyRecorder> servlets = registry.newTable(this::newLatencyRecorder);
+    private final MetricRegistry.Table<Filter, LatencyRecorder> filters = registry.newTable(this::newLatencyRecorder);
+    private final MetricRegistry.Table<Object, Correction> corrections = registry.newTable(this::newCorrection);
+    private final Map<String, Duration> expectedIntervals = new ConcurrentHashMap<>();
+    private final MetricRegistry.Table<Object, Exemplars> exemplars = registry.newTable(c -> new Exemplars());
+    private final RecordingMode recordingMode;
+    private volatile Duration expectedInterval;
+    private volatile boolean learnExpectedInterval;
+    private volatile boolean correcting;
+    private volatile boolean recordExemplars;
+
+    public LatencyMetricsListener()
+    {
+        this(RecordingMode.SHARED);
+    }
+
+    public LatencyMetricsListener(RecordingMode recordingMode)
+    {
+        this.recordingMode = recordingMode;
+    }
+
+    public RecordingMode getRecordingMode()
+    {
+        return recordingMode;
+    }
+
+    /**
+     * @return the interval at which requests are expected to arrive at every component, or null if not configured
+     */
+    public Duration getExpectedInterval()
+    {
+        return expectedInterval;
+    }
+
+    /**
+     * Sets the interval at which requests are expected to arrive at every component, enabling the correction
+     * of the coordinated omission.
+     * Like the other correction settings, it is read when a component is first called.
+     *
+     * @param expectedInterval the expected interval, or null to not configure one
+     */
+    public void setExpectedInterval(Duration expectedInterval)
+    {
+        this.expectedInterval = expectedInterval;
+        updateCorrecting();
+    }
+
+    /**
+     * Sets the interval at which requests are expected to arrive at the components of a class,
+     * overriding {@link #setExpectedInterval(Duration)}.
+     *
+     * @param className the class name of the Servlets or Filters
+     * @param expectedInterval the expected interval, or null to remove it
+     */
+    public void setExpectedInterval(String className, Duration expectedInterval)
+    {
+        if (expectedInterval == null)
+        {
+            expectedIntervals.remove(className);
+        }
+        else
+        {
+            expectedIntervals.put(className, expectedInterval);
+        }
+        updateCorrecting();
+    }
+
+    public boolean isLearnExpectedInterval()
+    {
+        return learnExpectedInterval;
+    }
+
+    /**
+     * @param learnExpectedInterval true to learn the expected interval of the components that have none configured,
+     * from a moving average of the intervals between the arrivals of their requests
+     */
+    public void setLearnExpectedInterval(boolean learnExpectedInterval)
+    {
+        this.learnExpectedInterval = learnExpectedInterval;
+        updateCorrecting();
+    }
+
+    public boolean isRecordExemplars()
+    {
+        return recordExemplars;
+    }
+
+    /**
+     * @param recordExemplars true to keep the request ID of a recent sample for every bucket,
+     * which requires the {@link MetricsHandler} to be added to the connectors to set the request IDs
+     */
+    public void setRecordExemplars(boolean recordExemplars)
+    {
+        this.recordExemplars = recordExemplars;
+    }
+
+    private void recordExemplar(ServletContext servletContext, Object component, ServletRequest request, long value)
+    {
+        Object requestId = request == null ? null : request.getAttribute(MetricsHandler.ATTR_REQUEST_ID);
+        if (requestId == null)
+        {
+            return;
+        }
+        Exemplars slots = exemplars.acquire(servletContext, component);
+        slots.record(value, requestId.toString(), System.currentTimeMillis());
+    }
+
+    private void updateCorrecting()
+    {
+        correcting = expectedInterval != null || !expectedIntervals.isEmpty() || learnExpectedInterval;
+    }
+
+    private Correction newCorrection(Object component)
+    {
+        Duration interval = expectedIntervals.get(component.getClass().getName());
+        if (interval == null)
+        {
+            interval = expectedInterval;
+        }
+        long nanos = interval == null ? 0 : interval.toNanos();
+        return new Correction(newLatencyRecorder(component), nanos, nanos == 0 && learnExpectedInterval);
+    }
+
+    private void correct(ServletContext servletContext, Object component, long value)
+    {
+        Correction correction = corrections.acquire(servletContext, component);
+        correction.record(value);
+    }
+
+    protected LatencyRecorder newLatencyRecorder(Object component)
+    {
+        switch (recordingMode)
+        {
+            case THREAD_SHARDED:
+                return new ThreadShardedLatencyRecorder();
+            default:
+                return new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @return the registry of the series of this listener, to bound their memory and to read their evictions
+     */
+    public MetricRegistry getMetricRegistry()
+    {
+        return registry;
+    }
+
+    @Override
+    public void onServletContextStopped(ServletContext servletContext)
+    {
+        registry.evictContext(servletContext);
+    }
+
+    @Override
+    public int getInterests()
+    {
+        return INTEREST_EXITS;
+    }
+
+    @Override
+    public void onFilterExit(ServletContext servletContext, Filter filter, ServletRequest request, Duration duration, Throwable cause)
+    {
+        LatencyRecorder recorder = filters.acquire(servletContext, filter);
+        long value = duration.toNanos();
+        recorder.record(value);
+        if (correcting)
+        {
+            correct(servletContext, filter, value);
+        }
+        if (recordExemplars)
+        {
+            recordExemplar(servletContext, filter, request, value);
+        }
+    }
+
+    @Override
+    public void onServletExit(ServletContext servletContext, Servlet servlet, ServletRequest request, Duration duration, Throwable cause)
+    {
+        LatencyRecorder recorder = servlets.acquire(servletContext, servlet);
+        long value = duration.toNanos();
+        recorder.record(value);
+        if (correcting)
+        {
+            correct(servletContext, servlet, value);
+        }
+        if (recordExemplars)
+        {
+            recordExemplar(servletContext, servlet, request, value);
+        }
+    }
+
+    public Set<Servlet> getServlets()
+    {
+        return servlets.keySet();
+    }
+
+    public Set<Filter> getFilters()
+    {
+        return filters.keySet();
+    }
+
+    /**
+     * @param servlet the servlet
+     * @return the latencies of the servlet since startup, or null if the servlet was never called
+     */
+    public LatencyHistogram getServletHistogram(Servlet servlet)
+    {
+        LatencyRecorder recorder = servlets.get(servlet);
+        return recorder == null ? null : recorder.getHistogram();
+    }
+
+    /**
+     * @param filter the filter
+     * @return the latencies of the filter since startup, or null if the filter was never called
+     */
+    public LatencyHistogram getFilterHistogram(Filter filter)
+    {
+        LatencyRecorder recorder = filters.get(filter);
+        return recorder == null ? null : recorder.getHistogram();
+    }
+
+    /**
+     * @param servlet the servlet
+     * @return the latencies of the servlet since startup corrected for the coordinated omission,
+     * or null if not corrected or if the servlet was never called
+     */
+    public LatencyHistogram getCorrectedServletHistogram(Servlet servlet)
+    {
+        Correction correction = corrections.get(servlet);
+        return correction == null ? null : correction.recorder.getHistogram();
+    }
+
+    /**
+     * @param filter the filter
+     * @return the latencies of the filter since startup corrected for the coordinated omission,
+     * or null if not corrected or if the filter was never called
+     */
+    public LatencyHistogram getCorrectedFilterHistogram(Filter filter)
+    {
+        Correction correction = corrections.get(filter);
+        return correction == null ? null : correction.recorder.getHistogram();
+    }
+
+    /**
+     * @param servlet the servlet
+     * @return the exemplars of the servlet, or null if not recorded or if the servlet was never called
+     */
+    public Exemplars getServletExemplars(Servlet servlet)
+    {
+        return exemplars.get(servlet);
+    }
+
+    /**
+     * @param filter the filter
+     * @return the exemplars of the filter, or null if not recorded or if the filter was never called
+     */
+    public Exemplars getFilterExemplars(Filter filter)
+    {
+        return exemplars.get(filter);
+    }
+
+    /**
+     * @param component the servlet or filter
+     * @return the interval used to correct the latencies of the component, or null if not corrected or not yet learned
+     */
+    public Duration getExpectedInterval(Object component)
+    {
+        Correction correction = corrections.get(component);
+        long interval = correction == null ? 0 : correction.getExpectedInterval();
+        return interval <= 0 ? null : Duration.ofNanos(interval);
+    }
+
+    private static class Correction
+    {
+        // The weight of a new arrival interval in the learned interval.
+        private static final double ALPHA = 0.05;
+        // The arrivals to see before the learned interval is used.
+        private static final int WARMUP = 20;
+
+        private final LatencyRecorder recorder;
+        private final long configuredInterval;
+        private final boolean learn;
+        private final AtomicLong lastArrival = new AtomicLong();
+        private final AtomicInteger arrivals = new AtomicInteger();
+        // Updated without atomicity, a lost update only delays the convergence of the average.
+        private volatile double learnedInterval;
+
+        private Correction(LatencyRecorder recorder, long configuredInterval, boolean learn)
+        {
+            this.recorder = recorder;
+            this.configuredInterval = configuredInterval;
+            this.learn = learn;
+        }
+
+        private void record(long value)
+        {
+            if (learn)
+            {
+                learn(System.nanoTime() - value);
+            }
+            recorder.record(value, getExpectedInterval());
+        }
+
+        private void learn(long arrival)
+        {
+            long previous = lastArrival.get();
+            // Requests exit out of order, only the intervals between increasing arrivals are averaged.
+            if (arrival <= previous || !lastArrival.compareAndSet(previous, arrival) || previous == 0)
+            {
+                return;
+            }
+            long interval = arrival - previous;
+            double learned = learnedInterval;
+            learnedInterval = learned == 0 ? interval : learned + ALPHA * (interval - learned);
+            arrivals.incrementAndGet();
+        }
+
+        private long getExpectedInterval()
+        {
+            if (!learn)
+            {
+                return configuredInterval;
+            }
+            return arrivals.get() < WARMUP ? 0 : (long)learnedInterval;
+        }
+    }
+}
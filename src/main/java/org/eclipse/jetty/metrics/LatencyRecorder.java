@@ -0,0 +1,56 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+/**
+ * Records latencies, in nanoseconds, for later aggregation into a {@link LatencyHistogram}.
+ */
+public interface LatencyRecorder
+{
+    /**
+     * @param value the latency, in nanoseconds
+     */
+    void record(long value);
+
+    /**
+     * Records the latency, and back-fills the samples that a stall of that length kept from being recorded,
+     * as HdrHistogram does to correct the coordinated omission: assuming that requests keep arriving every
+     * {@code expectedInterval}, the latencies {@code value - expectedInterval}, {@code value - 2 * expectedInterval}, ...
+     * down to {@code expectedInterval} are recorded too.
+     *
+     * @param value the latency, in nanoseconds
+     * @param expectedInterval the expected interval between the requests, in nanoseconds, or 0 for no correction
+     */
+    default void record(long value, long expectedInterval)
+    {
+        record(value);
+        if (expectedInterval > 0)
+        {
+            for (long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval)
+            {
+                record(missing);
+            }
+        }
+    }
+
+    /**
+     * @return a histogram of all the latencies recorded so far, that is not modified by further recording
+     */
+    LatencyHistogram getHistogram();
+}
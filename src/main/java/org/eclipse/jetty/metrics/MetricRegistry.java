@@ -0,0 +1,424 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import javax.servlet.ServletContext;
+
+/**
+ * The memory-bounded storage of the series of an aggregating listener, eg: the histogram of every Servlet.
+ * <p>
+ * A registry holds one or more {@link Table tables}, each mapping a component to its series.
+ * Every series remembers the {@link ServletContext} it was recorded in, and all the series of a context
+ * are evicted when the context stops, so that redeploying a WebApp does not leak the metrics of
+ * its previous Servlets and Filters.
+ * </p>
+ * <p>
+ * The registry can be bounded by a maximum number of series, across all of its tables, in which case the
+ * least recently recorded series is evicted when a new series exceeds the budget, and by a maximum idle time,
+ * in which case the series that were not recorded for longer are evicted when a new series is added or when
+ * {@link #evictIdle()} is called, eg: periodically by a scheduler.
+ * Finding the least recently recorded series scans all of them, which is only done when adding a series
+ * over the budget.
+ * Samples recorded concurrently with the eviction of their series may be lost.
+ * The access time of the series is only tracked while a bound is set, so that an unbounded
+ * registry costs no clock read on recording; setting the first bound starts all the series afresh.
+ * </p>
+ */
+public class MetricRegistry
+{
+    // Recording a series only updates its access time when it changed by more than this.
+    private static final long TOUCH_RESOLUTION_NANOS = 1_000_000;
+
+    private final List<Table<?, ?>> tables = new CopyOnWriteArrayList<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong budgetEvictions = new AtomicLong();
+    private final AtomicLong idleEvictions = new AtomicLong();
+    private final AtomicLong contextEvictions = new AtomicLong();
+    private final AtomicLong lastIdleSweep;
+    private final LongSupplier nanoClock;
+    private volatile int maxSeries = Integer.MAX_VALUE;
+    private volatile long maxIdleNanos;
+    private volatile boolean bounded;
+
+    public MetricRegistry()
+    {
+        this(System::nanoTime);
+    }
+
+    MetricRegistry(LongSupplier nanoClock)
+    {
+        this.nanoClock = nanoClock;
+        this.lastIdleSweep = new AtomicLong(nanoClock.getAsLong());
+    }
+
+    /**
+     * @param factory creates the series of a component, the first time it is recorded
+     * @param <K> the type of the components
+     * @param <V> the type of the series
+     * @return a new table of this registry
+     */
+    public <K, V> Table<K, V> newTable(Function<? super K, ? extends V> factory)
+    {
+        Table<K, V> table = new Table<>(this, factory);
+        tables.add(table);
+        return table;
+    }
+
+    /**
+     * @return the maximum number of series, across all the tables
+     */
+    public int getMaxSeries()
+    {
+        return maxSeries;
+    }
+
+    /**
+     * @param maxSeries the maximum number of series, across all the tables, or {@link Integer#MAX_VALUE} for no limit
+     */
+    public void setMaxSeries(int maxSeries)
+    {
+        if (maxSeries <= 0)
+        {
+            throw new IllegalArgumentException("Invalid max series " + maxSeries);
+        }
+        this.maxSeries = maxSeries;
+        updateBounded();
+        evictLeastRecentlyUsed();
+    }
+
+    /**
+     * @return the time after which a series that is not recorded is evicted, or {@link Duration#ZERO} if never
+     */
+    public Duration getMaxIdleTime()
+    {
+        return Duration.ofNanos(maxIdleNanos);
+    }
+
+    /**
+     * @param maxIdleTime the time after which a series that is not recorded is evicted, or {@link Duration#ZERO} for never
+     */
+    public void setMaxIdleTime(Duration maxIdleTime)
+    {
+        if (maxIdleTime.isNegative())
+        {
+            throw new IllegalArgumentException("Invalid max idle time " + maxIdleTime);
+        }
+        this.maxIdleNanos = maxIdleTime.toNanos();
+        updateBounded();
+    }
+
+    private void updateBounded()
+    {
+        boolean wasBounded = bounded;
+        bounded = maxSeries != Integer.MAX_VALUE || maxIdleNanos > 0;
+        if (bounded && !wasBounded)
+        {
+            // The access times were not tracked, every series starts from now.
+            long now = nanoClock.getAsLong();
+            for (Table<?, ?> table : tables)
+            {
+                for (Series<?> series : table.series.values())
+                {
+                    series.lastAccess = now;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of series, across all the tables
+     */
+    public int getSeriesCount()
+    {
+        return size.get();
+    }
+
+    /**
+     * @return the number of series evicted for any reason
+     */
+    public long getEvictions()
+    {
+        return getBudgetEvictions() + getIdleEvictions() + getContextEvictions();
+    }
+
+    /**
+     * @return the number of least recently recorded series evicted to stay within the maximum number of series
+     */
+    public long getBudgetEvictions()
+    {
+        return budgetEvictions.get();
+    }
+
+    /**
+     * @return the number of series evicted because they were not recorded for longer than the maximum idle time
+     */
+    public long getIdleEvictions()
+    {
+        return idleEvictions.get();
+    }
+
+    /**
+     * @return the number of series evicted because their context stopped
+     */
+    public long getContextEvictions()
+    {
+        return contextEvictions.get();
+    }
+
+    /**
+     * Evicts all the series recorded in the given context, typically when it stops.
+     *
+     * @param servletContext the context
+     * @return the number of evicted series
+     */
+    public int evictContext(ServletContext servletContext)
+    {
+        int evicted = 0;
+        for (Table<?, ?> table : tables)
+        {
+            evicted += table.evictIf(series -> series.context == servletContext);
+        }
+        contextEvictions.addAndGet(evicted);
+        return evicted;
+    }
+
+    /**
+     * Evicts the series that were not recorded for longer than the maximum idle time, if any.
+     *
+     * @return the number of evicted series
+     */
+    public int evictIdle()
+    {
+        long maxIdle = maxIdleNanos;
+        if (maxIdle <= 0)
+        {
+            return 0;
+        }
+        long now = nanoClock.getAsLong();
+        int evicted = 0;
+        for (Table<?, ?> table : tables)
+        {
+            evicted += table.evictIf(series -> now - series.lastAccess > maxIdle);
+        }
+        idleEvictions.addAndGet(evicted);
+        return evicted;
+    }
+
+    private void evictLeastRecentlyUsed()
+    {
+        while (size.get() > maxSeries)
+        {
+            Table<?, ?> oldestTable = null;
+            Object oldestKey = null;
+            long oldestAccess = 0;
+            long now = nanoClock.getAsLong();
+            for (Table<?, ?> table : tables)
+            {
+                for (Map.Entry<?, ?> entry : table.series.entrySet())
+                {
+                    long access = ((Series<?>)entry.getValue()).lastAccess;
+                    if (oldestKey == null || now - access > now - oldestAccess)
+                    {
+                        oldestTable = table;
+                        oldestKey = entry.getKey();
+                        oldestAccess = access;
+                    }
+                }
+            }
+            if (oldestKey == null)
+            {
+                return;
+            }
+            if (oldestTable.remove(oldestKey))
+            {
+                budgetEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void onAdded()
+    {
+        if (size.incrementAndGet() > maxSeries)
+        {
+            evictLeastRecentlyUsed();
+        }
+        // Sweeps at most once per idle time, so that adding series does not scan them all every time.
+        long maxIdle = maxIdleNanos;
+        long last = lastIdleSweep.get();
+        long now = nanoClock.getAsLong();
+        if (maxIdle > 0 && now - last >= maxIdle && lastIdleSweep.compareAndSet(last, now))
+        {
+            evictIdle();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x{series=%d,maxSeries=%d,maxIdleTime=%s,evictions=%d}", getClass().getSimpleName(), hashCode(), getSeriesCount(), getMaxSeries(), getMaxIdleTime(), getEvictions());
+    }
+
+    /**
+     * The series of a registry, keyed on the identity or the equality of their components.
+     *
+     * @param <K> the type of the components
+     * @param <V> the type of the series
+     */
+    public static class Table<K, V>
+    {
+        private final ConcurrentMap<K, Series<V>> series = new ConcurrentHashMap<>();
+        private final MetricRegistry registry;
+        private final Function<? super K, ? extends V> factory;
+
+        private Table(MetricRegistry registry, Function<? super K, ? extends V> factory)
+        {
+            this.registry = registry;
+            this.factory = factory;
+        }
+
+        /**
+         * @param key the component
+         * @return the series of the component, or null if it was never recorded or was evicted
+         */
+        public V get(K key)
+        {
+            Series<V> entry = series.get(key);
+            return entry == null ? null : entry.value;
+        }
+
+        /**
+         * @param key the component
+         * @return the context the series of the component was recorded in, or null if none or unknown
+         */
+        public ServletContext getServletContext(K key)
+        {
+            Series<V> entry = series.get(key);
+            return entry == null ? null : entry.context;
+        }
+
+        /**
+         * Returns the series of the component to record it, creating it if needed.
+         * Concurrent first recordings of a component may create more than one series, only one of which is kept.
+         *
+         * @param servletContext the context the component is recorded in, or null if none
+         * @param key the component
+         * @return the series of the component
+         */
+        public V acquire(ServletContext servletContext, K key)
+        {
+            Series<V> entry = series.get(key);
+            if (entry == null)
+            {
+                entry = add(servletContext, key);
+            }
+            else if (registry.bounded)
+            {
+                entry.touch(registry.nanoClock.getAsLong());
+            }
+            return entry.value;
+        }
+
+        private Series<V> add(ServletContext servletContext, K key)
+        {
+            Series<V> added = new Series<>(servletContext, factory.apply(key), registry.nanoClock.getAsLong());
+            Series<V> existing = series.putIfAbsent(key, added);
+            if (existing != null)
+            {
+                if (registry.bounded)
+                {
+                    existing.touch(registry.nanoClock.getAsLong());
+                }
+                return existing;
+            }
+            registry.onAdded();
+            return added;
+        }
+
+        private boolean remove(Object key)
+        {
+            if (series.remove(key) != null)
+            {
+                registry.size.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        private int evictIf(Predicate<Series<?>> predicate)
+        {
+            int evicted = 0;
+            for (Map.Entry<K, Series<V>> entry : series.entrySet())
+            {
+                if (predicate.test(entry.getValue()) && series.remove(entry.getKey(), entry.getValue()))
+                {
+                    registry.size.decrementAndGet();
+                    evicted++;
+                }
+            }
+            return evicted;
+        }
+
+        /**
+         * @return a live view of the components with a series
+         */
+        public Set<K> keySet()
+        {
+            return series.keySet();
+        }
+
+        public int size()
+        {
+            return series.size();
+        }
+    }
+
+    private static class Series<V>
+    {
+        private final ServletContext context;
+        private final V value;
+        private volatile long lastAccess;
+
+        private Series(ServletContext context, V value, long now)
+        {
+            this.context = context;
+            this.value = value;
+            this.lastAccess = now;
+        }
+
+        private void touch(long now)
+        {
+            if (now - lastAccess > TOUCH_RESOLUTION_NANOS)
+            {
+                lastAccess = now;
+            }
+        }
+    }
+}
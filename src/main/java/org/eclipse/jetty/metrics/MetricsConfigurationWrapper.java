@@ -23,17 +23,30 @@ import org.eclipse.jetty.webapp.WebAppContext;
 
 public class MetricsConfigurationWrapper extends Configuration.Wrapper
 {
-    private final WebAppMetricsListener metricsListener;
+    private final MetricsControl control;
 
     public MetricsConfigurationWrapper(Configuration configuration, WebAppMetricsListener metricsListener)
+    {
+        this(configuration, new MetricsControl(metricsListener));
+    }
+
+    public MetricsConfigurationWrapper(Configuration configuration, MetricsControl control)
     {
         super(configuration);
-        this.metricsListener = metricsListener;
+        this.control = control;
     }
 
     @Override
     public void preConfigure(WebAppContext context) throws Exception
     {
+        ServletMetricsListener listener = control.getListener();
+        if (!(listener instanceof WebAppMetricsListener))
+        {
+            super.preConfigure(context);
+            return;
+        }
+
+        WebAppMetricsListener metricsListener = (WebAppMetricsListener)listener;
         try
         {
             metricsListener.onWebAppConfigureStart(context, getWrapped(), WebAppMetricsListener.ConfigurationStep.PRE);
@@ -48,6 +61,14 @@ public class MetricsConfigurationWrapper extends Configuration.Wrapper
     @Override
     public void configure(WebAppContext context) throws Exception
     {
+        ServletMetricsListener listener = control.getListener();
+        if (!(listener instanceof WebAppMetricsListener))
+        {
+            super.configure(context);
+            return;
+        }
+
+        WebAppMetricsListener metricsListener = (WebAppMetricsListener)listener;
         try
         {
             metricsListener.onWebAppConfigureStart(context, getWrapped(), WebAppMetricsListener.ConfigurationStep.MAIN);
@@ -62,6 +83,14 @@ public class MetricsConfigurationWrapper extends Configuration.Wrapper
     @Override
     public void postConfigure(WebAppContext context) throws Exception
     {
+        ServletMetricsListener listener = control.getListener();
+        if (!(listener instanceof WebAppMetricsListener))
+        {
+            super.postConfigure(context);
+            return;
+        }
+
+        WebAppMetricsListener metricsListener = (WebAppMetricsListener)listener;
         try
         {
             metricsListener.onWebAppConfigureStart(context, getWrapped(), WebAppMetricsListener.ConfigurationStep.POST);
@@ -0,0 +1,170 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.util.Objects;
+
+/**
+ * Runtime control shared by the {@link MetricsHandler} and all of its wrappers,
+ * holding the {@link ServletMetricsListener} they notify.
+ * <p>
+ * The listener can be swapped atomically at runtime, eg: to attach a diagnostic listener
+ * for the duration of an incident.
+ * The wrappers read the active listener once per call, with a single volatile read,
+ * and notify both the enter and exit events of that call to it, so a call in flight
+ * during a swap is entirely reported to the old listener.
+ * Per-request state kept across calls (eg: from {@link org.eclipse.jetty.server.HttpChannel.Listener#onRequestBegin(org.eclipse.jetty.server.Request)}
+ * to {@link org.eclipse.jetty.server.HttpChannel.Listener#onComplete(org.eclipse.jetty.server.Request)})
+ * may be seen partially by either listener.
+ * </p>
+ * <p>
+ * When disabled, the active listener is null and the wrappers call straight through
+ * to the Servlet or Filter for every request.
+ * Startup events are always notified.
+ * </p>
+ * <p>
+ * The {@link ServletMetricsListener#getInterests() interests} of the listener are read once when it is
+ * registered and published together with it, so the wrappers never see the interests of another listener.
+ * </p>
+ */
+public class MetricsControl
+{
+    private volatile ServletMetricsListener listener;
+    private volatile Registration active;
+    private boolean enabled = true;
+    private volatile boolean measureResources;
+
+    public MetricsControl(ServletMetricsListener listener)
+    {
+        this.listener = Objects.requireNonNull(listener);
+        this.active = new Registration(listener);
+    }
+
+    /**
+     * @return the listener, notified of startup events even when disabled
+     */
+    public ServletMetricsListener getListener()
+    {
+        return listener;
+    }
+
+    /**
+     * @return the listener to notify of per-request events, or null if disabled
+     */
+    public ServletMetricsListener getActiveListener()
+    {
+        Registration registration = active;
+        return registration == null ? null : registration.getListener();
+    }
+
+    /**
+     * @return the listener to notify of per-request events with its interests, or null if disabled
+     */
+    public Registration getActiveRegistration()
+    {
+        return active;
+    }
+
+    /**
+     * Atomically replaces the listener.
+     *
+     * @param listener the new listener
+     * @return the previous listener
+     */
+    public synchronized ServletMetricsListener setListener(ServletMetricsListener listener)
+    {
+        ServletMetricsListener previous = this.listener;
+        this.listener = Objects.requireNonNull(listener);
+        this.active = enabled ? new Registration(listener) : null;
+        return previous;
+    }
+
+    public synchronized boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public synchronized void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+        this.active = enabled ? new Registration(listener) : null;
+    }
+
+    /**
+     * @return true if the wrappers measure the resources used by every call for a {@link ResourceMetricsListener}
+     */
+    public boolean isMeasureResources()
+    {
+        return measureResources;
+    }
+
+    public void setMeasureResources(boolean measureResources)
+    {
+        this.measureResources = measureResources;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x{enabled=%b,measureResources=%b,listener=%s}", getClass().getSimpleName(), hashCode(), isEnabled(), isMeasureResources(), listener);
+    }
+
+    /**
+     * An immutable pair of a listener and of the interests it declared when registered.
+     */
+    public static final class Registration
+    {
+        private final ServletMetricsListener listener;
+        private final int interests;
+
+        private Registration(ServletMetricsListener listener)
+        {
+            this.listener = listener;
+            this.interests = listener.getInterests();
+        }
+
+        public ServletMetricsListener getListener()
+        {
+            return listener;
+        }
+
+        /**
+         * @return the bitmask of {@code ServletMetricsListener.INTEREST_*} constants
+         */
+        public int getInterests()
+        {
+            return interests;
+        }
+
+        /**
+         * @param interest one or more {@code ServletMetricsListener.INTEREST_*} constants
+         * @return true if the listener is interested in any of the given events
+         */
+        public boolean isInterested(int interest)
+        {
+            return (interests & interest) != 0;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s@%x{interests=0x%x,listener=%s}", getClass().getSimpleName(), hashCode(), interests, listener);
+        }
+    }
+}
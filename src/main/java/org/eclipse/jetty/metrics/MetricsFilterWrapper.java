@@ -21,6 +21,7 @@ package org.eclipse.jetty.metrics;
 import java.io.IOException;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
+import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -33,17 +34,23 @@ import org.eclipse.jetty.servlet.FilterHolder;
 
 public class MetricsFilterWrapper extends FilterHolder.Wrapper
 {
-    private final ServletMetricsListener metricsListener;
+    private final MetricsControl control;
 
     public MetricsFilterWrapper(Filter filter, ServletMetricsListener metricsListener)
+    {
+        this(filter, new MetricsControl(metricsListener));
+    }
+
+    public MetricsFilterWrapper(Filter filter, MetricsControl control)
     {
         super(filter);
-        this.metricsListener = metricsListener;
+        this.control = control;
     }
 
     @Override
     public void init(FilterConfig filterConfig) throws ServletException
     {
+        ServletMetricsListener metricsListener = control.getListener();
         ServletContext servletContext = filterConfig.getServletContext();
         Filter delegate = getWrapped();
         long start = System.nanoTime();
@@ -62,27 +69,118 @@ public class MetricsFilterWrapper extends FilterHolder.Wrapper
 
     @Override
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException
+    {
+        MetricsControl.Registration registration = control.getActiveRegistration();
+        if (registration == null)
+        {
+            getWrapped().doFilter(request, response, chain);
+            return;
+        }
+
+        ServletMetricsListener metricsListener = registration.getListener();
+        boolean enter = registration.isInterested(ServletMetricsListener.INTEREST_FILTER_ENTER);
+        boolean exit = registration.isInterested(ServletMetricsListener.INTEREST_FILTER_EXIT);
+        if (metricsListener instanceof DispatchMetricsListener)
+        {
+            dispatch((DispatchMetricsListener)metricsListener, enter, exit, request, response, chain);
+            return;
+        }
+
+        Filter delegate = getWrapped();
+        if (!enter && !exit)
+        {
+            doFilter(metricsListener, null, delegate, request, response, chain);
+            return;
+        }
+
+        ServletContext servletContext = request.getServletContext();
+        long start = exit ? System.nanoTime() : 0;
+        try
+        {
+            if (enter)
+            {
+                metricsListener.onFilterEnter(servletContext, delegate, request);
+            }
+            doFilter(metricsListener, servletContext, delegate, request, response, chain);
+            if (exit)
+            {
+                long end = System.nanoTime();
+                long dur = end - start;
+                metricsListener.onFilterExit(servletContext, delegate, request, Duration.of(dur, ChronoUnit.NANOS), null);
+            }
+        }
+        catch (Throwable cause)
+        {
+            if (exit)
+            {
+                long end = System.nanoTime();
+                long dur = end - start;
+                metricsListener.onFilterExit(servletContext, delegate, request, Duration.of(dur, ChronoUnit.NANOS), cause);
+            }
+            throw cause;
+        }
+    }
+
+    private void dispatch(DispatchMetricsListener dispatchListener, boolean enter, boolean exit, ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException
     {
         ServletContext servletContext = request.getServletContext();
         Filter delegate = getWrapped();
-        long start = System.nanoTime();
+        DispatcherType dispatcherType = request.getDispatcherType();
+        Object nesting = request.getAttribute(MetricsHandler.ATTR_DISPATCH_DEPTH);
+        int depth = nesting instanceof Integer ? (Integer)nesting : 0;
+        long start = exit ? System.nanoTime() : 0;
         try
         {
-            metricsListener.onFilterEnter(servletContext, delegate, request);
-            delegate.doFilter(request, response, chain);
-            long end = System.nanoTime();
-            long dur = end - start;
-            metricsListener.onFilterExit(servletContext, delegate, request, Duration.of(dur, ChronoUnit.NANOS), null);
+            if (enter)
+            {
+                dispatchListener.onFilterDispatchEnter(servletContext, delegate, request, dispatcherType, depth);
+            }
+            doFilter(dispatchListener, servletContext, delegate, request, response, chain);
+            if (exit)
+            {
+                long end = System.nanoTime();
+                long dur = end - start;
+                dispatchListener.onFilterDispatchExit(servletContext, delegate, request, dispatcherType, depth, Duration.of(dur, ChronoUnit.NANOS), null);
+            }
         }
         catch (Throwable cause)
         {
-            long end = System.nanoTime();
-            long dur = end - start;
-            metricsListener.onFilterExit(servletContext, delegate, request, Duration.of(dur, ChronoUnit.NANOS), cause);
+            if (exit)
+            {
+                long end = System.nanoTime();
+                long dur = end - start;
+                dispatchListener.onFilterDispatchExit(servletContext, delegate, request, dispatcherType, depth, Duration.of(dur, ChronoUnit.NANOS), cause);
+            }
             throw cause;
         }
     }
 
+    private void doFilter(ServletMetricsListener metricsListener, ServletContext servletContext, Filter delegate, ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException
+    {
+        if (!control.isMeasureResources() || !(metricsListener instanceof ResourceMetricsListener))
+        {
+            delegate.doFilter(request, response, chain);
+            return;
+        }
+
+        long cpuStart = ThreadResources.getCpuTime();
+        long allocatedStart = ThreadResources.getAllocatedBytes();
+        try
+        {
+            delegate.doFilter(request, response, chain);
+        }
+        finally
+        {
+            long cpuTime = cpuStart < 0 ? -1 : ThreadResources.getCpuTime() - cpuStart;
+            long allocatedBytes = allocatedStart < 0 ? -1 : ThreadResources.getAllocatedBytes() - allocatedStart;
+            if (servletContext == null)
+            {
+                servletContext = request.getServletContext();
+            }
+            ((ResourceMetricsListener)metricsListener).onFilterResources(servletContext, delegate, request, cpuTime, allocatedBytes);
+        }
+    }
+
     @Override
     public void destroy()
     {
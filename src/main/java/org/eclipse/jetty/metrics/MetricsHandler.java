@@ -18,20 +18,47 @@
 
 package org.eclipse.jetty.metrics;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.EventListener;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import javax.servlet.Filter;
 import javax.servlet.Servlet;
 
+import org.eclipse.jetty.security.SecurityHandler;
 import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.HttpChannel;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.HandlerCollection;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.eclipse.jetty.server.session.DefaultSessionCache;
+import org.eclipse.jetty.server.session.NullSessionDataStore;
+import org.eclipse.jetty.server.session.SessionCache;
+import org.eclipse.jetty.server.session.SessionCacheFactory;
+import org.eclipse.jetty.server.session.SessionDataStore;
+import org.eclipse.jetty.server.session.SessionDataStoreFactory;
+import org.eclipse.jetty.server.session.SessionHandler;
+import org.eclipse.jetty.servlet.BaseHolder;
 import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.FilterMapping;
 import org.eclipse.jetty.servlet.ListenerHolder;
 import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.servlet.ServletMapping;
+import org.eclipse.jetty.servlet.Source;
+import org.eclipse.jetty.util.component.Container;
 import org.eclipse.jetty.util.component.ContainerLifeCycle;
 import org.eclipse.jetty.util.component.LifeCycle;
 import org.eclipse.jetty.util.log.Log;
@@ -49,11 +76,147 @@ public class MetricsHandler extends ContainerLifeCycle
 {
     private static final Logger LOG = Log.getLogger(MetricsHandler.class);
     public static final String ATTR_REQUEST_ID = MetricsHandler.class.getName() + ".requestId";
-    private final ServletMetricsListener metricsListener;
+    public static final String ATTR_DISPATCH_DEPTH = MetricsHandler.class.getName() + ".dispatchDepth";
+    private final MetricsControl control;
+    private final InstrumentationRules servletRules = new InstrumentationRules();
+    private final InstrumentationRules filterRules = new InstrumentationRules();
+    private final Set<ServletContextHandler> contexts = new CopyOnWriteArraySet<>();
+    private final ConcurrentMap<SessionHandler, MetricsSessionListener> sessionListeners = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ServletHandler, RegistrationListener> registrationListeners = new ConcurrentHashMap<>();
+    private final InstrumentationStatistics statistics = new InstrumentationStatistics();
+    private Duration classLoadingWarmup = Duration.ofSeconds(60);
 
     public MetricsHandler(ServletMetricsListener metricsListener)
     {
-        this.metricsListener = metricsListener;
+        this.control = new MetricsControl(metricsListener);
+    }
+
+    public ServletMetricsListener getMetricsListener()
+    {
+        return control.getListener();
+    }
+
+    /**
+     * Atomically replaces the listener notified by this handler and all of its wrappers,
+     * without restarting the contexts.
+     * <p>
+     * Calls in flight during the swap report both their enter and exit events to the previous listener.
+     * Only the configurations of the WebApps started after the swap are reported to a new {@link WebAppMetricsListener}.
+     * </p>
+     *
+     * @param metricsListener the new listener
+     * @return the previous listener
+     */
+    public ServletMetricsListener setMetricsListener(ServletMetricsListener metricsListener)
+    {
+        return control.setListener(metricsListener);
+    }
+
+    /**
+     * @return true if the wrappers notify the listener of every request
+     */
+    public boolean isEnabled()
+    {
+        return control.isEnabled();
+    }
+
+    /**
+     * Enables or disables the per-request events of all the wrappers at runtime,
+     * eg: to remove the instrumentation overhead during an incident.
+     *
+     * @param enabled false to have the wrappers call straight through to the Servlets and Filters
+     */
+    public void setEnabled(boolean enabled)
+    {
+        control.setEnabled(enabled);
+    }
+
+    /**
+     * @return true if the CPU time and allocated bytes of every call are measured for a {@link ResourceMetricsListener}
+     */
+    public boolean isMeasureResources()
+    {
+        return control.isMeasureResources();
+    }
+
+    /**
+     * Enables the measurement of the CPU time and allocated bytes of every Servlet and Filter call,
+     * notified to listeners implementing {@link ResourceMetricsListener}.
+     * <p>
+     * The measurement costs two {@link java.lang.management.ThreadMXBean} calls on enter and on exit,
+     * so it is disabled by default.
+     * If the JVM supports neither measurement, it is disabled again when this handler starts.
+     * </p>
+     *
+     * @param measureResources true to measure the resources used by every call
+     * @see ThreadResources
+     */
+    public void setMeasureResources(boolean measureResources)
+    {
+        control.setMeasureResources(measureResources);
+    }
+
+    /**
+     * @return the duration of the {@link ClassLoadingMetricsListener.Phase#WARMUP} phase after a WebApp is ready
+     */
+    public Duration getClassLoadingWarmup()
+    {
+        return classLoadingWarmup;
+    }
+
+    /**
+     * @param classLoadingWarmup the duration of the first requests whose class loading is reported separately,
+     * to be configured before the WebApps are started
+     */
+    public void setClassLoadingWarmup(Duration classLoadingWarmup)
+    {
+        this.classLoadingWarmup = classLoadingWarmup;
+    }
+
+    /**
+     * @return the rules deciding which Servlets are wrapped, to be configured before the contexts are started
+     */
+    public InstrumentationRules getServletRules()
+    {
+        return servletRules;
+    }
+
+    /**
+     * @return the rules deciding which Filters are wrapped, to be configured before the contexts are started
+     */
+    public InstrumentationRules getFilterRules()
+    {
+        return filterRules;
+    }
+
+    /**
+     * @return the counters of the components wrapped and registered dynamically
+     */
+    public InstrumentationStatistics getInstrumentationStatistics()
+    {
+        return statistics;
+    }
+
+    @Override
+    protected void doStart() throws Exception
+    {
+        if (control.isMeasureResources())
+        {
+            if (!ThreadResources.isCpuTimeSupported() && !ThreadResources.isAllocatedBytesSupported())
+            {
+                LOG.warn("Thread CPU time and allocated bytes are not supported by this JVM, resources are not measured");
+                control.setMeasureResources(false);
+            }
+            else if (!ThreadResources.isCpuTimeSupported())
+            {
+                LOG.warn("Thread CPU time is not supported by this JVM, only allocated bytes are measured");
+            }
+            else if (!ThreadResources.isAllocatedBytesSupported())
+            {
+                LOG.warn("Thread allocated bytes are not supported by this JVM, only CPU time is measured");
+            }
+        }
+        super.doStart();
     }
 
     public void addToAllConnectors(Server server)
@@ -67,15 +230,120 @@ public class MetricsHandler extends ContainerLifeCycle
         }
     }
 
+    /**
+     * Wraps every {@link Handler} of the server tree with a {@link MetricsHandlerWrapper},
+     * so that a {@link HandlerMetricsListener} is told the time spent in each of them.
+     * <p>
+     * The tree is walked through the {@link HandlerWrapper}s and the {@link HandlerCollection}s,
+     * including the handlers within the contexts, so it must be fully built before this is called,
+     * and the server must not be started.
+     * Handlers that are already wrapped are not wrapped again.
+     * </p>
+     * <p>
+     * A {@link ServletContextHandler} links its session, security, gzip and servlet handlers itself,
+     * so the wrapper of its first session, security or servlet handler is inserted with
+     * {@link ServletContextHandler#insertHandler(HandlerWrapper)}; handlers linked before it,
+     * eg: a gzip handler in a context without sessions nor security, are measured as part of the context.
+     * </p>
+     *
+     * @param server the server whose handlers to wrap
+     * @throws IllegalStateException if the server is started
+     */
+    public void addToAllHandlers(Server server)
+    {
+        if (server.isStarted())
+        {
+            throw new IllegalStateException("Server started: " + server);
+        }
+        wrapHandlers(server);
+    }
+
+    private void wrapHandlers(Handler parent)
+    {
+        if (parent instanceof MetricsHandlerWrapper)
+        {
+            wrapHandlers(((MetricsHandlerWrapper)parent).getHandler());
+        }
+        else if (parent instanceof ServletContextHandler)
+        {
+            wrapContextHandlers((ServletContextHandler)parent);
+        }
+        else if (parent instanceof HandlerWrapper)
+        {
+            HandlerWrapper handlerWrapper = (HandlerWrapper)parent;
+            Handler handler = handlerWrapper.getHandler();
+            if (handler != null)
+            {
+                handlerWrapper.setHandler(wrapHandler(handler));
+                wrapHandlers(handler);
+            }
+        }
+        else if (parent instanceof HandlerCollection)
+        {
+            HandlerCollection handlerCollection = (HandlerCollection)parent;
+            Handler[] handlers = handlerCollection.getHandlers();
+            if (handlers != null)
+            {
+                Handler[] wrapped = new Handler[handlers.length];
+                for (int i = 0; i < handlers.length; i++)
+                {
+                    wrapped[i] = wrapHandler(handlers[i]);
+                }
+                handlerCollection.setHandlers(wrapped);
+                for (Handler handler : handlers)
+                {
+                    wrapHandlers(handler);
+                }
+            }
+        }
+    }
+
+    private void wrapContextHandlers(ServletContextHandler context)
+    {
+        // Where insertHandler() inserts, before the first session, security or servlet handler.
+        HandlerWrapper previous = context;
+        while (previous.getHandler() instanceof HandlerWrapper && !isContextLink(previous.getHandler()))
+        {
+            previous = (HandlerWrapper)previous.getHandler();
+        }
+        Handler first = previous.getHandler();
+        if (first == null)
+        {
+            return;
+        }
+        if (!(previous instanceof MetricsHandlerWrapper))
+        {
+            context.insertHandler(new MetricsHandlerWrapper(null, control));
+        }
+        // The links past the first one are plain HandlerWrapper links, that the context relinks through the wrappers.
+        wrapHandlers(first);
+    }
+
+    private static boolean isContextLink(Handler handler)
+    {
+        return handler instanceof SessionHandler || handler instanceof SecurityHandler || handler instanceof ServletHandler;
+    }
+
+    private Handler wrapHandler(Handler handler)
+    {
+        if (handler instanceof MetricsHandlerWrapper)
+        {
+            return handler;
+        }
+        return new MetricsHandlerWrapper(handler, control);
+    }
+
     public void addToContext(ServletContextHandler context)
     {
         context.addBean(this);
         context.addLifeCycleListener(this);
+        contexts.add(context);
     }
 
     @Override
     public void lifeCycleStarting(LifeCycle event)
     {
+        ServletMetricsListener metricsListener = control.getListener();
         if (event instanceof WebAppContext)
         {
             WebAppContext webAppContext = (WebAppContext)event;
@@ -83,17 +351,98 @@ public class MetricsHandler extends ContainerLifeCycle
             {
                 ((WebAppMetricsListener)metricsListener).onWebAppStarting(webAppContext);
             }
+            if (metricsListener instanceof ClassLoadingMetricsListener)
+            {
+                instrumentClassLoading(webAppContext);
+            }
         }
         if (event instanceof ServletContextHandler)
         {
             ServletContextHandler contextHandler = (ServletContextHandler)event;
+            contexts.add(contextHandler);
+            ServletHandler servletHandler = contextHandler.getServletHandler();
+            RegistrationListener registrationListener = new RegistrationListener(contextHandler);
+            if (registrationListeners.putIfAbsent(servletHandler, registrationListener) == null)
+            {
+                servletHandler.addEventListener(registrationListener);
+            }
             metricsListener.onServletContextStarting(contextHandler.getServletContext());
+            if (metricsListener instanceof SessionMetricsListener)
+            {
+                instrumentSessions(contextHandler);
+            }
+        }
+    }
+
+    private void instrumentClassLoading(WebAppContext webAppContext)
+    {
+        if (webAppContext.getClassLoader() != null)
+        {
+            LOG.warn("Class loading not instrumented, {} already has a class loader", webAppContext);
+            return;
+        }
+        try
+        {
+            webAppContext.setClassLoader(new MetricsWebAppClassLoader(webAppContext, control, classLoadingWarmup.toNanos()));
+        }
+        catch (IOException x)
+        {
+            LOG.warn("Unable to instrument the class loading of {}", webAppContext, x);
+        }
+    }
+
+    /**
+     * Wraps the session data store of the context, creating its session cache and data store as
+     * the {@link SessionHandler} would if they are not configured yet, and listens to its sessions.
+     */
+    private void instrumentSessions(ServletContextHandler contextHandler)
+    {
+        SessionHandler sessionHandler = contextHandler.getSessionHandler();
+        if (sessionHandler == null || sessionHandler.isStarted() || sessionListeners.containsKey(sessionHandler))
+        {
+            return;
+        }
+        try
+        {
+            SessionCache sessionCache = sessionHandler.getSessionCache();
+            if (sessionCache == null)
+            {
+                Server server = contextHandler.getServer();
+                SessionCacheFactory cacheFactory = server == null ? null : server.getBean(SessionCacheFactory.class);
+                sessionCache = cacheFactory == null ? new DefaultSessionCache(sessionHandler) : cacheFactory.getSessionCache(sessionHandler);
+                sessionHandler.setSessionCache(sessionCache);
+            }
+            if (sessionCache.isStarted())
+            {
+                return;
+            }
+            SessionDataStore sessionDataStore = sessionCache.getSessionDataStore();
+            if (sessionDataStore == null)
+            {
+                Server server = contextHandler.getServer();
+                SessionDataStoreFactory storeFactory = server == null ? null : server.getBean(SessionDataStoreFactory.class);
+                sessionDataStore = storeFactory == null ? new NullSessionDataStore() : storeFactory.getSessionDataStore(sessionHandler);
+            }
+            if (!(sessionDataStore instanceof MetricsSessionDataStore))
+            {
+                sessionCache.setSessionDataStore(new MetricsSessionDataStore(sessionDataStore, contextHandler.getServletContext(), control));
+            }
+            MetricsSessionListener sessionListener = new MetricsSessionListener(contextHandler.getServletContext(), control);
+            if (sessionListeners.putIfAbsent(sessionHandler, sessionListener) == null)
+            {
+                sessionHandler.addEventListener(sessionListener);
+            }
+        }
+        catch (Exception x)
+        {
+            LOG.warn("Unable to instrument the sessions of {}", contextHandler, x);
         }
     }
 
     @Override
     public void lifeCycleStarted(LifeCycle event)
     {
+        ServletMetricsListener metricsListener = control.getListener();
         if (event instanceof WebAppContext)
         {
             WebAppContext webAppContext = (WebAppContext)event;
@@ -101,6 +450,10 @@ public class MetricsHandler extends ContainerLifeCycle
             {
                 ((WebAppMetricsListener)metricsListener).onWebAppReady(webAppContext);
             }
+            if (webAppContext.getClassLoader() instanceof MetricsWebAppClassLoader)
+            {
+                ((MetricsWebAppClassLoader)webAppContext.getClassLoader()).onStarted();
+            }
         }
         if (event instanceof ServletContextHandler)
         {
@@ -117,24 +470,110 @@ public class MetricsHandler extends ContainerLifeCycle
     @Override
     public void lifeCycleStopping(LifeCycle event)
     {
+        if (event instanceof WebAppContext && ((WebAppContext)event).getClassLoader() instanceof MetricsWebAppClassLoader)
+        {
+            ((MetricsWebAppClassLoader)((WebAppContext)event).getClassLoader()).onStopping();
+        }
     }
 
     @Override
     public void lifeCycleStopped(LifeCycle event)
     {
+        if (event instanceof WebAppContext && ((WebAppContext)event).getClassLoader() instanceof MetricsWebAppClassLoader)
+        {
+            // Discarded as the WebAppContext discards the class loaders it creates, so that a restart reloads the classes.
+            WebAppContext webAppContext = (WebAppContext)event;
+            try
+            {
+                ((MetricsWebAppClassLoader)webAppContext.getClassLoader()).close();
+            }
+            catch (IOException x)
+            {
+                LOG.ignore(x);
+            }
+            webAppContext.setClassLoader(null);
+        }
+        if (event instanceof ServletContextHandler)
+        {
+            ServletContextHandler contextHandler = (ServletContextHandler)event;
+            contexts.remove(contextHandler);
+            // Released so that a stopped context is not retained, a restart registers fresh listeners.
+            ServletHandler servletHandler = contextHandler.getServletHandler();
+            RegistrationListener registrationListener = registrationListeners.remove(servletHandler);
+            if (registrationListener != null)
+            {
+                servletHandler.removeEventListener(registrationListener);
+            }
+            SessionHandler sessionHandler = contextHandler.getSessionHandler();
+            MetricsSessionListener sessionListener = sessionHandler == null ? null : sessionListeners.remove(sessionHandler);
+            if (sessionListener != null)
+            {
+                sessionHandler.removeEventListener(sessionListener);
+            }
+            control.getListener().onServletContextStopped(contextHandler.getServletContext());
+        }
     }
 
     @Override
     public void onRequestBegin(Request request)
     {
+        ServletMetricsListener metricsListener = control.getActiveListener();
         String uniqId = UUID.randomUUID().toString();
         request.setAttribute(ATTR_REQUEST_ID, uniqId);
+        if (metricsListener instanceof HttpChannel.Listener)
+        {
+            ((HttpChannel.Listener)metricsListener).onRequestBegin(request);
+        }
+    }
+
+    @Override
+    public void onBeforeDispatch(Request request)
+    {
+        ServletMetricsListener metricsListener = control.getActiveListener();
+        if (metricsListener instanceof HttpChannel.Listener)
+        {
+            ((HttpChannel.Listener)metricsListener).onBeforeDispatch(request);
+        }
+    }
+
+    @Override
+    public void onAfterDispatch(Request request)
+    {
+        ServletMetricsListener metricsListener = control.getActiveListener();
+        if (metricsListener instanceof HttpChannel.Listener)
+        {
+            ((HttpChannel.Listener)metricsListener).onAfterDispatch(request);
+        }
+    }
+
+    @Override
+    public void onResponseBegin(Request request)
+    {
+        ServletMetricsListener metricsListener = control.getActiveListener();
+        if (metricsListener instanceof HttpChannel.Listener)
+        {
+            ((HttpChannel.Listener)metricsListener).onResponseBegin(request);
+        }
+    }
+
+    @Override
+    public void onComplete(Request request)
+    {
+        ServletMetricsListener metricsListener = control.getActiveListener();
+        if (metricsListener instanceof HttpChannel.Listener)
+        {
+            ((HttpChannel.Listener)metricsListener).onComplete(request);
+        }
     }
 
     @Override
     public Configuration wrapConfiguration(Configuration configuration)
     {
-        LOG.info("wrapConfiguration({})", configuration);
+        ServletMetricsListener metricsListener = control.getListener();
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("wrapConfiguration({})", configuration);
+        }
         if (!(metricsListener instanceof WebAppMetricsListener))
         {
             return configuration;
@@ -147,26 +586,35 @@ public class MetricsHandler extends ContainerLifeCycle
             if (unwrapped instanceof MetricsConfigurationWrapper)
             {
                 // If so, we are done. no need to wrap again.
+                statistics.onAlreadyWrapped();
                 return configuration;
             }
             // Unwrap
             unwrapped = ((Configuration.Wrapper)unwrapped).getWrapped();
         }
 
-        return new MetricsConfigurationWrapper(configuration, (WebAppMetricsListener)metricsListener);
+        statistics.onConfigurationWrapped();
+        return new MetricsConfigurationWrapper(configuration, control);
     }
 
     @Override
     public EventListener wrapEventListener(EventListener listener)
     {
-        LOG.info("wrapEventListener({})", listener);
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("wrapEventListener({})", listener);
+        }
+        statistics.onEventListener();
         return listener;
     }
 
     @Override
     public Filter wrapFilter(Filter filter)
     {
-        LOG.info("wrapFilter({})", filter);
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("wrapFilter({})", filter);
+        }
         Filter unwrapped = filter;
         while (unwrapped instanceof FilterHolder.Wrapper)
         {
@@ -174,19 +622,30 @@ public class MetricsHandler extends ContainerLifeCycle
             if (unwrapped instanceof MetricsFilterWrapper)
             {
                 // If so, we are done. no need to wrap again.
+                statistics.onAlreadyWrapped();
                 return filter;
             }
             // Unwrap
             unwrapped = ((FilterHolder.Wrapper)unwrapped).getWrapped();
         }
 
-        return new MetricsFilterWrapper(filter, metricsListener);
+        if (!isInstrumented(unwrapped))
+        {
+            statistics.onFilterExcluded();
+            return filter;
+        }
+
+        statistics.onFilterWrapped();
+        return new MetricsFilterWrapper(filter, control);
     }
 
     @Override
     public Servlet wrapServlet(Servlet servlet)
     {
-        LOG.info("wrapServlet({})", servlet);
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("wrapServlet({})", servlet);
+        }
         Servlet unwrapped = servlet;
         while (unwrapped instanceof ServletHolder.Wrapper)
         {
@@ -194,12 +653,175 @@ public class MetricsHandler extends ContainerLifeCycle
             if (unwrapped instanceof MetricsServletWrapper)
             {
                 // If so, we are done. no need to wrap again.
+                statistics.onAlreadyWrapped();
                 return servlet;
             }
             // Unwrap
             unwrapped = ((ServletHolder.Wrapper)unwrapped).getWrapped();
         }
 
-        return new MetricsServletWrapper(servlet, metricsListener);
+        if (!isInstrumented(unwrapped))
+        {
+            statistics.onServletExcluded();
+            return servlet;
+        }
+
+        statistics.onServletWrapped();
+        return new MetricsServletWrapper(servlet, control);
+    }
+
+    private boolean isInstrumented(Servlet servlet)
+    {
+        if (servletRules.isEmpty())
+        {
+            return true;
+        }
+
+        String className = servlet.getClass().getName();
+        if (!servletRules.hasHolderRules())
+        {
+            return servletRules.isInstrumented(className, null, Collections.emptyList());
+        }
+
+        // The wrap function is only given the instance, so find the holders it may belong to.
+        // If several holders share the class, the servlet is only excluded if all of them are.
+        boolean found = false;
+        for (ServletContextHandler context : contexts)
+        {
+            ServletHandler servletHandler = context.getServletHandler();
+            ServletHolder[] holders = servletHandler.getServlets();
+            if (holders == null)
+            {
+                continue;
+            }
+            for (ServletHolder holder : holders)
+            {
+                Servlet instance = holder.getServletInstance();
+                if (instance == servlet || (instance == null && className.equals(holder.getClassName())))
+                {
+                    found = true;
+                    if (servletRules.isInstrumented(className, holder.getName(), getPathSpecs(servletHandler, holder)))
+                    {
+                        return true;
+                    }
+                }
+            }
+        }
+        return !found && servletRules.isInstrumented(className, null, Collections.emptyList());
+    }
+
+    private boolean isInstrumented(Filter filter)
+    {
+        if (filterRules.isEmpty())
+        {
+            return true;
+        }
+
+        String className = filter.getClass().getName();
+        if (!filterRules.hasHolderRules())
+        {
+            return filterRules.isInstrumented(className, null, Collections.emptyList());
+        }
+
+        // The wrap function is only given the instance, so find the holders it may belong to.
+        // If several holders share the class, the filter is only excluded if all of them are.
+        boolean found = false;
+        for (ServletContextHandler context : contexts)
+        {
+            ServletHandler servletHandler = context.getServletHandler();
+            FilterHolder[] holders = servletHandler.getFilters();
+            if (holders == null)
+            {
+                continue;
+            }
+            for (FilterHolder holder : holders)
+            {
+                Filter instance = holder.getFilter();
+                if (instance == filter || (instance == null && className.equals(holder.getClassName())))
+                {
+                    found = true;
+                    if (filterRules.isInstrumented(className, holder.getName(), getPathSpecs(servletHandler, holder)))
+                    {
+                        return true;
+                    }
+                }
+            }
+        }
+        return !found && filterRules.isInstrumented(className, null, Collections.emptyList());
+    }
+
+    private static Collection<String> getPathSpecs(ServletHandler servletHandler, ServletHolder holder)
+    {
+        List<String> pathSpecs = new ArrayList<>();
+        ServletMapping[] mappings = servletHandler.getServletMappings();
+        if (mappings != null)
+        {
+            for (ServletMapping mapping : mappings)
+            {
+                if (holder.getName().equals(mapping.getServletName()) && mapping.getPathSpecs() != null)
+                {
+                    Collections.addAll(pathSpecs, mapping.getPathSpecs());
+                }
+            }
+        }
+        return pathSpecs;
+    }
+
+    private static Collection<String> getPathSpecs(ServletHandler servletHandler, FilterHolder holder)
+    {
+        List<String> pathSpecs = new ArrayList<>();
+        FilterMapping[] mappings = servletHandler.getFilterMappings();
+        if (mappings != null)
+        {
+            for (FilterMapping mapping : mappings)
+            {
+                if (holder.getName().equals(mapping.getFilterName()) && mapping.getPathSpecs() != null)
+                {
+                    Collections.addAll(pathSpecs, mapping.getPathSpecs());
+                }
+            }
+        }
+        return pathSpecs;
+    }
+
+    /**
+     * Listens to the holders added to the {@link ServletHandler} of a context, to report the dynamic registrations.
+     */
+    private class RegistrationListener implements Container.Listener
+    {
+        private final ServletContextHandler contextHandler;
+
+        private RegistrationListener(ServletContextHandler contextHandler)
+        {
+            this.contextHandler = contextHandler;
+        }
+
+        @Override
+        public void beanAdded(Container parent, Object child)
+        {
+            if (!(child instanceof BaseHolder))
+            {
+                return;
+            }
+            BaseHolder<?> holder = (BaseHolder<?>)child;
+            // The context is still starting while its ServletContextListeners register components.
+            boolean late = contextHandler.isStarted();
+            Source source = holder.getSource();
+            if (!late && (source == null || source.getOrigin() != Source.Origin.JAVAX_API))
+            {
+                return;
+            }
+            statistics.onDynamicRegistration(late);
+            ServletMetricsListener metricsListener = control.getListener();
+            if (metricsListener instanceof RegistrationMetricsListener)
+            {
+                ((RegistrationMetricsListener)metricsListener).onDynamicRegistration(contextHandler.getServletContext(), holder, late);
+            }
+        }
+
+        @Override
+        public void beanRemoved(Container parent, Object child)
+        {
+        }
     }
 }
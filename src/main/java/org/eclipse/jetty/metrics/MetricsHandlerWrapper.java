@@ -0,0 +1,128 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+/**
+ * Wraps a {@link Handler} of the server tree to notify a {@link HandlerMetricsListener}
+ * of the inclusive and exclusive time spent in it.
+ * <p>
+ * The exclusive time is computed with a per-thread stack of the nested wrappers,
+ * every wrapper adding its inclusive time to the one it is nested in.
+ * </p>
+ *
+ * @see MetricsHandler#addToAllHandlers(org.eclipse.jetty.server.Server)
+ */
+public class MetricsHandlerWrapper extends HandlerWrapper
+{
+    private static final ThreadLocal<Frames> FRAMES = ThreadLocal.withInitial(Frames::new);
+
+    private final MetricsControl control;
+
+    public MetricsHandlerWrapper(Handler handler, MetricsControl control)
+    {
+        this.control = control;
+        setHandler(handler);
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException
+    {
+        MetricsControl.Registration registration = control.getActiveRegistration();
+        if (registration == null || !(registration.getListener() instanceof HandlerMetricsListener))
+        {
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+
+        HandlerMetricsListener handlerListener = (HandlerMetricsListener)registration.getListener();
+        Handler delegate = getHandler();
+        Frames frames = FRAMES.get();
+        frames.push();
+        long start = System.nanoTime();
+        Throwable failure = null;
+        try
+        {
+            handlerListener.onHandlerEnter(delegate, baseRequest);
+            super.handle(target, baseRequest, request, response);
+        }
+        catch (Throwable cause)
+        {
+            failure = cause;
+            throw cause;
+        }
+        finally
+        {
+            // Pops the frame exactly once, even if the listener throws.
+            exit(handlerListener, delegate, baseRequest, frames, start, failure);
+        }
+    }
+
+    private static void exit(HandlerMetricsListener handlerListener, Handler delegate, Request baseRequest, Frames frames, long start, Throwable cause)
+    {
+        long end = System.nanoTime();
+        long inclusive = end - start;
+        long exclusive = inclusive - frames.pop(inclusive);
+        handlerListener.onHandlerExit(delegate, baseRequest, Duration.ofNanos(inclusive), Duration.ofNanos(exclusive), cause);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x{%s}", getClass().getSimpleName(), hashCode(), getHandler());
+    }
+
+    /**
+     * The time spent in the nested handlers, for every wrapper being called on the thread.
+     */
+    private static class Frames
+    {
+        private long[] nested = new long[16];
+        private int depth;
+
+        private void push()
+        {
+            if (depth == nested.length)
+            {
+                nested = Arrays.copyOf(nested, depth * 2);
+            }
+            nested[depth++] = 0;
+        }
+
+        private long pop(long inclusive)
+        {
+            long time = nested[--depth];
+            if (depth > 0)
+            {
+                nested[depth - 1] += inclusive;
+            }
+            return time;
+        }
+    }
+}
@@ -22,23 +22,31 @@ import java.io.IOException;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
 import java.util.Objects;
+import javax.servlet.DispatcherType;
 import javax.servlet.Servlet;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.eclipse.jetty.servlet.ServletHolder;
 
 public class MetricsServletWrapper extends ServletHolder.Wrapper
 {
-    private final ServletMetricsListener metricsListener;
+    private final MetricsControl control;
 
     public MetricsServletWrapper(Servlet servlet, ServletMetricsListener metricsListener)
+    {
+        this(servlet, new MetricsControl(metricsListener));
+    }
+
+    public MetricsServletWrapper(Servlet servlet, MetricsControl control)
     {
         super(servlet);
-        this.metricsListener = metricsListener;
+        this.control = control;
     }
 
     /**
@@ -47,6 +55,7 @@ public class MetricsServletWrapper extends ServletHolder.Wrapper
     @Override
     public void init(ServletConfig config) throws ServletException
     {
+        ServletMetricsListener metricsListener = control.getListener();
         ServletContext servletContext = config.getServletContext();
         Servlet delegate = getWrapped();
         long start = System.nanoTime();
@@ -69,23 +78,145 @@ public class MetricsServletWrapper extends ServletHolder.Wrapper
     @Override
     public void service(ServletRequest req, ServletResponse res) throws ServletException, IOException
     {
+        MetricsControl.Registration registration = control.getActiveRegistration();
+        if (registration == null)
+        {
+            getWrapped().service(req, res);
+            return;
+        }
+
+        ServletMetricsListener metricsListener = registration.getListener();
+        boolean enter = registration.isInterested(ServletMetricsListener.INTEREST_SERVLET_ENTER);
+        boolean exit = registration.isInterested(ServletMetricsListener.INTEREST_SERVLET_EXIT);
+        if (metricsListener instanceof DispatchMetricsListener)
+        {
+            dispatch((DispatchMetricsListener)metricsListener, enter, exit, req, res);
+            return;
+        }
+
+        Servlet delegate = Objects.requireNonNull(getWrapped());
+        if (!enter && !exit)
+        {
+            service(metricsListener, null, delegate, req, res);
+            return;
+        }
+
         ServletContext servletContext = req.getServletContext();
+        long start = exit ? System.nanoTime() : 0;
+        try
+        {
+            if (enter)
+            {
+                metricsListener.onServletEnter(servletContext, delegate, req);
+            }
+            service(metricsListener, servletContext, delegate, req, res);
+            if (exit)
+            {
+                long end = System.nanoTime();
+                long dur = end - start;
+                metricsListener.onServletExit(servletContext, delegate, req, Duration.of(dur, ChronoUnit.NANOS), null);
+            }
+        }
+        catch (Throwable cause)
+        {
+            if (exit)
+            {
+                long end = System.nanoTime();
+                long dur = end - start;
+                metricsListener.onServletExit(servletContext, delegate, req, Duration.of(dur, ChronoUnit.NANOS), cause);
+            }
+            throw cause;
+        }
+    }
+
+    private void dispatch(DispatchMetricsListener dispatchListener, boolean enter, boolean exit, ServletRequest req, ServletResponse res) throws ServletException, IOException
+    {
+        ServletContext servletContext = enter || exit ? req.getServletContext() : null;
         Servlet delegate = Objects.requireNonNull(getWrapped());
-        long start = System.nanoTime();
+        DispatcherType dispatcherType = req.getDispatcherType();
+        Object nesting = req.getAttribute(MetricsHandler.ATTR_DISPATCH_DEPTH);
+        int depth = nesting instanceof Integer ? (Integer)nesting : 0;
+        // Nested dispatches from within this servlet are one level deeper.
+        req.setAttribute(MetricsHandler.ATTR_DISPATCH_DEPTH, depth + 1);
+        long start = exit ? System.nanoTime() : 0;
         try
         {
-            metricsListener.onServletEnter(servletContext, delegate, req);
-            delegate.service(req, res);
-            long end = System.nanoTime();
-            long dur = end - start;
-            metricsListener.onServletExit(servletContext, delegate, req, Duration.of(dur, ChronoUnit.NANOS), null);
+            if (enter)
+            {
+                dispatchListener.onServletDispatchEnter(servletContext, delegate, req, dispatcherType, depth);
+            }
+            service(dispatchListener, servletContext, delegate, req, res);
+            if (exit)
+            {
+                long end = System.nanoTime();
+                long dur = end - start;
+                dispatchListener.onServletDispatchExit(servletContext, delegate, req, dispatcherType, depth, Duration.of(dur, ChronoUnit.NANOS), null);
+            }
         }
         catch (Throwable cause)
         {
-            long end = System.nanoTime();
-            long dur = end - start;
-            metricsListener.onServletExit(servletContext, delegate, req, Duration.of(dur, ChronoUnit.NANOS), cause);
+            if (exit)
+            {
+                long end = System.nanoTime();
+                long dur = end - start;
+                dispatchListener.onServletDispatchExit(servletContext, delegate, req, dispatcherType, depth, Duration.of(dur, ChronoUnit.NANOS), cause);
+            }
             throw cause;
         }
+        finally
+        {
+            if (depth == 0)
+            {
+                req.removeAttribute(MetricsHandler.ATTR_DISPATCH_DEPTH);
+            }
+            else
+            {
+                req.setAttribute(MetricsHandler.ATTR_DISPATCH_DEPTH, depth);
+            }
+        }
+    }
+
+    private void service(ServletMetricsListener metricsListener, ServletContext servletContext, Servlet delegate, ServletRequest req, ServletResponse res) throws ServletException, IOException
+    {
+        if (!control.isMeasureResources() || !(metricsListener instanceof ResourceMetricsListener))
+        {
+            invoke(metricsListener, servletContext, delegate, req, res);
+            return;
+        }
+
+        long cpuStart = ThreadResources.getCpuTime();
+        long allocatedStart = ThreadResources.getAllocatedBytes();
+        try
+        {
+            invoke(metricsListener, servletContext, delegate, req, res);
+        }
+        finally
+        {
+            long cpuTime = cpuStart < 0 ? -1 : ThreadResources.getCpuTime() - cpuStart;
+            long allocatedBytes = allocatedStart < 0 ? -1 : ThreadResources.getAllocatedBytes() - allocatedStart;
+            if (servletContext == null)
+            {
+                servletContext = req.getServletContext();
+            }
+            ((ResourceMetricsListener)metricsListener).onServletResources(servletContext, delegate, req, cpuTime, allocatedBytes);
+        }
+    }
+
+    private static void invoke(ServletMetricsListener metricsListener, ServletContext servletContext, Servlet delegate, ServletRequest req, ServletResponse res) throws ServletException, IOException
+    {
+        if (!(metricsListener instanceof IoMetricsListener) || req.getDispatcherType() != DispatcherType.REQUEST || !req.isAsyncSupported() ||
+            !(req instanceof HttpServletRequest) || !(res instanceof HttpServletResponse))
+        {
+            delegate.service(req, res);
+            return;
+        }
+
+        // Only the servlet sees the wrappers, the events are notified with the original request.
+        if (servletContext == null)
+        {
+            servletContext = req.getServletContext();
+        }
+        IoTracker tracker = new IoTracker((IoMetricsListener)metricsListener, servletContext, delegate, req);
+        delegate.service(tracker.wrapRequest((HttpServletRequest)req), tracker.wrapResponse((HttpServletResponse)res));
     }
 }
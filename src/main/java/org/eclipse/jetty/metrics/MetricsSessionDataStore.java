@@ -0,0 +1,169 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import java.util.Set;
+import javax.servlet.ServletContext;
+
+import org.eclipse.jetty.server.session.SessionContext;
+import org.eclipse.jetty.server.session.SessionData;
+import org.eclipse.jetty.server.session.SessionDataStore;
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+
+/**
+ * Times the operations of a {@link SessionDataStore} for a {@link SessionMetricsListener}.
+ */
+public class MetricsSessionDataStore extends ContainerLifeCycle implements SessionDataStore
+{
+    private final SessionDataStore delegate;
+    private final ServletContext servletContext;
+    private final MetricsControl control;
+
+    public MetricsSessionDataStore(SessionDataStore delegate, ServletContext servletContext, MetricsControl control)
+    {
+        this.delegate = delegate;
+        this.servletContext = servletContext;
+        this.control = control;
+        addBean(delegate, true);
+    }
+
+    public SessionDataStore getWrapped()
+    {
+        return delegate;
+    }
+
+    private void notify(SessionMetricsListener.StoreOperation operation, long start, Throwable cause)
+    {
+        ServletMetricsListener metricsListener = control.getActiveListener();
+        if (metricsListener instanceof SessionMetricsListener)
+        {
+            Duration duration = Duration.ofNanos(System.nanoTime() - start);
+            ((SessionMetricsListener)metricsListener).onSessionStoreOperation(servletContext, operation, duration, cause);
+        }
+    }
+
+    @Override
+    public void initialize(SessionContext context) throws Exception
+    {
+        delegate.initialize(context);
+    }
+
+    @Override
+    public SessionData load(String id) throws Exception
+    {
+        long start = System.nanoTime();
+        try
+        {
+            SessionData data = delegate.load(id);
+            notify(SessionMetricsListener.StoreOperation.LOAD, start, null);
+            return data;
+        }
+        catch (Throwable cause)
+        {
+            notify(SessionMetricsListener.StoreOperation.LOAD, start, cause);
+            throw cause;
+        }
+    }
+
+    @Override
+    public void store(String id, SessionData data) throws Exception
+    {
+        long start = System.nanoTime();
+        try
+        {
+            delegate.store(id, data);
+            notify(SessionMetricsListener.StoreOperation.STORE, start, null);
+        }
+        catch (Throwable cause)
+        {
+            notify(SessionMetricsListener.StoreOperation.STORE, start, cause);
+            throw cause;
+        }
+    }
+
+    @Override
+    public boolean delete(String id) throws Exception
+    {
+        long start = System.nanoTime();
+        try
+        {
+            boolean deleted = delegate.delete(id);
+            notify(SessionMetricsListener.StoreOperation.DELETE, start, null);
+            return deleted;
+        }
+        catch (Throwable cause)
+        {
+            notify(SessionMetricsListener.StoreOperation.DELETE, start, cause);
+            throw cause;
+        }
+    }
+
+    @Override
+    public boolean exists(String id) throws Exception
+    {
+        long start = System.nanoTime();
+        try
+        {
+            boolean exists = delegate.exists(id);
+            notify(SessionMetricsListener.StoreOperation.EXISTS, start, null);
+            return exists;
+        }
+        catch (Throwable cause)
+        {
+            notify(SessionMetricsListener.StoreOperation.EXISTS, start, cause);
+            throw cause;
+        }
+    }
+
+    @Override
+    public Set<String> getExpired(Set<String> candidates)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            Set<String> expired = delegate.getExpired(candidates);
+            notify(SessionMetricsListener.StoreOperation.GET_EXPIRED, start, null);
+            return expired;
+        }
+        catch (Throwable cause)
+        {
+            notify(SessionMetricsListener.StoreOperation.GET_EXPIRED, start, cause);
+            throw cause;
+        }
+    }
+
+    @Override
+    public SessionData newSessionData(String id, long created, long accessed, long lastAccessed, long maxInactiveMs)
+    {
+        return delegate.newSessionData(id, created, accessed, lastAccessed, maxInactiveMs);
+    }
+
+    @Override
+    public boolean isPassivating()
+    {
+        return delegate.isPassivating();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x{%s}", getClass().getSimpleName(), hashCode(), delegate);
+    }
+}
@@ -0,0 +1,70 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+
+/**
+ * Notifies the session lifecycle of a context to a {@link SessionMetricsListener}.
+ */
+public class MetricsSessionListener implements HttpSessionListener
+{
+    private final ServletContext servletContext;
+    private final MetricsControl control;
+
+    public MetricsSessionListener(ServletContext servletContext, MetricsControl control)
+    {
+        this.servletContext = servletContext;
+        this.control = control;
+    }
+
+    @Override
+    public void sessionCreated(HttpSessionEvent event)
+    {
+        ServletMetricsListener metricsListener = control.getActiveListener();
+        if (metricsListener instanceof SessionMetricsListener)
+        {
+            ((SessionMetricsListener)metricsListener).onSessionCreated(servletContext, event.getSession());
+        }
+    }
+
+    @Override
+    public void sessionDestroyed(HttpSessionEvent event)
+    {
+        ServletMetricsListener metricsListener = control.getActiveListener();
+        if (metricsListener instanceof SessionMetricsListener)
+        {
+            HttpSession session = event.getSession();
+            Duration lifetime;
+            try
+            {
+                lifetime = Duration.ofMillis(System.currentTimeMillis() - session.getCreationTime());
+            }
+            catch (IllegalStateException x)
+            {
+                lifetime = null;
+            }
+            ((SessionMetricsListener)metricsListener).onSessionDestroyed(servletContext, session, lifetime);
+        }
+    }
+}
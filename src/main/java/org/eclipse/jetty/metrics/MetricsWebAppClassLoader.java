@@ -0,0 +1,238 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.webapp.WebAppClassLoader;
+import org.eclipse.jetty.webapp.WebAppContext;
+
+/**
+ * A {@link WebAppClassLoader} measuring its class loading and resource lookups,
+ * in {@link ClassLoadingStats} for every {@link ClassLoadingMetricsListener.Phase} of its WebApp.
+ */
+public class MetricsWebAppClassLoader extends WebAppClassLoader
+{
+    private static final ClassLoadingMetricsListener.Phase[] PHASES = ClassLoadingMetricsListener.Phase.values();
+    private static final ThreadLocal<int[]> DEPTH = ThreadLocal.withInitial(() -> new int[1]);
+
+    private final ClassLoadingStats[] stats = new ClassLoadingStats[PHASES.length];
+    private final AtomicInteger notifiedPhases = new AtomicInteger();
+    private final WebAppContext context;
+    private final MetricsControl control;
+    private final long warmup;
+    private volatile long started;
+
+    /**
+     * @param context the WebApp
+     * @param control the control of the listener to notify
+     * @param warmup the duration of the WARMUP phase, in nanoseconds
+     * @throws IOException if the class loader cannot be created
+     */
+    public MetricsWebAppClassLoader(WebAppContext context, MetricsControl control, long warmup) throws IOException
+    {
+        super(context);
+        this.context = context;
+        this.control = control;
+        this.warmup = warmup;
+        for (int i = 0; i < stats.length; i++)
+        {
+            stats[i] = new ClassLoadingStats();
+        }
+    }
+
+    /**
+     * @param phase the phase
+     * @return the class loading work during the phase, so far
+     */
+    public ClassLoadingStats getClassLoadingStats(ClassLoadingMetricsListener.Phase phase)
+    {
+        return stats[phase.ordinal()];
+    }
+
+    private ClassLoadingMetricsListener.Phase getPhase(long now)
+    {
+        long start = started;
+        if (start == 0)
+        {
+            return ClassLoadingMetricsListener.Phase.STARTUP;
+        }
+        if (now - start < warmup)
+        {
+            return ClassLoadingMetricsListener.Phase.WARMUP;
+        }
+        notifyPhases(ClassLoadingMetricsListener.Phase.STEADY.ordinal());
+        return ClassLoadingMetricsListener.Phase.STEADY;
+    }
+
+    /**
+     * Called when the WebApp is ready, ending the STARTUP phase.
+     */
+    void onStarted()
+    {
+        started = System.nanoTime();
+        notifyPhases(ClassLoadingMetricsListener.Phase.WARMUP.ordinal());
+    }
+
+    /**
+     * Called when the WebApp stops, ending the current phase.
+     */
+    void onStopping()
+    {
+        notifyPhases(getPhase(System.nanoTime()).ordinal() + 1);
+    }
+
+    /**
+     * Notifies the end of the phases not notified yet, until the given number of phases are notified.
+     */
+    private void notifyPhases(int count)
+    {
+        while (true)
+        {
+            int notified = notifiedPhases.get();
+            if (notified >= count)
+            {
+                return;
+            }
+            if (notifiedPhases.compareAndSet(notified, notified + 1))
+            {
+                ServletMetricsListener metricsListener = control.getListener();
+                if (metricsListener instanceof ClassLoadingMetricsListener)
+                {
+                    ((ClassLoadingMetricsListener)metricsListener).onClassLoadingPhaseEnd(context, PHASES[notified], stats[notified]);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+    {
+        int[] depth = DEPTH.get();
+        if (depth[0]++ > 0)
+        {
+            try
+            {
+                return super.loadClass(name, resolve);
+            }
+            finally
+            {
+                depth[0]--;
+            }
+        }
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        try
+        {
+            Class<?> loaded = super.loadClass(name, resolve);
+            failed = false;
+            return loaded;
+        }
+        finally
+        {
+            depth[0]--;
+            long end = System.nanoTime();
+            stats[getPhase(end).ordinal()].onLoadClass(end - start, failed);
+        }
+    }
+
+    @Override
+    protected Class<?> foundClass(String name, URL url) throws ClassNotFoundException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return super.foundClass(name, url);
+        }
+        finally
+        {
+            long end = System.nanoTime();
+            stats[getPhase(end).ordinal()].onDefineClass(end - start);
+        }
+    }
+
+    @Override
+    public URL getResource(String name)
+    {
+        int[] depth = DEPTH.get();
+        if (depth[0]++ > 0)
+        {
+            try
+            {
+                return super.getResource(name);
+            }
+            finally
+            {
+                depth[0]--;
+            }
+        }
+
+        long start = System.nanoTime();
+        try
+        {
+            return super.getResource(name);
+        }
+        finally
+        {
+            depth[0]--;
+            long end = System.nanoTime();
+            stats[getPhase(end).ordinal()].onResourceLookup(end - start);
+        }
+    }
+
+    @Override
+    public Enumeration<URL> getResources(String name) throws IOException
+    {
+        int[] depth = DEPTH.get();
+        if (depth[0]++ > 0)
+        {
+            try
+            {
+                return super.getResources(name);
+            }
+            finally
+            {
+                depth[0]--;
+            }
+        }
+
+        long start = System.nanoTime();
+        try
+        {
+            return super.getResources(name);
+        }
+        finally
+        {
+            depth[0]--;
+            long end = System.nanoTime();
+            stats[getPhase(end).ordinal()].onResourceLookup(end - start);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x{%s,warmup=%ds}", getClass().getSimpleName(), hashCode(), context.getContextPath(), TimeUnit.NANOSECONDS.toSeconds(warmup));
+    }
+}
@@ -0,0 +1,49 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import javax.servlet.ServletContext;
+
+import org.eclipse.jetty.servlet.BaseHolder;
+
+/**
+ * A {@link ServletMetricsListener} that is told the Servlets, Filters and listeners registered dynamically.
+ * <p>
+ * A registration is dynamic when it comes from the {@link ServletContext} API, eg: {@link ServletContext#addServlet(String, Class)}
+ * called by a {@link javax.servlet.ServletContainerInitializer} or a {@link javax.servlet.ServletContextListener},
+ * or when it happens after the context has started, eg: with
+ * {@link org.eclipse.jetty.servlet.ServletHandler#addServletWithMapping(Class, String)} at runtime.
+ * The latter are late registrations.
+ * The dynamically registered Servlets and Filters are wrapped like the others, when their holder initializes them.
+ * </p>
+ *
+ * @see MetricsHandler#getInstrumentationStatistics()
+ */
+public interface RegistrationMetricsListener extends ServletMetricsListener
+{
+    /**
+     * Event indicating a Servlet, Filter or listener was registered dynamically.
+     *
+     * @param servletContext the specific context that the component is registered with.
+     * @param holder the holder of the component, a {@link org.eclipse.jetty.servlet.ServletHolder},
+     * a {@link org.eclipse.jetty.servlet.FilterHolder} or a {@link org.eclipse.jetty.servlet.ListenerHolder}
+     * @param late true if the component was registered after its context started
+     */
+    void onDynamicRegistration(ServletContext servletContext, BaseHolder<?> holder, boolean late);
+}
@@ -0,0 +1,60 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import javax.servlet.Filter;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+
+/**
+ * A {@link ServletMetricsListener} that is told the CPU time and the bytes allocated by the
+ * thread during every Filter and Servlet call, including the nested calls.
+ * <p>
+ * These events are only notified when resource measurement is enabled with
+ * {@link MetricsHandler#setMeasureResources(boolean)}, just before the corresponding exit event.
+ * Calls that go asynchronous are only measured up to the return of the thread to the container.
+ * </p>
+ *
+ * @see ThreadResources
+ */
+public interface ResourceMetricsListener extends ServletMetricsListener
+{
+    /**
+     * Event indicating the resources used by the thread during a call to a Filter.
+     *
+     * @param servletContext the specific context that the filter belongs to.
+     * @param filter the filter that was called
+     * @param request the request that caused this filter to be called.
+     * @param cpuTime the CPU time of the call in nanoseconds, or -1 if not measured
+     * @param allocatedBytes the bytes allocated during the call, or -1 if not measured
+     */
+    void onFilterResources(ServletContext servletContext, Filter filter, ServletRequest request, long cpuTime, long allocatedBytes);
+
+    /**
+     * Event indicating the resources used by the thread during a call to a Servlet.
+     *
+     * @param servletContext the specific context that the servlet belongs to.
+     * @param servlet the servlet that was called
+     * @param request the request that caused this servlet to be called.
+     * @param cpuTime the CPU time of the call in nanoseconds, or -1 if not measured
+     * @param allocatedBytes the bytes allocated during the call, or -1 if not measured
+     */
+    void onServletResources(ServletContext servletContext, Servlet servlet, ServletRequest request, long cpuTime, long allocatedBytes);
+}
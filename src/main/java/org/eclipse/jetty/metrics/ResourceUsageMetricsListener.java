@@ -0,0 +1,148 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.util.Set;
+import javax.servlet.Filter;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+
+/**
+ * Aggregates the CPU time and the allocated bytes of every Servlet and Filter call since startup,
+ * in {@link LatencyHistogram}s (allocations beyond {@link LatencyHistogram#MAX_VALUE} bytes are
+ * counted in the last bucket).
+ * <p>
+ * Resource measurement must be enabled with {@link MetricsHandler#setMeasureResources(boolean)}.
+ * </p>
+ */
+public class ResourceUsageMetricsListener extends AbstractServletMetricsListener implements ResourceMetricsListener
+{
+    private final MetricRegistry registry = new MetricRegistry();
+    private final MetricRegistry.Table<Servlet, ResourceStats> servlets = registry.newTable(ResourceUsageMetricsListener::newResourceStats);
+    private final MetricRegistry.Table<Filter, ResourceStats> filters = registry.newTable(ResourceUsageMetricsListener::newResourceStats);
+
+    private static ResourceStats newResourceStats(Object component)
+    {
+        return new ResourceStats();
+    }
+
+    /**
+     * @return the registry of the series of this listener, to bound their memory and to read their evictions
+     */
+    public MetricRegistry getMetricRegistry()
+    {
+        return registry;
+    }
+
+    @Override
+    public void onServletContextStopped(ServletContext servletContext)
+    {
+        registry.evictContext(servletContext);
+    }
+
+    @Override
+    public int getInterests()
+    {
+        // Only the resource events are used.
+        return 0;
+    }
+
+    @Override
+    public void onFilterResources(ServletContext servletContext, Filter filter, ServletRequest request, long cpuTime, long allocatedBytes)
+    {
+        ResourceStats stats = filters.acquire(servletContext, filter);
+        stats.record(cpuTime, allocatedBytes);
+    }
+
+    @Override
+    public void onServletResources(ServletContext servletContext, Servlet servlet, ServletRequest request, long cpuTime, long allocatedBytes)
+    {
+        ResourceStats stats = servlets.acquire(servletContext, servlet);
+        stats.record(cpuTime, allocatedBytes);
+    }
+
+    public Set<Servlet> getServlets()
+    {
+        return servlets.keySet();
+    }
+
+    public Set<Filter> getFilters()
+    {
+        return filters.keySet();
+    }
+
+    /**
+     * @param servlet the servlet
+     * @return the CPU times of the calls to the servlet, in nanoseconds, or null if the servlet was never measured
+     */
+    public LatencyHistogram getServletCpuTime(Servlet servlet)
+    {
+        ResourceStats stats = servlets.get(servlet);
+        return stats == null ? null : stats.cpuTime;
+    }
+
+    /**
+     * @param servlet the servlet
+     * @return the bytes allocated by the calls to the servlet, or null if the servlet was never measured
+     */
+    public LatencyHistogram getServletAllocatedBytes(Servlet servlet)
+    {
+        ResourceStats stats = servlets.get(servlet);
+        return stats == null ? null : stats.allocatedBytes;
+    }
+
+    /**
+     * @param filter the filter
+     * @return the CPU times of the calls to the filter, in nanoseconds, or null if the filter was never measured
+     */
+    public LatencyHistogram getFilterCpuTime(Filter filter)
+    {
+        ResourceStats stats = filters.get(filter);
+        return stats == null ? null : stats.cpuTime;
+    }
+
+    /**
+     * @param filter the filter
+     * @return the bytes allocated by the calls to the filter, or null if the filter was never measured
+     */
+    public LatencyHistogram getFilterAllocatedBytes(Filter filter)
+    {
+        ResourceStats stats = filters.get(filter);
+        return stats == null ? null : stats.allocatedBytes;
+    }
+
+    private static class ResourceStats
+    {
+        private final LatencyHistogram cpuTime = new LatencyHistogram();
+        private final LatencyHistogram allocatedBytes = new LatencyHistogram();
+
+        private void record(long cpu, long allocated)
+        {
+            if (cpu >= 0)
+            {
+                cpuTime.record(cpu);
+            }
+            if (allocated >= 0)
+            {
+                allocatedBytes.record(allocated);
+            }
+        }
+    }
+}
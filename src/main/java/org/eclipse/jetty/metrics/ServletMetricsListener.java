@@ -38,9 +38,61 @@ import javax.servlet.ServletResponse;
  * Listener it is used, otherwise the Server level Bean is used if present.
  * If no bean is discovered, no listener is notified.
  * </p>
+ * <p>
+ * If the listener also implements {@link org.eclipse.jetty.server.HttpChannel.Listener}
+ * the {@link MetricsHandler} notifies it of the begin, the dispatches, the response begin
+ * and the completion of every request.
+ * </p>
  */
 public interface ServletMetricsListener
 {
+    /**
+     * Interest in {@link #onFilterEnter(ServletContext, Filter, ServletRequest)}.
+     */
+    int INTEREST_FILTER_ENTER = 1;
+
+    /**
+     * Interest in {@link #onFilterExit(ServletContext, Filter, ServletRequest, Duration, Throwable)}.
+     */
+    int INTEREST_FILTER_EXIT = 1 << 1;
+
+    /**
+     * Interest in {@link #onServletEnter(ServletContext, Servlet, ServletRequest)}.
+     */
+    int INTEREST_SERVLET_ENTER = 1 << 2;
+
+    /**
+     * Interest in {@link #onServletExit(ServletContext, Servlet, ServletRequest, Duration, Throwable)}.
+     */
+    int INTEREST_SERVLET_EXIT = 1 << 3;
+
+    /**
+     * Interest in the exit events only, which carry the durations.
+     */
+    int INTEREST_EXITS = INTEREST_FILTER_EXIT | INTEREST_SERVLET_EXIT;
+
+    /**
+     * Interest in all the per-request events.
+     */
+    int INTEREST_ALL = INTEREST_FILTER_ENTER | INTEREST_FILTER_EXIT | INTEREST_SERVLET_ENTER | INTEREST_SERVLET_EXIT;
+
+    /**
+     * The per-request events this listener wants to be notified of.
+     * <p>
+     * The interests are read once, when the listener is registered with the {@link MetricsControl},
+     * and the wrappers skip the events, the time measurements and the {@link ServletRequest#getServletContext()}
+     * lookups that no one is interested in.
+     * The enter and exit events of a {@link DispatchMetricsListener} follow the same interests.
+     * Startup events and the events of the other extension interfaces are always notified.
+     * </p>
+     *
+     * @return a bitmask of the {@code INTEREST_*} constants, by default {@link #INTEREST_ALL}
+     */
+    default int getInterests()
+    {
+        return INTEREST_ALL;
+    }
+
     /**
      * Event that the ServletContext has started to be initialized
      *
@@ -55,6 +107,16 @@ public interface ServletMetricsListener
      */
     void onServletContextReady(ServletContext servletContext);
 
+    /**
+     * Event that the ServletContext has stopped, eg: to release the metrics of its Servlets and Filters
+     * when it is redeployed.
+     *
+     * @param servletContext the specific context that has stopped.
+     */
+    default void onServletContextStopped(ServletContext servletContext)
+    {
+    }
+
     /**
      * A specific Servlet is being started / initialized
      *
@@ -0,0 +1,87 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+
+/**
+ * A {@link ServletMetricsListener} that is told the session lifecycle and the session store
+ * operations of every context.
+ * <p>
+ * The {@link MetricsHandler} instruments the {@link org.eclipse.jetty.server.session.SessionHandler}
+ * of the contexts started while it has a listener implementing this interface, by wrapping the
+ * {@link org.eclipse.jetty.server.session.SessionDataStore} of their session cache.
+ * </p>
+ */
+public interface SessionMetricsListener extends ServletMetricsListener
+{
+    enum StoreOperation
+    {
+        /**
+         * A session was loaded from the store, eg: on a cache miss.
+         */
+        LOAD,
+        /**
+         * A session was saved to the store, eg: when the last request of the session exits,
+         * or when the session is evicted or passivated.
+         */
+        STORE,
+        /**
+         * A session was deleted from the store, eg: when invalidated.
+         */
+        DELETE,
+        /**
+         * The store was asked whether a session exists, eg: for a new session id.
+         */
+        EXISTS,
+        /**
+         * The store was scanned for expired sessions.
+         */
+        GET_EXPIRED
+    }
+
+    /**
+     * Event indicating a session was created.
+     *
+     * @param servletContext the context of the session
+     * @param session the session
+     */
+    void onSessionCreated(ServletContext servletContext, HttpSession session);
+
+    /**
+     * Event indicating a session was invalidated or expired.
+     *
+     * @param servletContext the context of the session
+     * @param session the session
+     * @param lifetime the time since the session was created, or null if unknown
+     */
+    void onSessionDestroyed(ServletContext servletContext, HttpSession session, Duration lifetime);
+
+    /**
+     * Event indicating an operation of the session store completed.
+     *
+     * @param servletContext the context of the session store
+     * @param operation the operation
+     * @param duration the duration of the operation
+     * @param cause if the operation failed, the failure, otherwise null
+     */
+    void onSessionStoreOperation(ServletContext servletContext, StoreOperation operation, Duration duration, Throwable cause);
+}
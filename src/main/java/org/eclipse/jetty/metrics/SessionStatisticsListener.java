@@ -0,0 +1,180 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Counts the sessions of every context and aggregates the latencies of their session store operations,
+ * eg: to size the session caches or to choose between caching and not caching sessions.
+ */
+public class SessionStatisticsListener extends AbstractServletMetricsListener implements SessionMetricsListener
+{
+    private static final StoreOperation[] OPERATIONS = StoreOperation.values();
+
+    private final MetricRegistry registry = new MetricRegistry();
+    private final MetricRegistry.Table<ServletContext, SessionStats> contexts = registry.newTable(c -> new SessionStats());
+
+    private SessionStats getSessionStats(ServletContext servletContext)
+    {
+        return contexts.acquire(servletContext, servletContext);
+    }
+
+    /**
+     * @return the registry of the series of this listener, to bound their memory and to read their evictions
+     */
+    public MetricRegistry getMetricRegistry()
+    {
+        return registry;
+    }
+
+    @Override
+    public void onServletContextStopped(ServletContext servletContext)
+    {
+        registry.evictContext(servletContext);
+    }
+
+    @Override
+    public int getInterests()
+    {
+        // Only the session events are used.
+        return 0;
+    }
+
+    @Override
+    public void onSessionCreated(ServletContext servletContext, HttpSession session)
+    {
+        SessionStats stats = getSessionStats(servletContext);
+        stats.created.incrementAndGet();
+        stats.active.incrementAndGet();
+    }
+
+    @Override
+    public void onSessionDestroyed(ServletContext servletContext, HttpSession session, Duration lifetime)
+    {
+        SessionStats stats = getSessionStats(servletContext);
+        stats.destroyed.incrementAndGet();
+        stats.active.decrementAndGet();
+        if (lifetime != null)
+        {
+            stats.lifetimes.record(lifetime.toMillis());
+        }
+    }
+
+    @Override
+    public void onSessionStoreOperation(ServletContext servletContext, StoreOperation operation, Duration duration, Throwable cause)
+    {
+        SessionStats stats = getSessionStats(servletContext);
+        stats.operations[operation.ordinal()].record(duration.toNanos());
+        if (cause != null)
+        {
+            stats.failures.incrementAndGet(operation.ordinal());
+        }
+    }
+
+    public Set<ServletContext> getServletContexts()
+    {
+        return contexts.keySet();
+    }
+
+    /**
+     * @param servletContext the context
+     * @return the number of sessions created and not yet destroyed since this listener was installed
+     */
+    public long getActiveSessions(ServletContext servletContext)
+    {
+        SessionStats stats = contexts.get(servletContext);
+        return stats == null ? 0 : stats.active.get();
+    }
+
+    /**
+     * @param servletContext the context
+     * @return the number of sessions created
+     */
+    public long getCreatedSessions(ServletContext servletContext)
+    {
+        SessionStats stats = contexts.get(servletContext);
+        return stats == null ? 0 : stats.created.get();
+    }
+
+    /**
+     * @param servletContext the context
+     * @return the number of sessions invalidated or expired
+     */
+    public long getDestroyedSessions(ServletContext servletContext)
+    {
+        SessionStats stats = contexts.get(servletContext);
+        return stats == null ? 0 : stats.destroyed.get();
+    }
+
+    /**
+     * @param servletContext the context
+     * @return the lifetimes of the destroyed sessions, in milliseconds, or null if the context is unknown
+     */
+    public LatencyHistogram getSessionLifetimes(ServletContext servletContext)
+    {
+        SessionStats stats = contexts.get(servletContext);
+        return stats == null ? null : stats.lifetimes;
+    }
+
+    /**
+     * @param servletContext the context
+     * @param operation the session store operation
+     * @return the latencies of the operation, or null if the context is unknown
+     */
+    public LatencyHistogram getStoreOperationHistogram(ServletContext servletContext, StoreOperation operation)
+    {
+        SessionStats stats = contexts.get(servletContext);
+        return stats == null ? null : stats.operations[operation.ordinal()];
+    }
+
+    /**
+     * @param servletContext the context
+     * @param operation the session store operation
+     * @return the number of times the operation failed
+     */
+    public long getStoreOperationFailures(ServletContext servletContext, StoreOperation operation)
+    {
+        SessionStats stats = contexts.get(servletContext);
+        return stats == null ? 0 : stats.failures.get(operation.ordinal());
+    }
+
+    private static class SessionStats
+    {
+        private final AtomicLong active = new AtomicLong();
+        private final AtomicLong created = new AtomicLong();
+        private final AtomicLong destroyed = new AtomicLong();
+        private final LatencyHistogram lifetimes = new LatencyHistogram();
+        private final LatencyHistogram[] operations = new LatencyHistogram[OPERATIONS.length];
+        private final AtomicLongArray failures = new AtomicLongArray(OPERATIONS.length);
+
+        private SessionStats()
+        {
+            for (int i = 0; i < operations.length; i++)
+            {
+                operations[i] = new LatencyHistogram();
+            }
+        }
+    }
+}
@@ -0,0 +1,295 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.servlet.Filter;
+import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+
+/**
+ * Aggregates the latencies of every Servlet and Filter in intervals, handing consistent
+ * snapshots of the last interval to readers such as exporters.
+ * <p>
+ * Every component records into one of two buffers, with its own {@link WriterReaderPhaser};
+ * {@link #snapshot()} flips the writers of the components to their other buffers one after
+ * the other, and reads the previous ones, which no writer touches anymore.
+ * Every snapshot so covers exactly the calls that exited since the previous snapshot,
+ * with counts, totals and distributions from the same interval for each component,
+ * recording never waits on a reader, and writers of different components never contend.
+ * The components are flipped in sequence, so the interval of a snapshot ends a little later
+ * for the last components than for the first ones.
+ * </p>
+ */
+public class SnapshotMetricsListener extends AbstractServletMetricsListener
+{
+    private final MetricRegistry registry = new MetricRegistry();
+    private final MetricRegistry.Table<Servlet, DoubleBuffer> servlets = registry.newTable(SnapshotMetricsListener::newDoubleBuffer);
+    private final MetricRegistry.Table<Filter, DoubleBuffer> filters = registry.newTable(SnapshotMetricsListener::newDoubleBuffer);
+    private long intervalStart = System.nanoTime();
+
+    private static DoubleBuffer newDoubleBuffer(Object component)
+    {
+        return new DoubleBuffer();
+    }
+
+    /**
+     * @return the registry of the series of this listener, to bound their memory and to read their evictions
+     */
+    public MetricRegistry getMetricRegistry()
+    {
+        return registry;
+    }
+
+    @Override
+    public void onServletContextStopped(ServletContext servletContext)
+    {
+        registry.evictContext(servletContext);
+    }
+
+    @Override
+    public int getInterests()
+    {
+        return INTEREST_EXITS;
+    }
+
+    @Override
+    public void onFilterExit(ServletContext servletContext, Filter filter, ServletRequest request, Duration duration, Throwable cause)
+    {
+        DoubleBuffer buffer = filters.acquire(servletContext, filter);
+        record(buffer, duration.toNanos());
+    }
+
+    @Override
+    public void onServletExit(ServletContext servletContext, Servlet servlet, ServletRequest request, Duration duration, Throwable cause)
+    {
+        DoubleBuffer buffer = servlets.acquire(servletContext, servlet);
+        record(buffer, duration.toNanos());
+    }
+
+    private static void record(DoubleBuffer buffer, long value)
+    {
+        WriterReaderPhaser phaser = buffer.phaser;
+        long criticalValue = phaser.writerCriticalSectionEnter();
+        try
+        {
+            buffer.histograms[buffer.activeIndex].record(value);
+        }
+        finally
+        {
+            phaser.writerCriticalSectionExit(criticalValue);
+        }
+    }
+
+    /**
+     * Flips the writers to fresh buffers and returns the latencies recorded since the previous snapshot.
+     *
+     * @return the snapshot of the interval that just ended
+     */
+    public synchronized Snapshot snapshot()
+    {
+        long start = intervalStart;
+        long end = System.nanoTime();
+        intervalStart = end;
+        Map<Object, ServletContext> contexts = new HashMap<>();
+        Map<Object, String> names = new HashMap<>();
+        Map<Servlet, LatencyHistogram> servletHistograms = collect(servlets, contexts, names);
+        Map<Filter, LatencyHistogram> filterHistograms = collect(filters, contexts, names);
+        return new Snapshot(Duration.ofNanos(end - start), servletHistograms, filterHistograms, contexts, names);
+    }
+
+    /**
+     * @param component a servlet or filter
+     * @return whether the component has latencies that were not discarded, eg: because its context stopped
+     */
+    public boolean isRecorded(Object component)
+    {
+        if (component instanceof Servlet)
+        {
+            return servlets.get((Servlet)component) != null;
+        }
+        return component instanceof Filter && filters.get((Filter)component) != null;
+    }
+
+    private static <T> Map<T, LatencyHistogram> collect(MetricRegistry.Table<T, DoubleBuffer> buffers, Map<Object, ServletContext> contexts, Map<Object, String> names)
+    {
+        Map<T, LatencyHistogram> histograms = new LinkedHashMap<>();
+        for (T component : buffers.keySet())
+        {
+            DoubleBuffer buffer = buffers.get(component);
+            if (buffer == null)
+            {
+                continue;
+            }
+            WriterReaderPhaser phaser = buffer.phaser;
+            phaser.readerLock();
+            try
+            {
+                int inactiveIndex = buffer.activeIndex;
+                buffer.activeIndex = 1 - inactiveIndex;
+                phaser.flipPhase();
+
+                // No writer records into the inactive buffer anymore.
+                LatencyHistogram histogram = buffer.histograms[inactiveIndex];
+                if (histogram.getCount() > 0)
+                {
+                    ServletContext servletContext = buffers.getServletContext(component);
+                    if (buffer.name == null)
+                    {
+                        buffer.name = nameOf(servletContext, component);
+                    }
+                    histograms.put(component, histogram.getHistogram());
+                    contexts.put(component, servletContext);
+                    names.put(component, buffer.name);
+                    histogram.reset();
+                }
+            }
+            finally
+            {
+                phaser.readerUnlock();
+            }
+        }
+        return Collections.unmodifiableMap(histograms);
+    }
+
+    /**
+     * The servlet name, or the name of the holder of the filter, which is the name its FilterConfig gives,
+     * or the class name if the component was not deployed in a context.
+     */
+    private static String nameOf(ServletContext servletContext, Object component)
+    {
+        if (component instanceof Servlet)
+        {
+            ServletConfig config = ((Servlet)component).getServletConfig();
+            if (config != null && config.getServletName() != null)
+            {
+                return config.getServletName();
+            }
+        }
+        else if (component instanceof Filter && servletContext != null)
+        {
+            ServletContextHandler contextHandler = ServletContextHandler.getServletContextHandler(servletContext);
+            FilterHolder[] holders = contextHandler == null ? null : contextHandler.getServletHandler().getFilters();
+            if (holders != null)
+            {
+                for (FilterHolder holder : holders)
+                {
+                    Filter filter = holder.getFilter();
+                    while (filter instanceof FilterHolder.Wrapper && filter != component)
+                    {
+                        filter = ((FilterHolder.Wrapper)filter).getWrapped();
+                    }
+                    if (filter == component)
+                    {
+                        return holder.getName();
+                    }
+                }
+            }
+        }
+        return component.getClass().getName();
+    }
+
+    /**
+     * The latencies of all the components over one interval.
+     */
+    public static class Snapshot
+    {
+        private final Duration interval;
+        private final Map<Servlet, LatencyHistogram> servlets;
+        private final Map<Filter, LatencyHistogram> filters;
+        private final Map<Object, ServletContext> contexts;
+        private final Map<Object, String> names;
+
+        private Snapshot(Duration interval, Map<Servlet, LatencyHistogram> servlets, Map<Filter, LatencyHistogram> filters, Map<Object, ServletContext> contexts, Map<Object, String> names)
+        {
+            this.interval = interval;
+            this.servlets = servlets;
+            this.filters = filters;
+            this.contexts = contexts;
+            this.names = names;
+        }
+
+        /**
+         * @return the duration of the interval
+         */
+        public Duration getInterval()
+        {
+            return interval;
+        }
+
+        /**
+         * @return the latencies of the servlets called during the interval
+         */
+        public Map<Servlet, LatencyHistogram> getServletHistograms()
+        {
+            return servlets;
+        }
+
+        /**
+         * @return the latencies of the filters called during the interval
+         */
+        public Map<Filter, LatencyHistogram> getFilterHistograms()
+        {
+            return filters;
+        }
+
+        /**
+         * @param component a servlet or filter of this snapshot
+         * @return the context the component was called in, or null if unknown
+         */
+        public ServletContext getServletContext(Object component)
+        {
+            return contexts.get(component);
+        }
+
+        /**
+         * @param component a servlet or filter of this snapshot
+         * @return the servlet or filter name of the component, unique within its context,
+         * or its class name if it was not deployed in a context
+         */
+        public String getName(Object component)
+        {
+            return names.get(component);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s@%x{interval=%s,servlets=%d,filters=%d}", getClass().getSimpleName(), hashCode(), interval, servlets.size(), filters.size());
+        }
+    }
+
+    private static class DoubleBuffer
+    {
+        private final WriterReaderPhaser phaser = new WriterReaderPhaser();
+        private final LatencyHistogram[] histograms = {new LatencyHistogram(), new LatencyHistogram()};
+        private volatile int activeIndex;
+        // Guarded by snapshot().
+        private String name;
+    }
+}
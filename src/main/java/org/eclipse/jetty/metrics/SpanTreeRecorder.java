@@ -0,0 +1,379 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+
+import org.eclipse.jetty.server.HttpChannel;
+import org.eclipse.jetty.server.Request;
+
+/**
+ * Records the full call tree of every request, made of the Filters and Servlets entered,
+ * including the nested {@link javax.servlet.RequestDispatcher#include(ServletRequest, javax.servlet.ServletResponse)}
+ * and {@link javax.servlet.RequestDispatcher#forward(ServletRequest, javax.servlet.ServletResponse)}
+ * into the same or other contexts.
+ * <p>
+ * The nodes of the tree are taken from a per-thread pool and are returned to the pool
+ * when the request completes, so building the tree does not allocate in the steady state.
+ * Only the requests that take longer than the configured threshold are copied into a
+ * {@link RecordedSpan} tree and retained, in a fixed size ring of the most recent ones.
+ * </p>
+ * <p>
+ * Request completion is notified by the {@link MetricsHandler}, which must be
+ * added to the connectors with {@link MetricsHandler#addToAllConnectors(org.eclipse.jetty.server.Server)}.
+ * </p>
+ */
+public class SpanTreeRecorder extends AbstractServletMetricsListener implements HttpChannel.Listener
+{
+    public static final String ATTR_SPAN_TREE = SpanTreeRecorder.class.getName() + ".tree";
+    private static final int MAX_POOLED_SPANS = 256;
+
+    private final ThreadLocal<SpanPool> pools = ThreadLocal.withInitial(SpanPool::new);
+    private final AtomicReferenceArray<RecordedSpan> retained;
+    private final AtomicLong retainedCount = new AtomicLong();
+    private final long thresholdNanos;
+
+    /**
+     * @param threshold the minimum duration of a request for its tree to be retained
+     * @param capacity the number of most recent trees retained
+     */
+    public SpanTreeRecorder(Duration threshold, int capacity)
+    {
+        this.thresholdNanos = threshold.toNanos();
+        this.retained = new AtomicReferenceArray<>(capacity);
+    }
+
+    public Duration getThreshold()
+    {
+        return Duration.ofNanos(thresholdNanos);
+    }
+
+    /**
+     * @return the number of trees retained since startup, some of which may have been overwritten
+     */
+    public long getRetainedCount()
+    {
+        return retainedCount.get();
+    }
+
+    /**
+     * @return the most recently retained trees, oldest first
+     */
+    public List<RecordedSpan> getRetainedTrees()
+    {
+        List<RecordedSpan> trees = new ArrayList<>();
+        long count = retainedCount.get();
+        int capacity = retained.length();
+        for (long i = Math.max(0, count - capacity); i < count; i++)
+        {
+            RecordedSpan span = retained.get((int)(i % capacity));
+            if (span != null)
+            {
+                trees.add(span);
+            }
+        }
+        return trees;
+    }
+
+    private Span enter(ServletContext servletContext, Object component, ServletRequest request)
+    {
+        SpanPool pool = pools.get();
+        Span root = (Span)request.getAttribute(ATTR_SPAN_TREE);
+        if (root == null)
+        {
+            root = pool.acquire();
+            root.start = System.nanoTime();
+            root.current = root;
+            request.setAttribute(ATTR_SPAN_TREE, root);
+        }
+        Span parent = root.current;
+        Span span = pool.acquire();
+        span.parent = parent;
+        span.servletContext = servletContext;
+        span.component = component;
+        span.dispatcherType = request.getDispatcherType();
+        span.start = System.nanoTime();
+        if (parent.lastChild == null)
+        {
+            parent.firstChild = span;
+        }
+        else
+        {
+            parent.lastChild.nextSibling = span;
+        }
+        parent.lastChild = span;
+        root.current = span;
+        return span;
+    }
+
+    private void exit(ServletRequest request, Duration duration, Throwable cause)
+    {
+        Span root = (Span)request.getAttribute(ATTR_SPAN_TREE);
+        if (root == null || root.current == root)
+        {
+            return;
+        }
+        Span span = root.current;
+        span.duration = duration.toNanos();
+        span.cause = cause;
+        root.current = span.parent;
+    }
+
+    @Override
+    public void onFilterEnter(ServletContext servletContext, Filter filter, ServletRequest request)
+    {
+        enter(servletContext, filter, request);
+    }
+
+    @Override
+    public void onFilterExit(ServletContext servletContext, Filter filter, ServletRequest request, Duration duration, Throwable cause)
+    {
+        exit(request, duration, cause);
+    }
+
+    @Override
+    public void onServletEnter(ServletContext servletContext, Servlet servlet, ServletRequest request)
+    {
+        enter(servletContext, servlet, request);
+    }
+
+    @Override
+    public void onServletExit(ServletContext servletContext, Servlet servlet, ServletRequest request, Duration duration, Throwable cause)
+    {
+        exit(request, duration, cause);
+    }
+
+    @Override
+    public void onComplete(Request request)
+    {
+        Span root = (Span)request.getAttribute(ATTR_SPAN_TREE);
+        if (root == null)
+        {
+            return;
+        }
+        request.removeAttribute(ATTR_SPAN_TREE);
+        root.duration = System.nanoTime() - root.start;
+        if (root.duration >= thresholdNanos)
+        {
+            Object requestId = request.getAttribute(MetricsHandler.ATTR_REQUEST_ID);
+            RecordedSpan tree = new RecordedSpan(root, root.start, requestId == null ? null : requestId.toString());
+            long index = retainedCount.getAndIncrement();
+            retained.set((int)(index % retained.length()), tree);
+        }
+        pools.get().release(root);
+    }
+
+    /**
+     * A node of a request tree, owned by the request while it is being processed.
+     */
+    private static class Span
+    {
+        private Span parent;
+        private Span firstChild;
+        private Span lastChild;
+        private Span nextSibling;
+        private Span current;
+        private ServletContext servletContext;
+        private Object component;
+        private DispatcherType dispatcherType;
+        private Throwable cause;
+        private long start;
+        private long duration;
+
+        private void clear()
+        {
+            parent = null;
+            firstChild = null;
+            lastChild = null;
+            nextSibling = null;
+            current = null;
+            servletContext = null;
+            component = null;
+            dispatcherType = null;
+            cause = null;
+            start = 0;
+            duration = 0;
+        }
+    }
+
+    private static class SpanPool
+    {
+        private final Span[] spans = new Span[MAX_POOLED_SPANS];
+        private int size;
+
+        private Span acquire()
+        {
+            if (size == 0)
+            {
+                return new Span();
+            }
+            Span span = spans[--size];
+            spans[size] = null;
+            return span;
+        }
+
+        private void release(Span span)
+        {
+            Span child = span.firstChild;
+            while (child != null)
+            {
+                Span next = child.nextSibling;
+                release(child);
+                child = next;
+            }
+            span.clear();
+            if (size < spans.length)
+            {
+                spans[size++] = span;
+            }
+        }
+    }
+
+    /**
+     * An immutable copy of a node of a retained request tree.
+     */
+    public static class RecordedSpan
+    {
+        private final String name;
+        private final String contextPath;
+        private final DispatcherType dispatcherType;
+        private final String failure;
+        private final long startOffset;
+        private final long duration;
+        private final List<RecordedSpan> children;
+
+        private RecordedSpan(Span span, long origin, String name)
+        {
+            this.name = name != null ? name : nameOf(span.component);
+            this.contextPath = span.servletContext == null ? null : span.servletContext.getContextPath();
+            this.dispatcherType = span.dispatcherType;
+            this.failure = span.cause == null ? null : span.cause.getClass().getName();
+            this.startOffset = span.start - origin;
+            this.duration = span.duration;
+            List<RecordedSpan> children = new ArrayList<>();
+            for (Span child = span.firstChild; child != null; child = child.nextSibling)
+            {
+                children.add(new RecordedSpan(child, origin, null));
+            }
+            this.children = Collections.unmodifiableList(children);
+        }
+
+        private static String nameOf(Object component)
+        {
+            if (component instanceof Servlet)
+            {
+                ServletConfig config = ((Servlet)component).getServletConfig();
+                if (config != null)
+                {
+                    return config.getServletName();
+                }
+            }
+            return component == null ? null : component.getClass().getName();
+        }
+
+        /**
+         * @return the servlet name or filter class name, or the request id for the root of the tree
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @return the context path of the component, or null for the root of the tree
+         */
+        public String getContextPath()
+        {
+            return contextPath;
+        }
+
+        public DispatcherType getDispatcherType()
+        {
+            return dispatcherType;
+        }
+
+        /**
+         * @return the class name of the throwable the component exited with, or null if it exited normally
+         */
+        public String getFailure()
+        {
+            return failure;
+        }
+
+        /**
+         * @return the start of this span relative to the start of the request
+         */
+        public Duration getStartOffset()
+        {
+            return Duration.ofNanos(startOffset);
+        }
+
+        public Duration getDuration()
+        {
+            return Duration.ofNanos(duration);
+        }
+
+        public List<RecordedSpan> getChildren()
+        {
+            return children;
+        }
+
+        private void dump(StringBuilder builder, int depth)
+        {
+            for (int i = 0; i < depth; i++)
+            {
+                builder.append("  ");
+            }
+            builder.append(name);
+            if (dispatcherType != null)
+            {
+                builder.append(" [").append(dispatcherType).append(' ').append(contextPath).append(']');
+            }
+            builder.append(" +").append(startOffset / 1000).append("us ").append(duration / 1000).append("us");
+            if (failure != null)
+            {
+                builder.append(" !").append(failure);
+            }
+            builder.append(System.lineSeparator());
+            for (RecordedSpan child : children)
+            {
+                child.dump(builder, depth + 1);
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder builder = new StringBuilder();
+            dump(builder, 0);
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,303 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.Filter;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Pushes the interval snapshots of a {@link SnapshotMetricsListener} to a StatsD or DogStatsD
+ * compatible endpoint over UDP, from a background thread.
+ * <p>
+ * For every Servlet and Filter called during the interval, the exporter sends
+ * {@code <prefix>.servlet.<context>.<name>.count} as a counter and {@code mean}, {@code p50}, {@code p99}
+ * and {@code max} as gauges in microseconds (for Filters, {@code filter} replaces {@code servlet}).
+ * The context is the context path without its leading slash, or {@code ROOT} for the root context,
+ * and the name is the servlet or filter name, unique within the context, or the class name of a
+ * component that was not deployed in a context.
+ * </p>
+ * <p>
+ * Metric names are encoded once per component, and are retained until the latencies of the component
+ * are discarded, eg: when its context stops; every export encodes the values as ASCII digits into a
+ * reused direct buffer, sending a datagram whenever the next line would exceed the max packet size.
+ * The channel is non-blocking, so a datagram that cannot be sent immediately is dropped and counted;
+ * a line longer than the max packet size is counted separately.
+ * </p>
+ */
+public class StatsDExporter extends AbstractLifeCycle
+{
+    private static final Logger LOG = Log.getLogger(StatsDExporter.class);
+    private static final String[] TIMERS = {"mean", "p50", "p99", "max"};
+    private static final byte[] COUNTER = "|c\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] GAUGE = "|g\n".getBytes(StandardCharsets.US_ASCII);
+
+    // Guarded by export().
+    private final Map<Object, byte[][]> names = new HashMap<>();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong oversized = new AtomicLong();
+    private final byte[] digits = new byte[20];
+    private final SnapshotMetricsListener metricsListener;
+    private final InetSocketAddress address;
+    private final String prefix;
+    private final long period;
+    private final int maxPacketSize;
+    private ByteBuffer buffer;
+    private DatagramChannel channel;
+    private Thread thread;
+    private volatile boolean running;
+
+    public StatsDExporter(SnapshotMetricsListener metricsListener, InetSocketAddress address, String prefix, Duration period)
+    {
+        this(metricsListener, address, prefix, period, 1432);
+    }
+
+    /**
+     * @param metricsListener the listener to take the snapshots from
+     * @param address the address of the StatsD endpoint
+     * @param prefix the prefix of the metric names
+     * @param period the period of the exports, zero to only export when {@link #export()} is called
+     * @param maxPacketSize the max size of a datagram, eg: the MTU minus the IP and UDP headers
+     */
+    public StatsDExporter(SnapshotMetricsListener metricsListener, InetSocketAddress address, String prefix, Duration period, int maxPacketSize)
+    {
+        this.metricsListener = metricsListener;
+        this.address = address;
+        this.prefix = prefix;
+        this.period = period.toMillis();
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    @Override
+    protected void doStart() throws Exception
+    {
+        buffer = ByteBuffer.allocateDirect(maxPacketSize);
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.connect(address);
+        if (period > 0)
+        {
+            running = true;
+            thread = new Thread(this::run, "statsd-exporter");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception
+    {
+        running = false;
+        if (thread != null)
+        {
+            thread.interrupt();
+            thread.join();
+            thread = null;
+        }
+        channel.close();
+        super.doStop();
+    }
+
+    private void run()
+    {
+        long next = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(period);
+        while (running)
+        {
+            try
+            {
+                long wait = next - System.nanoTime();
+                if (wait > 0)
+                {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                next += TimeUnit.MILLISECONDS.toNanos(period);
+                export();
+            }
+            catch (InterruptedException x)
+            {
+                LOG.ignore(x);
+            }
+            catch (Throwable x)
+            {
+                LOG.warn("StatsD export failed", x);
+            }
+        }
+    }
+
+    /**
+     * Takes a snapshot from the listener and sends it.
+     *
+     * @throws IOException if the datagrams cannot be sent
+     */
+    public synchronized void export() throws IOException
+    {
+        SnapshotMetricsListener.Snapshot snapshot = metricsListener.snapshot();
+        buffer.clear();
+        Map<Servlet, LatencyHistogram> servlets = snapshot.getServletHistograms();
+        Map<Filter, LatencyHistogram> filters = snapshot.getFilterHistograms();
+        // The names of the components whose latencies were discarded are not retained.
+        names.keySet().removeIf(component -> !metricsListener.isRecorded(component));
+        for (Map.Entry<Servlet, LatencyHistogram> entry : servlets.entrySet())
+        {
+            export(getNames(snapshot, "servlet", entry.getKey()), entry.getValue());
+        }
+        for (Map.Entry<Filter, LatencyHistogram> entry : filters.entrySet())
+        {
+            export(getNames(snapshot, "filter", entry.getKey()), entry.getValue());
+        }
+        flush();
+    }
+
+    private byte[][] getNames(SnapshotMetricsListener.Snapshot snapshot, String type, Object component)
+    {
+        byte[][] metrics = names.get(component);
+        if (metrics == null)
+        {
+            ServletContext servletContext = snapshot.getServletContext(component);
+            String contextPath = servletContext == null ? "" : servletContext.getContextPath();
+            String context = contextPath.isEmpty() || contextPath.equals("/") ? "ROOT" : sanitize(contextPath.substring(1));
+            metrics = newNames(prefix + "." + type + "." + context + "." + sanitize(snapshot.getName(component)));
+            names.put(component, metrics);
+        }
+        return metrics;
+    }
+
+    private static byte[][] newNames(String name)
+    {
+        byte[][] metrics = new byte[1 + TIMERS.length][];
+        metrics[0] = (name + ".count:").getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < TIMERS.length; i++)
+        {
+            metrics[1 + i] = (name + "." + TIMERS[i] + ":").getBytes(StandardCharsets.UTF_8);
+        }
+        return metrics;
+    }
+
+    private static String sanitize(String name)
+    {
+        return name.replaceAll("[.:|@#/\\s]", "_");
+    }
+
+    private void export(byte[][] metrics, LatencyHistogram histogram) throws IOException
+    {
+        put(metrics[0], histogram.getCount(), COUNTER);
+        put(metrics[1], histogram.getMean() / 1000, GAUGE);
+        put(metrics[2], histogram.getValueAtPercentile(50) / 1000, GAUGE);
+        put(metrics[3], histogram.getValueAtPercentile(99) / 1000, GAUGE);
+        put(metrics[4], histogram.getMax() / 1000, GAUGE);
+    }
+
+    private void put(byte[] name, long value, byte[] type) throws IOException
+    {
+        int length = 0;
+        do
+        {
+            digits[digits.length - ++length] = (byte)('0' + value % 10);
+            value /= 10;
+        }
+        while (value > 0);
+
+        int lineLength = name.length + length + type.length;
+        if (buffer.remaining() < lineLength)
+        {
+            flush();
+            if (buffer.remaining() < lineLength)
+            {
+                oversized.incrementAndGet();
+                return;
+            }
+        }
+        buffer.put(name);
+        buffer.put(digits, digits.length - length, length);
+        buffer.put(type);
+    }
+
+    private void flush() throws IOException
+    {
+        if (buffer.position() == 0)
+        {
+            return;
+        }
+        buffer.flip();
+        try
+        {
+            if (channel.write(buffer) > 0)
+            {
+                sent.incrementAndGet();
+            }
+            else
+            {
+                dropped.incrementAndGet();
+            }
+        }
+        catch (PortUnreachableException x)
+        {
+            // The endpoint was not listening when a previous datagram was sent.
+            dropped.incrementAndGet();
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @return the number of datagrams sent
+     */
+    public long getSent()
+    {
+        return sent.get();
+    }
+
+    /**
+     * @return the number of datagrams dropped because they could not be sent immediately
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of lines not sent because they were longer than the max packet size
+     */
+    public long getOversized()
+    {
+        return oversized.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x{%s,%s,sent=%d,dropped=%d,oversized=%d}", getClass().getSimpleName(), hashCode(), getState(), address, getSent(), getDropped(), getOversized());
+    }
+}
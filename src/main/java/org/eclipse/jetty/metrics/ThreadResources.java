@@ -0,0 +1,117 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Access to the CPU time and the allocated bytes of the current thread, as far as the JVM supports them.
+ * <p>
+ * CPU time measurement is enabled on the JVM when first used if it is supported but disabled.
+ * Allocated bytes require the {@code com.sun.management} extension of {@link ThreadMXBean}.
+ * </p>
+ */
+public final class ThreadResources
+{
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = isCpuTimeAvailable();
+    private static final com.sun.management.ThreadMXBean ALLOCATIONS = getAllocationsBean();
+
+    private ThreadResources()
+    {
+    }
+
+    private static boolean isCpuTimeAvailable()
+    {
+        try
+        {
+            if (!THREADS.isCurrentThreadCpuTimeSupported())
+            {
+                return false;
+            }
+            if (!THREADS.isThreadCpuTimeEnabled())
+            {
+                THREADS.setThreadCpuTimeEnabled(true);
+            }
+            return true;
+        }
+        catch (UnsupportedOperationException | SecurityException x)
+        {
+            return false;
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean getAllocationsBean()
+    {
+        try
+        {
+            if (!(THREADS instanceof com.sun.management.ThreadMXBean))
+            {
+                return null;
+            }
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)THREADS;
+            if (!threads.isThreadAllocatedMemorySupported())
+            {
+                return null;
+            }
+            if (!threads.isThreadAllocatedMemoryEnabled())
+            {
+                threads.setThreadAllocatedMemoryEnabled(true);
+            }
+            return threads;
+        }
+        catch (LinkageError | UnsupportedOperationException | SecurityException x)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the CPU time of the current thread can be measured
+     */
+    public static boolean isCpuTimeSupported()
+    {
+        return CPU_TIME;
+    }
+
+    /**
+     * @return true if the bytes allocated by the current thread can be measured
+     */
+    public static boolean isAllocatedBytesSupported()
+    {
+        return ALLOCATIONS != null;
+    }
+
+    /**
+     * @return the CPU time of the current thread in nanoseconds, or -1 if not supported
+     */
+    public static long getCpuTime()
+    {
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : -1;
+    }
+
+    /**
+     * @return the bytes allocated by the current thread since it started, or -1 if not supported
+     */
+    public static long getAllocatedBytes()
+    {
+        return ALLOCATIONS == null ? -1 : ALLOCATIONS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,159 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link LatencyRecorder} where every thread records into its own shard, so that
+ * recording is free of contention however many threads call the same Servlet or Filter.
+ * <p>
+ * A shard is only ever written by its owner thread, with ordered stores rather than atomic
+ * read-modify-write operations.
+ * Reading folds all the shards into a new {@link LatencyHistogram}.
+ * The shards of the threads that died, eg: when the {@link org.eclipse.jetty.util.thread.QueuedThreadPool}
+ * shrinks, are merged into a single retired histogram and dropped, either when reading
+ * or when a new thread registers its shard, so that thread churn does not leak shards.
+ * </p>
+ */
+public class ThreadShardedLatencyRecorder implements LatencyRecorder
+{
+    private static final int COUNT = LatencyHistogram.BUCKETS;
+    private static final int TOTAL = COUNT + 1;
+    private static final int MAX = COUNT + 2;
+
+    private final ThreadLocal<Shard> shard = ThreadLocal.withInitial(this::newShard);
+    private final Queue<Shard> shards = new ConcurrentLinkedQueue<>();
+    private final LatencyHistogram retired = new LatencyHistogram();
+
+    private Shard newShard()
+    {
+        retire();
+        Shard shard = new Shard(Thread.currentThread());
+        shards.add(shard);
+        return shard;
+    }
+
+    @Override
+    public void record(long value)
+    {
+        shard.get().record(value);
+    }
+
+    @Override
+    public void record(long value, long expectedInterval)
+    {
+        Shard shard = this.shard.get();
+        shard.record(value);
+        LatencyHistogram.backFill(value, expectedInterval, shard::addBackFill);
+    }
+
+    /**
+     * @return the number of shards, one per live thread that recorded, until the next fold
+     */
+    public int getShardCount()
+    {
+        return shards.size();
+    }
+
+    @Override
+    public synchronized LatencyHistogram getHistogram()
+    {
+        retire();
+        LatencyHistogram histogram = retired.getHistogram();
+        for (Shard shard : shards)
+        {
+            shard.addTo(histogram);
+        }
+        return histogram;
+    }
+
+    private synchronized void retire()
+    {
+        for (Iterator<Shard> iterator = shards.iterator(); iterator.hasNext(); )
+        {
+            Shard shard = iterator.next();
+            if (!shard.isAlive())
+            {
+                iterator.remove();
+                shard.addTo(retired);
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x{shards=%d}", getClass().getSimpleName(), hashCode(), shards.size());
+    }
+
+    private static class Shard
+    {
+        private final WeakReference<Thread> owner;
+        private final AtomicLongArray values = new AtomicLongArray(LatencyHistogram.BUCKETS + 3);
+
+        private Shard(Thread owner)
+        {
+            this.owner = new WeakReference<>(owner);
+        }
+
+        private boolean isAlive()
+        {
+            Thread thread = owner.get();
+            return thread != null && thread.isAlive();
+        }
+
+        private void record(long value)
+        {
+            // Single writer, so ordered stores are enough for readers to eventually see the values.
+            int index = LatencyHistogram.bucketIndex(value);
+            values.lazySet(index, values.get(index) + 1);
+            values.lazySet(COUNT, values.get(COUNT) + 1);
+            values.lazySet(TOTAL, values.get(TOTAL) + value);
+            if (value > values.get(MAX))
+            {
+                values.lazySet(MAX, value);
+            }
+        }
+
+        private void addBackFill(int index, long samples, long total)
+        {
+            values.lazySet(index, values.get(index) + samples);
+            values.lazySet(COUNT, values.get(COUNT) + samples);
+            values.lazySet(TOTAL, values.get(TOTAL) + total);
+        }
+
+        private void addTo(LatencyHistogram histogram)
+        {
+            for (int i = 0; i < LatencyHistogram.BUCKETS; i++)
+            {
+                long bucket = values.get(i);
+                if (bucket != 0)
+                {
+                    histogram.addBucket(i, bucket);
+                }
+            }
+            histogram.addTotals(values.get(COUNT), values.get(TOTAL), values.get(MAX));
+        }
+    }
+}
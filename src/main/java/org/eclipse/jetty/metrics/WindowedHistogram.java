@@ -0,0 +1,140 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A ring of {@link LatencyHistogram}s, one per fixed length interval, covering a sliding window of time.
+ * <p>
+ * Intervals are identified by their epoch, the number of elapsed intervals since the creation of the ring.
+ * A writer that finds the slot for the current epoch still holding an older epoch claims it with a
+ * compare-and-set and clears it; there is no lock and writers never wait on each other or on readers.
+ * Samples recorded while the winning writer clears the slot may be lost.
+ * </p>
+ * <p>
+ * Queries only merge the intervals that fall into the requested window, the most recent interval
+ * being the one in progress.
+ * </p>
+ */
+public class WindowedHistogram
+{
+    private final LongSupplier nanoClock;
+    private final long origin;
+    private final long intervalNanos;
+    private final Interval[] ring;
+
+    /**
+     * @param interval the length of each interval
+     * @param intervals the number of intervals in the ring
+     */
+    public WindowedHistogram(Duration interval, int intervals)
+    {
+        this(interval, intervals, System::nanoTime);
+    }
+
+    WindowedHistogram(Duration interval, int intervals, LongSupplier nanoClock)
+    {
+        if (interval.isNegative() || interval.isZero())
+        {
+            throw new IllegalArgumentException("Invalid interval: " + interval);
+        }
+        if (intervals < 1)
+        {
+            throw new IllegalArgumentException("Invalid intervals: " + intervals);
+        }
+        this.nanoClock = nanoClock;
+        this.origin = nanoClock.getAsLong();
+        this.intervalNanos = interval.toNanos();
+        this.ring = new Interval[intervals];
+        for (int i = 0; i < intervals; i++)
+        {
+            ring[i] = new Interval();
+        }
+    }
+
+    public Duration getInterval()
+    {
+        return Duration.ofNanos(intervalNanos);
+    }
+
+    public int getIntervals()
+    {
+        return ring.length;
+    }
+
+    /**
+     * @return the longest window that can be queried
+     */
+    public Duration getMaxWindow()
+    {
+        return Duration.ofNanos(intervalNanos * ring.length);
+    }
+
+    private long currentEpoch()
+    {
+        return (nanoClock.getAsLong() - origin) / intervalNanos;
+    }
+
+    public void record(long value)
+    {
+        long epoch = currentEpoch();
+        Interval interval = ring[(int)(epoch % ring.length)];
+        long intervalEpoch = interval.epoch.get();
+        if (intervalEpoch < epoch && interval.epoch.compareAndSet(intervalEpoch, epoch))
+        {
+            interval.histogram.reset();
+        }
+        interval.histogram.record(value);
+    }
+
+    /**
+     * @param window the length of the window to merge, capped to {@link #getMaxWindow()}
+     * @return a new histogram with the samples of the intervals within the window
+     */
+    public LatencyHistogram getHistogram(Duration window)
+    {
+        long intervals = Math.min(ring.length, Math.max(1, (window.toNanos() + intervalNanos - 1) / intervalNanos));
+        long epoch = currentEpoch();
+        LatencyHistogram result = new LatencyHistogram();
+        for (Interval interval : ring)
+        {
+            long intervalEpoch = interval.epoch.get();
+            if (intervalEpoch <= epoch && intervalEpoch > epoch - intervals)
+            {
+                result.add(interval.histogram);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x{interval=%s,intervals=%d}", getClass().getSimpleName(), hashCode(), getInterval(), ring.length);
+    }
+
+    private static class Interval
+    {
+        private final AtomicLong epoch = new AtomicLong(-1);
+        private final LatencyHistogram histogram = new LatencyHistogram();
+    }
+}
@@ -0,0 +1,131 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import java.util.Set;
+import javax.servlet.Filter;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+
+/**
+ * Aggregates Servlet and Filter latencies into a {@link WindowedHistogram} per component,
+ * so that percentiles can be queried over a recent window (eg: "p99 over the last 30s")
+ * rather than since startup.
+ */
+public class WindowedMetricsListener extends AbstractServletMetricsListener
+{
+    private final MetricRegistry registry = new MetricRegistry();
+    private final MetricRegistry.Table<Servlet, WindowedHistogram> servlets = registry.newTable(this::newWindowedHistogram);
+    private final MetricRegistry.Table<Filter, WindowedHistogram> filters = registry.newTable(this::newWindowedHistogram);
+    private final Duration interval;
+    private final int intervals;
+
+    /**
+     * @param interval the length of each interval of the ring (eg: 1 second)
+     * @param intervals the number of intervals kept per Servlet and Filter (eg: 60)
+     */
+    public WindowedMetricsListener(Duration interval, int intervals)
+    {
+        this.interval = interval;
+        this.intervals = intervals;
+    }
+
+    public Duration getInterval()
+    {
+        return interval;
+    }
+
+    public int getIntervals()
+    {
+        return intervals;
+    }
+
+    private WindowedHistogram newWindowedHistogram(Object component)
+    {
+        return new WindowedHistogram(interval, intervals);
+    }
+
+    /**
+     * @return the registry of the series of this listener, to bound their memory and to read their evictions
+     */
+    public MetricRegistry getMetricRegistry()
+    {
+        return registry;
+    }
+
+    @Override
+    public void onServletContextStopped(ServletContext servletContext)
+    {
+        registry.evictContext(servletContext);
+    }
+
+    @Override
+    public int getInterests()
+    {
+        return INTEREST_EXITS;
+    }
+
+    @Override
+    public void onFilterExit(ServletContext servletContext, Filter filter, ServletRequest request, Duration duration, Throwable cause)
+    {
+        WindowedHistogram histogram = filters.acquire(servletContext, filter);
+        histogram.record(duration.toNanos());
+    }
+
+    @Override
+    public void onServletExit(ServletContext servletContext, Servlet servlet, ServletRequest request, Duration duration, Throwable cause)
+    {
+        WindowedHistogram histogram = servlets.acquire(servletContext, servlet);
+        histogram.record(duration.toNanos());
+    }
+
+    public Set<Servlet> getServlets()
+    {
+        return servlets.keySet();
+    }
+
+    public Set<Filter> getFilters()
+    {
+        return filters.keySet();
+    }
+
+    /**
+     * @param servlet the servlet
+     * @param window the window to merge, eg: the last 30 seconds
+     * @return the latencies of the servlet over the window, or null if the servlet was never called
+     */
+    public LatencyHistogram getServletHistogram(Servlet servlet, Duration window)
+    {
+        WindowedHistogram histogram = servlets.get(servlet);
+        return histogram == null ? null : histogram.getHistogram(window);
+    }
+
+    /**
+     * @param filter the filter
+     * @param window the window to merge, eg: the last 30 seconds
+     * @return the latencies of the filter over the window, or null if the filter was never called
+     */
+    public LatencyHistogram getFilterHistogram(Filter filter, Duration window)
+    {
+        WindowedHistogram histogram = filters.get(filter);
+        return histogram == null ? null : histogram.getHistogram(window);
+    }
+}
@@ -0,0 +1,90 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lets writers record into an active buffer without ever waiting, and a reader flip the writers
+ * to another buffer and wait until no writer is left in the previous one, as in HdrHistogram.
+ * <p>
+ * Writers wrap every update of the active buffer in {@link #writerCriticalSectionEnter()} and
+ * {@link #writerCriticalSectionExit(long)}, which are a single atomic increment each.
+ * The reader, holding {@link #readerLock()}, swaps the active and inactive buffers and then
+ * calls {@link #flipPhase()}, which returns once all the writers that may have seen the
+ * previous buffer have exited, so that the reader has it to itself.
+ * </p>
+ */
+public class WriterReaderPhaser
+{
+    private final AtomicLong startEpoch = new AtomicLong();
+    private final AtomicLong evenEndEpoch = new AtomicLong();
+    private final AtomicLong oddEndEpoch = new AtomicLong(Long.MIN_VALUE);
+    private final ReentrantLock readerLock = new ReentrantLock();
+
+    /**
+     * @return the value to pass to {@link #writerCriticalSectionExit(long)}
+     */
+    public long writerCriticalSectionEnter()
+    {
+        return startEpoch.getAndIncrement();
+    }
+
+    /**
+     * @param criticalValue the value returned by {@link #writerCriticalSectionEnter()}
+     */
+    public void writerCriticalSectionExit(long criticalValue)
+    {
+        (criticalValue < 0 ? oddEndEpoch : evenEndEpoch).getAndIncrement();
+    }
+
+    public void readerLock()
+    {
+        readerLock.lock();
+    }
+
+    public void readerUnlock()
+    {
+        readerLock.unlock();
+    }
+
+    /**
+     * Waits for all the writers that entered before the flip to exit.
+     * Must be called holding the reader lock, after the buffers were swapped.
+     */
+    public void flipPhase()
+    {
+        if (!readerLock.isHeldByCurrentThread())
+        {
+            throw new IllegalStateException("Reader lock not held");
+        }
+
+        boolean nextPhaseIsEven = startEpoch.get() < 0;
+        long initialStartValue = nextPhaseIsEven ? 0 : Long.MIN_VALUE;
+        (nextPhaseIsEven ? evenEndEpoch : oddEndEpoch).lazySet(initialStartValue);
+        long startValueAtFlip = startEpoch.getAndSet(initialStartValue);
+
+        AtomicLong endEpoch = nextPhaseIsEven ? oddEndEpoch : evenEndEpoch;
+        while (endEpoch.get() != startValueAtFlip)
+        {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.Filter;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.eclipse.jetty.webapp.Configuration;
+import org.eclipse.jetty.webapp.WebAppContext;
+
+/**
+ * Emits Java Flight Recorder events for Servlet and Filter calls and initializations,
+ * and for the configuration steps of WebApps.
+ * <p>
+ * An event begins on the enter (or starting) notification and is committed on the matching exit
+ * (or ready) notification, which happen on the same thread, so the events line up with the GC,
+ * lock and I/O events of the recording.
+ * Every event type has its own stack per thread, so that an exit that is not notified,
+ * eg: because the listener was swapped, cannot pair an event with an exit of another type.
+ * While no recording enables an event type, its notifications only check that it is disabled.
+ * </p>
+ */
+public class JfrMetricsListener extends AbstractServletMetricsListener implements WebAppMetricsListener
+{
+    private static final EventType CALL = EventType.getEventType(CallEvent.class);
+    private static final EventType INIT = EventType.getEventType(InitEvent.class);
+    private static final EventType CONFIGURE = EventType.getEventType(ConfigureEvent.class);
+    private static final ThreadLocal<EventStacks> STACKS = ThreadLocal.withInitial(EventStacks::new);
+
+    /**
+     * @return true if this JVM can emit the events
+     */
+    public static boolean isSupported()
+    {
+        return true;
+    }
+
+    private static String getContextPath(ServletContext servletContext)
+    {
+        return servletContext == null ? null : servletContext.getContextPath();
+    }
+
+    /**
+     * @param stack the stack of the type of the event
+     * @param event the event, or null if its type is disabled, pushed anyway to keep the enter / exit pairs matched
+     */
+    private static <T extends Event> void begin(EventStack<T> stack, T event)
+    {
+        if (event != null)
+        {
+            event.begin();
+        }
+        stack.push(event);
+    }
+
+    @Override
+    public void onFilterStarting(ServletContext servletContext, Filter filter)
+    {
+        begin(STACKS.get().inits, INIT.isEnabled() ? new InitEvent() : null);
+    }
+
+    @Override
+    public void onFilterReady(ServletContext servletContext, Filter filter, Duration duration)
+    {
+        InitEvent event = STACKS.get().inits.pop();
+        if (event != null)
+        {
+            event.contextPath = getContextPath(servletContext);
+            event.component = filter.getClass().getName();
+            event.filter = true;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void onServletStarting(ServletContext servletContext, Servlet servlet)
+    {
+        begin(STACKS.get().inits, INIT.isEnabled() ? new InitEvent() : null);
+    }
+
+    @Override
+    public void onServletReady(ServletContext servletContext, Servlet servlet, Duration duration)
+    {
+        InitEvent event = STACKS.get().inits.pop();
+        if (event != null)
+        {
+            event.contextPath = getContextPath(servletContext);
+            event.component = servlet.getClass().getName();
+            event.commit();
+        }
+    }
+
+    @Override
+    public void onFilterEnter(ServletContext servletContext, Filter filter, ServletRequest request)
+    {
+        begin(STACKS.get().calls, CALL.isEnabled() ? new CallEvent() : null);
+    }
+
+    @Override
+    public void onFilterExit(ServletContext servletContext, Filter filter, ServletRequest request, Duration duration, Throwable cause)
+    {
+        CallEvent event = STACKS.get().calls.pop();
+        if (event != null)
+        {
+            event.set(servletContext, filter, request, cause);
+            event.filter = true;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void onServletEnter(ServletContext servletContext, Servlet servlet, ServletRequest request)
+    {
+        begin(STACKS.get().calls, CALL.isEnabled() ? new CallEvent() : null);
+    }
+
+    @Override
+    public void onServletExit(ServletContext servletContext, Servlet servlet, ServletRequest request, Duration duration, Throwable cause)
+    {
+        CallEvent event = STACKS.get().calls.pop();
+        if (event != null)
+        {
+            event.set(servletContext, servlet, request, cause);
+            event.commit();
+        }
+    }
+
+    @Override
+    public void onWebAppConfigureStart(WebAppContext context, Configuration configuration, ConfigurationStep configurationStep)
+    {
+        begin(STACKS.get().configures, CONFIGURE.isEnabled() ? new ConfigureEvent() : null);
+    }
+
+    @Override
+    public void onWebAppConfigureFinished(WebAppContext context, Configuration configuration, ConfigurationStep configurationStep)
+    {
+        ConfigureEvent event = STACKS.get().configures.pop();
+        if (event != null)
+        {
+            event.contextPath = context.getContextPath();
+            event.configuration = configuration.getClass().getName();
+            event.step = configurationStep.name();
+            event.commit();
+        }
+    }
+
+    @Override
+    public void onWebAppStarting(WebAppContext context)
+    {
+    }
+
+    @Override
+    public void onWebAppReady(WebAppContext context)
+    {
+    }
+
+    private static class EventStacks
+    {
+        private final EventStack<CallEvent> calls = new EventStack<>();
+        private final EventStack<InitEvent> inits = new EventStack<>();
+        private final EventStack<ConfigureEvent> configures = new EventStack<>();
+    }
+
+    private static class EventStack<T extends Event>
+    {
+        private final List<T> events = new ArrayList<>();
+
+        private void push(T event)
+        {
+            events.add(event);
+        }
+
+        private T pop()
+        {
+            int size = events.size();
+            if (size == 0)
+            {
+                // The listener was swapped in between an enter and its exit.
+                return null;
+            }
+            return events.remove(size - 1);
+        }
+    }
+
+    @Name("org.eclipse.jetty.metrics.Call")
+    @Label("Servlet or Filter Call")
+    @Category({"Jetty", "Metrics"})
+    @StackTrace(false)
+    static class CallEvent extends Event
+    {
+        @Label("Context Path")
+        String contextPath;
+
+        @Label("Component")
+        @Description("The class name of the Servlet or Filter")
+        String component;
+
+        @Label("Filter")
+        boolean filter;
+
+        @Label("Dispatcher Type")
+        String dispatcherType;
+
+        @Label("Request Id")
+        String requestId;
+
+        @Label("Failure")
+        String failure;
+
+        private void set(ServletContext servletContext, Object component, ServletRequest request, Throwable cause)
+        {
+            this.contextPath = getContextPath(servletContext);
+            this.component = component.getClass().getName();
+            if (request != null)
+            {
+                this.dispatcherType = request.getDispatcherType().name();
+                Object requestId = request.getAttribute(MetricsHandler.ATTR_REQUEST_ID);
+                this.requestId = requestId == null ? null : requestId.toString();
+            }
+            this.failure = cause == null ? null : cause.getClass().getName();
+        }
+    }
+
+    @Name("org.eclipse.jetty.metrics.Init")
+    @Label("Servlet or Filter Initialization")
+    @Category({"Jetty", "Metrics"})
+    @StackTrace(false)
+    static class InitEvent extends Event
+    {
+        @Label("Context Path")
+        String contextPath;
+
+        @Label("Component")
+        @Description("The class name of the Servlet or Filter")
+        String component;
+
+        @Label("Filter")
+        boolean filter;
+    }
+
+    @Name("org.eclipse.jetty.metrics.Configure")
+    @Label("WebApp Configuration Step")
+    @Category({"Jetty", "Metrics"})
+    @StackTrace(false)
+    static class ConfigureEvent extends Event
+    {
+        @Label("Context Path")
+        String contextPath;
+
+        @Label("Configuration")
+        String configuration;
+
+        @Label("Step")
+        String step;
+    }
+}
@@ -0,0 +1,227 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpContentResponse;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+public class ConcurrencyLimitTest
+{
+    @Test
+    public void testRejectBeyondLimit() throws Exception
+    {
+        ConcurrencyLimit limit = new ConcurrencyLimit(2, 1, 10);
+        assertThat(limit.acquire(), is(true));
+        assertThat(limit.acquire(), is(true));
+        assertThat(limit.acquire(), is(false));
+        assertThat(limit.getRejected(), is(1L));
+
+        // A waiter is admitted when a permit is released.
+        AtomicInteger admitted = new AtomicInteger();
+        limit.enqueue(() -> admitted.incrementAndGet() > 0);
+        assertThat(limit.getWaiting(), is(1));
+        limit.release(-1);
+        assertThat(admitted.get(), is(1));
+        assertThat(limit.getWaiting(), is(0));
+        assertThat(limit.getInFlight(), is(2));
+
+        // A waiter that already gave up does not take the permit.
+        ConcurrencyLimit.Waiter gaveUp = () -> false;
+        limit.enqueue(gaveUp);
+        limit.release(-1);
+        assertThat(limit.getInFlight(), is(1));
+
+        // A waiter that gives up is removed, and is counted as rejected.
+        assertThat(limit.acquire(), is(true));
+        ConcurrencyLimit.Waiter waiter = () -> true;
+        limit.enqueue(waiter);
+        assertThat(limit.remove(waiter), is(true));
+        assertThat(limit.getWaiting(), is(0));
+        assertThat(limit.getRejected(), is(2L));
+    }
+
+    @Test
+    public void testAsyncRequestsHoldPermitsAndWaitSuspended() throws Exception
+    {
+        class HoldingServlet extends HttpServlet
+        {
+            private volatile CountDownLatch hold = new CountDownLatch(1);
+
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            {
+                AsyncContext asyncContext = req.startAsync();
+                CountDownLatch latch = hold;
+                new Thread(() ->
+                {
+                    try
+                    {
+                        latch.await(5, TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException x)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    asyncContext.complete();
+                }).start();
+            }
+        }
+
+        Server server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(0);
+        server.addConnector(connector);
+        ServletContextHandler contextHandler = new ServletContextHandler();
+        contextHandler.setContextPath("/");
+        HoldingServlet servlet = new HoldingServlet();
+        ServletHolder holder = new ServletHolder(servlet);
+        holder.setAsyncSupported(true);
+        contextHandler.addServlet(holder, "/hold");
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, Duration.ofSeconds(1));
+        limiter.addToContext(contextHandler);
+        server.setHandler(contextHandler);
+        HttpClient client = new HttpClient();
+        try
+        {
+            server.start();
+            client.start();
+            URI uri = server.getURI().resolve("/hold");
+
+            // The async request keeps its permit after service() returns, the next one waits for it.
+            CompletableFuture<ContentResponse> first = send(client, uri);
+            ConcurrencyLimit limit = limiter.getConcurrencyLimit(servlet);
+            awaitUntil(() -> limit.getInFlight() == 1);
+            CompletableFuture<ContentResponse> second = send(client, uri);
+            awaitUntil(() -> limit.getWaiting() == 1);
+            assertThat(limit.getInFlight(), is(1));
+
+            // Completing the first request admits the second.
+            CountDownLatch hold = servlet.hold;
+            servlet.hold = new CountDownLatch(1);
+            hold.countDown();
+            assertThat(first.get(5, TimeUnit.SECONDS).getStatus(), is(HttpStatus.OK_200));
+            awaitUntil(() -> limit.getWaiting() == 0 && limit.getInFlight() == 1);
+
+            // A request waiting longer than the max wait is rejected.
+            CompletableFuture<ContentResponse> third = send(client, uri);
+            assertThat(third.get(5, TimeUnit.SECONDS).getStatus(), is(HttpStatus.SERVICE_UNAVAILABLE_503));
+            assertThat(limit.getRejected(), is(1L));
+
+            servlet.hold.countDown();
+            assertThat(second.get(5, TimeUnit.SECONDS).getStatus(), is(HttpStatus.OK_200));
+            awaitUntil(() -> limit.getInFlight() == 0);
+
+            // The limit is discarded with the servlet.
+            contextHandler.stop();
+            assertThat(limiter.getConcurrencyLimits().isEmpty(), is(true));
+        }
+        finally
+        {
+            LifeCycle.stop(client);
+            LifeCycle.stop(server);
+        }
+    }
+
+    private static CompletableFuture<ContentResponse> send(HttpClient client, URI uri)
+    {
+        CompletableFuture<ContentResponse> future = new CompletableFuture<>();
+        client.newRequest(uri).timeout(10, TimeUnit.SECONDS).send(new BufferingResponseListener()
+        {
+            @Override
+            public void onComplete(Result result)
+            {
+                if (result.isFailed())
+                {
+                    future.completeExceptionally(result.getFailure());
+                }
+                else
+                {
+                    future.complete(new HttpContentResponse(result.getResponse(), getContent(), getMediaType(), getEncoding()));
+                }
+            }
+        });
+        return future;
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertThat(condition.getAsBoolean(), is(true));
+    }
+
+    @Test
+    public void testLimitAdaptsToLatency() throws Exception
+    {
+        ConcurrencyLimit limit = new ConcurrencyLimit(10, 1, 100);
+
+        // Fully used at stable latency, the limit grows.
+        for (int i = 0; i < 100; i++)
+        {
+            while (limit.tryAcquire())
+            {
+                continue;
+            }
+            limit.release(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        int grown = limit.getLimit();
+        assertThat(grown, greaterThan(10));
+
+        // When latency grows, the limit shrinks.
+        for (int i = 0; i < 50; i++)
+        {
+            while (limit.tryAcquire())
+            {
+                continue;
+            }
+            limit.release(TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        assertThat(limit.getLimit(), lessThan(grown));
+    }
+}
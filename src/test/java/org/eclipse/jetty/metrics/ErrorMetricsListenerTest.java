@@ -0,0 +1,222 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import javax.servlet.AsyncContext;
+import javax.servlet.Filter;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class ErrorMetricsListenerTest
+{
+    @Test
+    public void testExceptionClassCounts()
+    {
+        ErrorMetricsListener listener = new ErrorMetricsListener();
+        Filter filter = new FooFilter();
+        listener.onFilterExit(null, filter, null, Duration.ZERO, null);
+        assertThat(listener.getFilters().isEmpty(), is(true));
+
+        listener.onFilterExit(null, filter, null, Duration.ZERO, new IllegalStateException());
+        listener.onFilterExit(null, filter, null, Duration.ZERO, new IllegalStateException());
+        listener.onFilterExit(null, filter, null, Duration.ZERO, new IOException());
+
+        Map<Class<?>, Long> counts = listener.getFilterExceptionCounts(filter);
+        assertThat(counts.size(), is(2));
+        assertThat(counts.get(IllegalStateException.class), is(2L));
+        assertThat(counts.get(IOException.class), is(1L));
+        assertThat(listener.getFilterExceptionOverflow(filter), is(0L));
+    }
+
+    @Test
+    public void testExceptionTableCollisionsAndOverflow()
+    {
+        // With as many slots as classes, at least some of the classes collide and are probed further.
+        Class<?>[] types = {IllegalStateException.class, IOException.class, ServletException.class, ArithmeticException.class};
+        ErrorMetricsListener listener = new ErrorMetricsListener(types.length);
+        Filter filter = new FooFilter();
+        for (int i = 0; i < types.length; i++)
+        {
+            for (int j = 0; j <= i; j++)
+            {
+                listener.onFilterExit(null, filter, null, Duration.ZERO, newException(types[i]));
+            }
+        }
+        Map<Class<?>, Long> counts = listener.getFilterExceptionCounts(filter);
+        assertThat(counts.size(), is(types.length));
+        for (int i = 0; i < types.length; i++)
+        {
+            assertThat(types[i].getSimpleName(), counts.get(types[i]), is(i + 1L));
+        }
+        assertThat(listener.getFilterExceptionOverflow(filter), is(0L));
+
+        // The table is full, other classes are counted as overflow.
+        listener.onFilterExit(null, filter, null, Duration.ZERO, new UnsupportedOperationException());
+        listener.onFilterExit(null, filter, null, Duration.ZERO, new NullPointerException());
+        listener.onFilterExit(null, filter, null, Duration.ZERO, new IOException());
+        counts = listener.getFilterExceptionCounts(filter);
+        assertThat(counts.size(), is(types.length));
+        assertThat(counts.get(IOException.class), is(3L));
+        assertThat(listener.getFilterExceptionOverflow(filter), is(2L));
+    }
+
+    private static Throwable newException(Class<?> type)
+    {
+        try
+        {
+            return (Throwable)type.getConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException x)
+        {
+            throw new AssertionError(x);
+        }
+    }
+
+    @Test
+    public void testStatusCounts() throws Exception
+    {
+        HttpServlet ok = new HttpServlet()
+        {
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            {
+                resp.setStatus(HttpStatus.OK_200);
+            }
+        };
+        HttpServlet notFound = new HttpServlet()
+        {
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException
+            {
+                resp.sendError(HttpStatus.NOT_FOUND_404);
+            }
+        };
+        HttpServlet failing = new HttpServlet()
+        {
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            {
+                throw new IllegalStateException("Expected by the test");
+            }
+        };
+        HttpServlet async = new HttpServlet()
+        {
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            {
+                AsyncContext asyncContext = req.startAsync();
+                asyncContext.start(() ->
+                {
+                    ((HttpServletResponse)asyncContext.getResponse()).setStatus(HttpStatus.SERVICE_UNAVAILABLE_503);
+                    asyncContext.complete();
+                });
+            }
+        };
+
+        Server server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(0);
+        server.addConnector(connector);
+        ServletContextHandler contextHandler = new ServletContextHandler();
+        contextHandler.setContextPath("/");
+        contextHandler.addServlet(new ServletHolder(ok), "/ok");
+        contextHandler.addServlet(new ServletHolder(notFound), "/notFound");
+        contextHandler.addServlet(new ServletHolder(failing), "/failing");
+        ServletHolder asyncHolder = new ServletHolder(async);
+        asyncHolder.setAsyncSupported(true);
+        contextHandler.addServlet(asyncHolder, "/async");
+        ErrorMetricsListener listener = new ErrorMetricsListener();
+        MetricsHandler metricsHandler = new MetricsHandler(listener);
+        metricsHandler.addToAllConnectors(server);
+        metricsHandler.addToContext(contextHandler);
+        server.setHandler(contextHandler);
+        HttpClient client = new HttpClient();
+        try
+        {
+            server.start();
+            client.start();
+
+            assertThat(get(client, server, "/ok").getStatus(), is(HttpStatus.OK_200));
+            assertThat(get(client, server, "/notFound").getStatus(), is(HttpStatus.NOT_FOUND_404));
+            assertThat(get(client, server, "/notFound").getStatus(), is(HttpStatus.NOT_FOUND_404));
+            assertThat(get(client, server, "/failing").getStatus(), is(HttpStatus.INTERNAL_SERVER_ERROR_500));
+            assertThat(get(client, server, "/async").getStatus(), is(HttpStatus.SERVICE_UNAVAILABLE_503));
+
+            // The requests complete after their responses are received.
+            awaitUntil(() -> listener.getStatusClassCount(2) + listener.getStatusClassCount(4) + listener.getStatusClassCount(5) == 5);
+            assertThat(listener.getStatusCount(HttpStatus.OK_200), is(1L));
+            assertThat(listener.getStatusCount(HttpStatus.NOT_FOUND_404), is(2L));
+            assertThat(listener.getStatusCount(HttpStatus.INTERNAL_SERVER_ERROR_500), is(1L));
+            assertThat(listener.getStatusCount(HttpStatus.SERVICE_UNAVAILABLE_503), is(1L));
+            assertThat(listener.getStatusClassCount(2), is(1L));
+            assertThat(listener.getStatusClassCount(4), is(2L));
+            assertThat(listener.getStatusClassCount(5), is(2L));
+
+            // Servlets are only tracked once they fail.
+            assertThat(listener.getServlets().contains(ok), is(false));
+            assertThat(listener.getServletStatusCount(notFound, HttpStatus.NOT_FOUND_404), is(2L));
+            assertThat(listener.getServletExceptionCounts(notFound).isEmpty(), is(true));
+            assertThat(listener.getServletExceptionCounts(failing).get(IllegalStateException.class), is(1L));
+
+            // The status of the async servlet is only known when the request completes.
+            assertThat(listener.getServletStatusCount(async, HttpStatus.SERVICE_UNAVAILABLE_503), is(1L));
+            assertThat(listener.getServletStatusCount(async, HttpStatus.OK_200), is(0L));
+        }
+        finally
+        {
+            LifeCycle.stop(client);
+            LifeCycle.stop(server);
+        }
+    }
+
+    private static ContentResponse get(HttpClient client, Server server, String path) throws Exception
+    {
+        return client.newRequest(server.getURI().resolve(path)).timeout(5, TimeUnit.SECONDS).send();
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertThat(condition.getAsBoolean(), is(true));
+    }
+}
@@ -0,0 +1,199 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+
+import org.eclipse.jetty.metrics.servlets.HelloServlet;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+public class EwmaAnomalyDetectorTest
+{
+    private static final long INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final List<Anomaly> anomalies = new ArrayList<>();
+    private final Servlet servlet = new HelloServlet();
+    private long now;
+    private final EwmaAnomalyDetector detector = new EwmaAnomalyDetector(this::onAnomaly, 0.1, 4, Duration.ofNanos(INTERVAL), 10)
+    {
+        @Override
+        long nanoTime()
+        {
+            return now;
+        }
+    };
+
+    private void onAnomaly(ServletContext servletContext, Object component, EwmaAnomalyDetector.Metric metric, double value, double mean, double stdDev)
+    {
+        anomalies.add(new Anomaly(metric, value));
+    }
+
+    private void exit(long latencyMicros, boolean failed)
+    {
+        detector.onServletExit(null, servlet, null, Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(latencyMicros)), failed ? new Exception() : null);
+    }
+
+    /**
+     * Feeds intervals of the given number of calls, evenly spread, the failed ones first.
+     */
+    private void intervals(int intervals, int calls, int failures)
+    {
+        for (int i = 0; i < intervals; i++)
+        {
+            long start = now;
+            for (int c = 0; c < calls; c++)
+            {
+                now = start + c * (INTERVAL / calls);
+                exit(1000, c < failures);
+            }
+            now = start + INTERVAL;
+        }
+    }
+
+    @Test
+    public void testLatencyOutlier()
+    {
+        for (int i = 0; i < 100; i++)
+        {
+            exit(1000 + i % 10, false);
+        }
+        assertThat(anomalies, empty());
+
+        exit(5000, false);
+        assertThat(anomalies, hasSize(1));
+        assertThat(anomalies.get(0).metric, is(EwmaAnomalyDetector.Metric.LATENCY));
+        assertThat(anomalies.get(0).value, is((double)TimeUnit.MICROSECONDS.toNanos(5000)));
+
+        // Further outliers within the same interval are not notified.
+        exit(5000, false);
+        assertThat(anomalies, hasSize(1));
+    }
+
+    @Test
+    public void testNoAnomalyDuringWarmup()
+    {
+        for (int i = 0; i < 9; i++)
+        {
+            exit(1000, false);
+        }
+        exit(50_000, false);
+        assertThat(anomalies, empty());
+    }
+
+    @Test
+    public void testZeroVarianceBaselineToleratesSmallDeviation()
+    {
+        for (int i = 0; i < 100; i++)
+        {
+            exit(1000, false);
+        }
+        // The baseline has no variance at all, so only the floor relative to the mean makes this not anomalous.
+        exit(1100, false);
+        exit(1300, false);
+        assertThat(anomalies, empty());
+
+        exit(2000, false);
+        assertThat(anomalies, hasSize(1));
+        assertThat(anomalies.get(0).metric, is(EwmaAnomalyDetector.Metric.LATENCY));
+    }
+
+    @Test
+    public void testErrorRate()
+    {
+        intervals(20, 100, 0);
+        assertThat(anomalies, empty());
+        assertThat(detector.getErrorRateMean(servlet), is(0D));
+
+        // A single failure over a baseline with no failures is within the floor.
+        intervals(1, 100, 1);
+        intervals(1, 100, 0);
+        assertThat(anomalies, empty());
+
+        intervals(1, 100, 50);
+        intervals(1, 100, 0);
+        assertThat(anomalies, hasSize(1));
+        assertThat(anomalies.get(0).metric, is(EwmaAnomalyDetector.Metric.ERROR_RATE));
+        assertThat(anomalies.get(0).value, closeTo(0.5, 0.001));
+    }
+
+    @Test
+    public void testThroughputCollapseDetectedOnNextCall()
+    {
+        intervals(20, 100, 0);
+        assertThat(anomalies, empty());
+        assertThat(detector.getThroughputMean(servlet), closeTo(100, 0.001));
+
+        // No calls for 5 intervals, then a call arrives.
+        now += 5 * INTERVAL;
+        exit(1000, false);
+        assertThat(anomalies, hasSize(1));
+        assertThat(anomalies.get(0).metric, is(EwmaAnomalyDetector.Metric.THROUGHPUT));
+        assertThat(anomalies.get(0).value, is(0D));
+    }
+
+    @Test
+    public void testThroughputCollapseDetectedByCheck()
+    {
+        intervals(20, 100, 0);
+
+        // The interval is not over yet.
+        now += INTERVAL / 2;
+        detector.checkIntervals();
+        assertThat(anomalies, empty());
+
+        now += 2 * INTERVAL;
+        detector.checkIntervals();
+        assertThat(anomalies, hasSize(1));
+        assertThat(anomalies.get(0).metric, is(EwmaAnomalyDetector.Metric.THROUGHPUT));
+        assertThat(anomalies.get(0).value, is(0D));
+    }
+
+    @Test
+    public void testSteadyThroughput()
+    {
+        intervals(50, 100, 0);
+        intervals(10, 95, 0);
+        intervals(10, 105, 0);
+        detector.checkIntervals();
+        assertThat(anomalies, empty());
+    }
+
+    private static class Anomaly
+    {
+        private final EwmaAnomalyDetector.Metric metric;
+        private final double value;
+
+        private Anomaly(EwmaAnomalyDetector.Metric metric, double value)
+        {
+            this.metric = metric;
+            this.value = value;
+        }
+    }
+}
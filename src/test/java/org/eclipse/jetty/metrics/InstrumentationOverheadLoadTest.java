@@ -0,0 +1,246 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.DispatcherType;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.metrics.servlets.HelloServlet;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ * Measures the end-to-end overhead of the instrumentation, driving an embedded server with a fixed number
+ * of concurrent clients over loopback, without instrumentation, with a no-op listener and with full aggregation.
+ * <p>
+ * Only runs when the {@code metrics.loadTest} system property is true, eg: with {@code mvn test -Pload-test}.
+ * The durations, the concurrency and the budgets can be configured with the {@code metrics.loadTest.*} system properties.
+ * The allocation rate is that of the whole JVM, client included, as measured by the threads alive at the end of the run.
+ * </p>
+ */
+@EnabledIfSystemProperty(named = "metrics.loadTest", matches = "true")
+public class InstrumentationOverheadLoadTest
+{
+    private static final Logger LOG = Log.getLogger(InstrumentationOverheadLoadTest.class);
+    private static final int CONCURRENCY = Integer.getInteger("metrics.loadTest.concurrency", 16);
+    private static final long WARMUP_SECONDS = Long.getLong("metrics.loadTest.warmupSeconds", 5);
+    private static final long DURATION_SECONDS = Long.getLong("metrics.loadTest.durationSeconds", 15);
+    // The maximum relative loss of throughput and increase of p99 latency over the uninstrumented server.
+    private static final double THROUGHPUT_BUDGET = Double.parseDouble(System.getProperty("metrics.loadTest.throughputBudget", "0.10"));
+    private static final double P99_BUDGET = Double.parseDouble(System.getProperty("metrics.loadTest.p99Budget", "0.50"));
+
+    private enum Instrumentation
+    {
+        NONE,
+        NO_OP,
+        FULL
+    }
+
+    @Test
+    public void testInstrumentationOverhead() throws Exception
+    {
+        Map<Instrumentation, Result> results = new EnumMap<>(Instrumentation.class);
+        for (Instrumentation instrumentation : Instrumentation.values())
+        {
+            results.put(instrumentation, run(instrumentation));
+        }
+        for (Result result : results.values())
+        {
+            LOG.info("{}", result);
+        }
+
+        Result baseline = results.get(Instrumentation.NONE);
+        for (Instrumentation instrumentation : EnumSet.of(Instrumentation.NO_OP, Instrumentation.FULL))
+        {
+            Result result = results.get(instrumentation);
+            assertThat(instrumentation + " failures", result.failures, is(0L));
+            assertThat(instrumentation + " throughput overhead", 1 - result.throughput / baseline.throughput, lessThanOrEqualTo(THROUGHPUT_BUDGET));
+            assertThat(instrumentation + " p99 overhead", (double)result.p99 / baseline.p99 - 1, lessThanOrEqualTo(P99_BUDGET));
+        }
+    }
+
+    private Result run(Instrumentation instrumentation) throws Exception
+    {
+        Server server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(0);
+        server.addConnector(connector);
+
+        ServletContextHandler contextHandler = new ServletContextHandler();
+        contextHandler.setContextPath("/");
+        contextHandler.addServlet(HelloServlet.class, "/hello");
+        contextHandler.addFilter(FooFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST));
+        switch (instrumentation)
+        {
+            case NO_OP:
+            {
+                MetricsHandler metricsHandler = new MetricsHandler(new AbstractServletMetricsListener()
+                {
+                });
+                metricsHandler.addToContext(contextHandler);
+                break;
+            }
+            case FULL:
+            {
+                LatencyMetricsListener latencyListener = new LatencyMetricsListener();
+                latencyListener.setRecordExemplars(true);
+                latencyListener.setLearnExpectedInterval(true);
+                MetricsHandler metricsHandler = new MetricsHandler(latencyListener);
+                metricsHandler.addToAllConnectors(server);
+                metricsHandler.addToContext(contextHandler);
+                break;
+            }
+            default:
+                break;
+        }
+        server.setHandler(contextHandler);
+
+        HttpClient client = new HttpClient();
+        client.setMaxConnectionsPerDestination(CONCURRENCY);
+        try
+        {
+            server.start();
+            client.start();
+            URI uri = server.getURI().resolve("/hello");
+
+            drive(client, uri, WARMUP_SECONDS, new LatencyHistogram(), new AtomicLong());
+
+            LatencyHistogram latencies = new LatencyHistogram();
+            AtomicLong failures = new AtomicLong();
+            long allocatedStart = getAllocatedBytes();
+            long start = System.nanoTime();
+            drive(client, uri, DURATION_SECONDS, latencies, failures);
+            long elapsed = System.nanoTime() - start;
+            long allocated = allocatedStart < 0 ? -1 : getAllocatedBytes() - allocatedStart;
+            return new Result(instrumentation, latencies, failures.get(), elapsed, allocated);
+        }
+        finally
+        {
+            LifeCycle.stop(client);
+            LifeCycle.stop(server);
+        }
+    }
+
+    private static void drive(HttpClient client, URI uri, long seconds, LatencyHistogram latencies, AtomicLong failures) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < CONCURRENCY; i++)
+        {
+            Thread thread = new Thread(() ->
+            {
+                while (System.nanoTime() < deadline)
+                {
+                    long begin = System.nanoTime();
+                    try
+                    {
+                        ContentResponse response = client.GET(uri);
+                        if (response.getStatus() != HttpStatus.OK_200)
+                        {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    catch (Exception x)
+                    {
+                        failures.incrementAndGet();
+                    }
+                    latencies.record(System.nanoTime() - begin);
+                }
+            }, "load-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+    }
+
+    private static long getAllocatedBytes()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!ThreadResources.isAllocatedBytesSupported() || !(threads instanceof com.sun.management.ThreadMXBean))
+        {
+            return -1;
+        }
+        long total = 0;
+        for (long allocated : ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(threads.getAllThreadIds()))
+        {
+            if (allocated > 0)
+            {
+                total += allocated;
+            }
+        }
+        return total;
+    }
+
+    private static class Result
+    {
+        private final Instrumentation instrumentation;
+        private final long requests;
+        private final long failures;
+        private final double throughput;
+        private final long p50;
+        private final long p99;
+        private final long allocatedPerSecond;
+        private final long allocatedPerRequest;
+
+        private Result(Instrumentation instrumentation, LatencyHistogram latencies, long failures, long elapsed, long allocated)
+        {
+            this.instrumentation = instrumentation;
+            this.requests = latencies.getCount();
+            this.failures = failures;
+            this.throughput = requests * 1_000_000_000D / elapsed;
+            this.p50 = latencies.getValueAtPercentile(50);
+            this.p99 = latencies.getValueAtPercentile(99);
+            this.allocatedPerSecond = allocated < 0 ? -1 : (long)(allocated * 1_000_000_000D / elapsed);
+            this.allocatedPerRequest = allocated < 0 || requests == 0 ? -1 : allocated / requests;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%-5s requests=%d failures=%d throughput=%.0f/s p50=%dus p99=%dus allocated=%dMB/s (%dB/request)",
+                instrumentation, requests, failures, throughput, TimeUnit.NANOSECONDS.toMicros(p50), TimeUnit.NANOSECONDS.toMicros(p99),
+                allocatedPerSecond < 0 ? -1 : allocatedPerSecond / (1024 * 1024), allocatedPerRequest);
+        }
+    }
+}
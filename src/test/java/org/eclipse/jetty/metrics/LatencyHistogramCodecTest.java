@@ -0,0 +1,62 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class LatencyHistogramCodecTest
+{
+    @Test
+    public void testEncodeAndMerge()
+    {
+        LatencyHistogram node1 = new LatencyHistogram();
+        LatencyHistogram node2 = new LatencyHistogram();
+        LatencyHistogram all = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++)
+        {
+            long fast = TimeUnit.MICROSECONDS.toNanos(i);
+            long slow = TimeUnit.MILLISECONDS.toNanos(i);
+            node1.record(fast);
+            node2.record(slow);
+            all.record(fast);
+            all.record(slow);
+        }
+
+        byte[] bytes1 = LatencyHistogramCodec.encode(node1);
+        byte[] bytes2 = LatencyHistogramCodec.encode(node2);
+        assertThat(bytes1.length, lessThanOrEqualTo(512));
+
+        LatencyHistogram merged = LatencyHistogramCodec.merge(Arrays.asList(bytes1, bytes2));
+        assertThat(merged.getCount(), is(all.getCount()));
+        assertThat(merged.getTotal(), is(all.getTotal()));
+        assertThat(merged.getMax(), is(all.getMax()));
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++)
+        {
+            assertThat(merged.getCount(i), is(all.getCount(i)));
+        }
+        assertThat(merged.getValueAtPercentile(99), is(all.getValueAtPercentile(99)));
+    }
+}
@@ -0,0 +1,102 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.Servlet;
+
+import org.eclipse.jetty.metrics.servlets.HelloServlet;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class LatencyMetricsListenerTest
+{
+    @Test
+    public void testCoordinatedOmissionCorrection()
+    {
+        long[][] cases = {
+            {TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.MILLISECONDS.toNanos(1)},
+            {TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.MICROSECONDS.toNanos(3)},
+            {TimeUnit.MICROSECONDS.toNanos(5), TimeUnit.MICROSECONDS.toNanos(10)}
+        };
+        for (long[] c : cases)
+        {
+            LatencyHistogram expected = new LatencyHistogram();
+            // The default method back-fills the samples one by one.
+            LatencyRecorder reference = new LatencyRecorder()
+            {
+                @Override
+                public void record(long value)
+                {
+                    expected.record(value);
+                }
+
+                @Override
+                public LatencyHistogram getHistogram()
+                {
+                    return expected;
+                }
+            };
+            reference.record(c[0], c[1]);
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(c[0], c[1]);
+            ThreadShardedLatencyRecorder sharded = new ThreadShardedLatencyRecorder();
+            sharded.record(c[0], c[1]);
+
+            for (LatencyHistogram actual : new LatencyHistogram[]{histogram, sharded.getHistogram()})
+            {
+                assertThat("count", actual.getCount(), is(expected.getCount()));
+                assertThat("total", actual.getTotal(), is(expected.getTotal()));
+                assertThat("max", actual.getMax(), is(c[0]));
+                for (int i = 0; i < LatencyHistogram.BUCKETS; i++)
+                {
+                    assertThat("bucket " + i, actual.getCount(i), is(expected.getCount(i)));
+                }
+            }
+        }
+
+        LatencyMetricsListener listener = new LatencyMetricsListener();
+        listener.setExpectedInterval(Duration.ofMillis(1));
+        Servlet servlet = new HelloServlet();
+        for (int i = 0; i < 99; i++)
+        {
+            listener.onServletExit(null, servlet, null, Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(100)), null);
+        }
+        listener.onServletExit(null, servlet, null, Duration.ofMillis(100), null);
+
+        // A single stalled request in the raw histogram, a hundred in the corrected one.
+        assertThat("raw count", listener.getServletHistogram(servlet).getCount(), is(100L));
+        assertRelative(listener.getServletHistogram(servlet).getValueAtPercentile(90), TimeUnit.MICROSECONDS.toNanos(100));
+        assertThat("corrected count", listener.getCorrectedServletHistogram(servlet).getCount(), is(199L));
+        assertRelative(listener.getCorrectedServletHistogram(servlet).getValueAtPercentile(90), TimeUnit.MILLISECONDS.toNanos(80));
+        assertThat("interval", listener.getExpectedInterval(servlet), is(Duration.ofMillis(1)));
+    }
+
+    private static void assertRelative(long actual, long expected)
+    {
+        long tolerance = expected / 16;
+        assertThat(actual, allOf(greaterThanOrEqualTo(expected - tolerance), lessThanOrEqualTo(expected + tolerance)));
+    }
+}
@@ -0,0 +1,110 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class MetricRegistryTest
+{
+    private final AtomicLong clock = new AtomicLong();
+    private final MetricRegistry registry = new MetricRegistry(clock::get);
+    private final MetricRegistry.Table<String, AtomicLong> table = registry.newTable(key -> new AtomicLong());
+
+    private void advance(long millis)
+    {
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    private void record(String key)
+    {
+        table.acquire(null, key).incrementAndGet();
+    }
+
+    @Test
+    public void testBudgetEvictsLeastRecentlyRecorded()
+    {
+        registry.setMaxSeries(2);
+        record("a");
+        advance(10);
+        record("b");
+        advance(10);
+        record("a");
+        advance(10);
+
+        // Over the budget, the least recently recorded series, b, is evicted for c.
+        record("c");
+        assertThat("Series", registry.getSeriesCount(), is(2));
+        assertThat("b", table.get("b"), nullValue());
+        assertThat("a", table.get("a").get(), is(2L));
+        assertThat("Budget evictions", registry.getBudgetEvictions(), is(1L));
+
+        // Lowering the budget evicts right away.
+        registry.setMaxSeries(1);
+        assertThat("Series", registry.getSeriesCount(), is(1));
+        assertThat("c", table.get("c").get(), is(1L));
+        assertThat("Budget evictions", registry.getBudgetEvictions(), is(2L));
+    }
+
+    @Test
+    public void testIdleEviction()
+    {
+        registry.setMaxIdleTime(Duration.ofMillis(50));
+        record("a");
+        advance(40);
+        record("b");
+        advance(40);
+
+        assertThat("Idle evicted", registry.evictIdle(), is(1));
+        assertThat("a", table.get("a"), nullValue());
+        assertThat("b", table.get("b").get(), is(1L));
+
+        // Adding a series sweeps the idle ones, at most once per idle time.
+        advance(100);
+        record("c");
+        assertThat("b", table.get("b"), nullValue());
+        assertThat("Series", registry.getSeriesCount(), is(1));
+        assertThat("Idle evictions", registry.getIdleEvictions(), is(2L));
+        assertThat("Evictions", registry.getEvictions(), is(2L));
+    }
+
+    @Test
+    public void testBoundedLater()
+    {
+        record("a");
+        advance(100);
+        record("a");
+
+        // Access times were not tracked while unbounded, setting a bound starts the series afresh.
+        registry.setMaxIdleTime(Duration.ofMillis(50));
+        assertThat("Idle evicted", registry.evictIdle(), is(0));
+        assertThat("a", table.get("a").get(), is(2L));
+
+        advance(100);
+        assertThat("Idle evicted", registry.evictIdle(), is(1));
+        assertThat("Series", registry.getSeriesCount(), is(0));
+    }
+}
@@ -18,25 +18,59 @@
 
 package org.eclipse.jetty.metrics;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
 
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.util.BytesContentProvider;
 import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.metrics.servlets.AsyncUploadServlet;
+import org.eclipse.jetty.metrics.servlets.CrossContextIncludeServlet;
 import org.eclipse.jetty.metrics.servlets.HelloServlet;
+import org.eclipse.jetty.metrics.servlets.SessionServlet;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.ContextHandlerCollection;
+import org.eclipse.jetty.server.handler.StatisticsHandler;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
+import org.eclipse.jetty.servlet.BaseHolder;
+import org.eclipse.jetty.servlet.Holder;
 import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.toolchain.test.FS;
+import org.eclipse.jetty.toolchain.test.MavenTestingUtils;
 import org.eclipse.jetty.util.component.LifeCycle;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class ServletContextHandlerMetricsTest
 {
@@ -125,4 +159,684 @@ public class ServletContextHandlerMetricsTest
 
         assertThat("Metrics Events Count", captureListener.getEvents().size(), is(expectedEvents.size()));
     }
+
+    @Test
+    public void testSpanTreeOfInclude() throws Exception
+    {
+        SpanTreeRecorder recorder = new SpanTreeRecorder(Duration.ZERO, 8);
+        MetricsHandler metricsHandler = new MetricsHandler(recorder);
+
+        ServletContextHandler contextHandler = new ServletContextHandler();
+        contextHandler.setContextPath("/");
+        contextHandler.addServlet(HelloServlet.class, "/a/hello");
+        contextHandler.addServlet(CrossContextIncludeServlet.class, "/include/*");
+        contextHandler.addFilter(FooFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST));
+
+        metricsHandler.addToAllConnectors(server);
+        metricsHandler.addToContext(contextHandler);
+        server.setHandler(contextHandler);
+        server.start();
+
+        ContentResponse response = client.GET(server.getURI().resolve("/include/"));
+        assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+
+        // The request completes after the response has been sent.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (recorder.getRetainedCount() == 0 && System.nanoTime() < deadline)
+        {
+            Thread.sleep(10);
+        }
+
+        List<SpanTreeRecorder.RecordedSpan> trees = recorder.getRetainedTrees();
+        assertThat("Retained trees", trees.size(), is(1));
+        SpanTreeRecorder.RecordedSpan root = trees.get(0);
+        assertThat("Root.children", root.getChildren().size(), is(1));
+
+        SpanTreeRecorder.RecordedSpan filter = root.getChildren().get(0);
+        assertThat("Filter", filter.getName(), is(FooFilter.class.getName()));
+        assertThat("Filter.dispatcherType", filter.getDispatcherType(), is(DispatcherType.REQUEST));
+        assertThat("Filter.children", filter.getChildren().size(), is(1));
+
+        SpanTreeRecorder.RecordedSpan include = filter.getChildren().get(0);
+        assertThat("Include.children", include.getChildren().size(), is(1));
+
+        SpanTreeRecorder.RecordedSpan hello = include.getChildren().get(0);
+        assertThat("Hello.dispatcherType", hello.getDispatcherType(), is(DispatcherType.INCLUDE));
+        assertThat("Hello.failure", hello.getFailure(), is(nullValue()));
+        assertThat("Hello.children", hello.getChildren().size(), is(0));
+    }
+
+    @Test
+    public void testDispatchTypes() throws Exception
+    {
+        DispatchTypeMetricsListener dispatchListener = new DispatchTypeMetricsListener();
+        MetricsHandler metricsHandler = new MetricsHandler(dispatchListener);
+
+        ServletContextHandler contextHandler = new ServletContextHandler();
+        contextHandler.setContextPath("/");
+        contextHandler.addServlet(HelloServlet.class, "/a/hello");
+        contextHandler.addServlet(CrossContextIncludeServlet.class, "/include/*");
+        contextHandler.addFilter(FooFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST, DispatcherType.INCLUDE));
+
+        metricsHandler.addToAllConnectors(server);
+        metricsHandler.addToContext(contextHandler);
+        server.setHandler(contextHandler);
+        server.start();
+
+        ContentResponse response = client.GET(server.getURI().resolve("/a/hello"));
+        assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+        response = client.GET(server.getURI().resolve("/include/"));
+        assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+
+        Servlet hello = dispatchListener.getServlets().stream()
+            .filter(HelloServlet.class::isInstance)
+            .findFirst()
+            .orElseThrow(IllegalStateException::new);
+        assertThat("Hello REQUEST", dispatchListener.getServletHistogram(hello, DispatcherType.REQUEST).getCount(), is(1L));
+        assertThat("Hello INCLUDE", dispatchListener.getServletHistogram(hello, DispatcherType.INCLUDE).getCount(), is(1L));
+        assertThat("Hello INCLUDE depth", dispatchListener.getServletMaxDepth(hello, DispatcherType.INCLUDE), is(1));
+        assertThat("Hello REQUEST depth", dispatchListener.getServletMaxDepth(hello, DispatcherType.REQUEST), is(0));
+
+        Filter foo = dispatchListener.getFilters().iterator().next();
+        assertThat("Foo REQUEST", dispatchListener.getFilterHistogram(foo, DispatcherType.REQUEST).getCount(), is(2L));
+        assertThat("Foo INCLUDE", dispatchListener.getFilterHistogram(foo, DispatcherType.INCLUDE).getCount(), is(1L));
+    }
+
+    @Test
+    public void testExcludedServletAndFilter() throws Exception
+    {
+        ServletMetricsCaptureListener captureListener = new ServletMetricsCaptureListener();
+        MetricsHandler metricsHandler = new MetricsHandler(captureListener);
+        metricsHandler.getServletRules().excludeName("hello");
+        metricsHandler.getFilterRules().excludeClassName(FooFilter.class.getName());
+
+        ServletContextHandler contextHandler = new ServletContextHandler();
+        contextHandler.setContextPath("/");
+        contextHandler.addServlet(new ServletHolder("hello", HelloServlet.class), "/hello");
+        contextHandler.addFilter(FooFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST));
+
+        metricsHandler.addToAllConnectors(server);
+        metricsHandler.addToContext(contextHandler);
+        server.setHandler(contextHandler);
+        server.start();
+
+        ContentResponse response = client.GET(server.getURI().resolve("/hello"));
+        assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+
+        List<String> expectedEvents = new ArrayList<>();
+        expectedEvents.add("onServletContextStarting()");
+        expectedEvents.add("onServletContextReady()");
+
+        assertThat("Metrics Events Count", captureListener.getEvents().size(), is(expectedEvents.size()));
+    }
+
+    @Test
+    public void testDisabledAtRuntime() throws Exception
+    {
+        ServletMetricsCaptureListener captureListener = new ServletMetricsCaptureListener();
+        MetricsHandler metricsHandler = new MetricsHandler(captureListener);
+
+        ServletContextHandler contextHandler = new ServletContextHandler();
+        contextHandler.setContextPath("/");
+        contextHandler.addServlet(HelloServlet.class, "/hello");
+
+        metricsHandler.addToAllConnectors(server);
+        metricsHandler.addToContext(contextHandler);
+        server.setHandler(contextHandler);
+        server.start();
+
+        metricsHandler.setEnabled(false);
+        ContentResponse response = client.GET(server.getURI().resolve("/hello"));
+        assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+
+        List<String> expectedEvents = new ArrayList<>();
+        expectedEvents.add("onServletContextStarting()");
+        expectedEvents.add("onServletContextReady()");
+        expectedEvents.add("onServletStarting()");
+        expectedEvents.add("onServletReady()");
+
+        assertThat("Metrics Events Count", captureListener.getEvents().size(), is(expectedEvents.size()));
+
+        metricsHandler.setEnabled(true);
+        response = client.GET(server.getURI().resolve("/hello"));
+        assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+
+        expectedEvents.add("onServletEnter()");
+        expectedEvents.add("onServletExit()");
+
+        assertThat("Metrics Events Count", captureListener.getEvents().size(), is(expectedEvents.size()));
+    }
+
+    @Test
+    public void testSwapListenerAtRuntime() throws Exception
+    {
+        ServletMetricsCaptureListener captureListener = new ServletMetricsCaptureListener();
+        MetricsHandler metricsHandler = new MetricsHandler(captureListener);
+
+        ServletContextHandler contextHandler = new ServletContextHandler();
+        contextHandler.setContextPath("/");
+        contextHandler.addServlet(HelloServlet.class, "/hello");
+        contextHandler.addFilter(FooFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST));
+
+        metricsHandler.addToAllConnectors(server);
+        metricsHandler.addToContext(contextHandler);
+        server.setHandler(contextHandler);
+        server.start();
+
+        ContentResponse response = client.GET(server.getURI().resolve("/hello"));
+        assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+
+        ServletMetricsCaptureListener diagnosticListener = new ServletMetricsCaptureListener();
+        ServletMetricsListener previous = metricsHandler.setMetricsListener(diagnosticListener);
+        assertThat("Previous listener", previous, is(captureListener));
+
+        response = client.GET(server.getURI().resolve("/hello"));
+        assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+
+        List<String> expectedEvents = new ArrayList<>();
+        expectedEvents.add("onServletContextStarting()");
+        expectedEvents.add("onFilterStarting()");
+        expectedEvents.add("onFilterReady()");
+        expectedEvents.add("onServletContextReady()");
+        expectedEvents.add("onServletStarting()");
+        expectedEvents.add("onServletReady()");
+        expectedEvents.add("onFilterEnter()");
+        expectedEvents.add("onServletEnter()");
+        expectedEvents.add("onServletExit()");
+        expectedEvents.add("onFilterExit()");
+
+        assertThat("Metrics Events Count", captureListener.getEvents().size(), is(expectedEvents.size()));
+
+        List<String> expectedDiagnosticEvents = new ArrayList<>();
+        expectedDiagnosticEvents.add("onFilterEnter()");
+        expectedDiagnosticEvents.add("onServletEnter()");
+        expectedDiagnosticEvents.add("onServletExit()");
+        expectedDiagnosticEvents.add("onFilterExit()");
+
+        assertThat("Diagnostic Events Count", diagnosticListener.getEvents().size(), is(expectedDiagnosticEvents.size()));
+    }
+
+    @Test
+    public void testInterests() throws Exception
+    {
+        ServletMetricsCaptureListener captureListener = new ServletMetricsCaptureListener()
+        {
+            @Override
+            public int getInterests()
+            {
+                return INTEREST_SERVLET_EXIT;
+            }
+        };
+        MetricsHandler metricsHandler = new MetricsHandler(captureListener);
+
+        ServletContextHandler contextHandler = new ServletContextHandler();
+        contextHandler.setContextPath("/");
+        contextHandler.addServlet(HelloServlet.class, "/hello");
+        contextHandler.addFilter(FooFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST));
+
+        metricsHandler.addToAllConnectors(server);
+        metricsHandler.addToContext(contextHandler);
+        server.setHandler(contextHandler);
+        server.start();
+
+        ContentResponse response = client.GET(server.getURI().resolve("/hello"));
+        assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+
+        List<String> expectedEvents = new ArrayList<>();
+        expectedEvents.add("onServletContextStarting()");
+        expectedEvents.add("onFilterStarting()");
+        expectedEvents.add("onFilterReady()");
+        expectedEvents.add("onServletContextReady()");
+        expectedEvents.add("onServletStarting()");
+        expectedEvents.add("onServletReady()");
+        expectedEvents.add("onServletExit()");
+
+        assertThat("Metrics Events Count", captureListener.getEvents().size(), is(expectedEvents.size()));
+        String last = null;
+        for (String event : captureListener.getEvents())
+        {
+            last = event;
+        }
+        assertThat("Last Event", last, startsWith("onServletExit()"));
+    }
+
+    @Test
+    public void testDynamicRegistrations() throws Exception
+    {
+        class RegistrationCaptureListener extends ServletMetricsCaptureListener implements RegistrationMetricsListener
+        {
+            @Override
+            public void onDynamicRegistration(ServletContext servletContext, BaseHolder<?> holder, boolean late)
+            {
+                addEvent("onDynamicRegistration(), servletContext=%s, holder=%s, late=%b", servletContext, ((Holder<?>)holder).getName(), late);
+            }
+        }
+
+        RegistrationCaptureListener captureListener = new RegistrationCaptureListener();
+        MetricsHandler metricsHandler = new MetricsHandler(captureListener);
+
+        ServletContextHandler contextHandler = new ServletContextHandler();
+        contextHandler.setContextPath("/");
+        contextHandler.addServlet(HelloServlet.class, "/hello");
+        contextHandler.addEventListener(new ServletContextListener()
+        {
+            @Override
+            public void contextInitialized(ServletContextEvent event)
+            {
+                event.getServletContext().addServlet("dynamic", HelloServlet.class).addMapping("/dynamic");
+            }
+
+            @Override
+            public void contextDestroyed(ServletContextEvent event)
+            {
+            }
+        });
+
+        metricsHandler.addToAllConnectors(server);
+        metricsHandler.addToContext(contextHandler);
+        server.setHandler(contextHandler);
+        server.start();
+
+        ServletHolder late = contextHandler.getServletHandler().addServletWithMapping(HelloServlet.class, "/late");
+        for (String path : new String[]{"/hello", "/dynamic", "/late"})
+        {
+            ContentResponse response = client.GET(server.getURI().resolve(path));
+            assertThat("Response.status " + path, response.getStatus(), is(HttpStatus.OK_200));
+        }
+
+        List<String> registrations = new ArrayList<>();
+        for (String event : captureListener.getEvents())
+        {
+            if (event.startsWith("onDynamicRegistration()"))
+            {
+                registrations.add(event);
+            }
+        }
+        assertThat("Registrations", registrations.size(), is(2));
+        assertThat("Dynamic", registrations.get(0), allOf(containsString("holder=dynamic"), containsString("late=false")));
+        assertThat("Late", registrations.get(1), allOf(containsString("holder=" + late.getName()), containsString("late=true")));
+
+        InstrumentationStatistics statistics = metricsHandler.getInstrumentationStatistics();
+        assertThat("Wrapped servlets", statistics.getWrappedServlets(), is(3L));
+        assertThat("Dynamic registrations", statistics.getDynamicRegistrations(), is(2L));
+        assertThat("Late registrations", statistics.getLateRegistrations(), is(1L));
+        assertThat("Servlet exits", captureListener.getEvents().stream().filter(e -> e.startsWith("onServletExit()")).count(), is(3L));
+
+        // The listener is removed when the context stops, and a single fresh one is registered when it restarts.
+        contextHandler.stop();
+        contextHandler.start();
+        assertThat("Dynamic registrations", statistics.getDynamicRegistrations(), is(3L));
+        assertThat("Late registrations", statistics.getLateRegistrations(), is(1L));
+    }
+
+    @Test
+    public void testResourceUsage() throws Exception
+    {
+        ResourceUsageMetricsListener resourceListener = new ResourceUsageMetricsListener();
+        MetricsHandler metricsHandler = new MetricsHandler(resourceListener);
+        metricsHandler.setMeasureResources(true);
+
+        ServletContextHandler contextHandler = new ServletContextHandler();
+        contextHandler.setContextPath("/");
+        contextHandler.addServlet(HelloServlet.class, "/hello");
+        contextHandler.addFilter(FooFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST));
+
+        metricsHandler.addToAllConnectors(server);
+        metricsHandler.addToContext(contextHandler);
+        server.setHandler(contextHandler);
+        server.start();
+
+        ContentResponse response = client.GET(server.getURI().resolve("/hello"));
+        assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+
+        Servlet servlet = resourceListener.getServlets().iterator().next();
+        Filter filter = resourceListener.getFilters().iterator().next();
+        if (ThreadResources.isCpuTimeSupported())
+        {
+            assertThat("Servlet CPU time count", resourceListener.getServletCpuTime(servlet).getCount(), is(1L));
+            assertThat("Filter CPU time count", resourceListener.getFilterCpuTime(filter).getCount(), is(1L));
+        }
+        if (ThreadResources.isAllocatedBytesSupported())
+        {
+            // The filter includes the servlet.
+            assertThat("Servlet allocated bytes count", resourceListener.getServletAllocatedBytes(servlet).getCount(), is(1L));
+            assertThat("Filter allocated bytes", resourceListener.getFilterAllocatedBytes(filter).getTotal(),
+                greaterThanOrEqualTo(resourceListener.getServletAllocatedBytes(servlet).getTotal()));
+        }
+    }
+
+    @Test
+    public void testHandlerLatencies() throws Exception
+    {
+        HandlerLatencyMetricsListener handlerListener = new HandlerLatencyMetricsListener();
+        MetricsHandler metricsHandler = new MetricsHandler(handlerListener);
+
+        ServletContextHandler contextHandler = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        contextHandler.setContextPath("/");
+        contextHandler.addServlet(HelloServlet.class, "/hello");
+        GzipHandler gzipHandler = new GzipHandler();
+        gzipHandler.setMinGzipSize(0);
+        contextHandler.setGzipHandler(gzipHandler);
+        ContextHandlerCollection contexts = new ContextHandlerCollection();
+        contexts.addHandler(contextHandler);
+        StatisticsHandler statisticsHandler = new StatisticsHandler();
+        statisticsHandler.setHandler(contexts);
+
+        metricsHandler.addToAllConnectors(server);
+        metricsHandler.addToContext(contextHandler);
+        server.setHandler(statisticsHandler);
+        metricsHandler.addToAllHandlers(server);
+        // Wrapping is idempotent.
+        metricsHandler.addToAllHandlers(server);
+        server.start();
+        assertThrows(IllegalStateException.class, () -> metricsHandler.addToAllHandlers(server));
+
+        ContentResponse response = client.GET(server.getURI().resolve("/hello"));
+        assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+
+        // The context kept its own links, through the wrappers.
+        assertThat("Session handler", contextHandler.getSessionHandler().getHandler() instanceof MetricsHandlerWrapper, is(true));
+        for (Handler handler : new Handler[]{statisticsHandler, contexts, contextHandler, contextHandler.getSessionHandler(), gzipHandler, contextHandler.getServletHandler()})
+        {
+            assertThat("Inclusive count " + handler, handlerListener.getInclusiveHistogram(handler).getCount(), is(1L));
+            assertThat("Exclusive " + handler, handlerListener.getExclusiveHistogram(handler).getTotal(),
+                lessThanOrEqualTo(handlerListener.getInclusiveHistogram(handler).getTotal()));
+        }
+        assertThat("Statistics includes context", handlerListener.getInclusiveHistogram(statisticsHandler).getTotal(),
+            greaterThanOrEqualTo(handlerListener.getInclusiveHistogram(contextHandler).getTotal()));
+        assertThat("Context includes gzip", handlerListener.getInclusiveHistogram(contextHandler).getTotal(),
+            greaterThanOrEqualTo(handlerListener.getInclusiveHistogram(gzipHandler).getTotal()));
+    }
+
+    @Test
+    public void testHandlerListenerFailure() throws Exception
+    {
+        AtomicBoolean fail = new AtomicBoolean(true);
+        HandlerLatencyMetricsListener handlerListener = new HandlerLatencyMetricsListener()
+        {
+            @Override
+            public void onHandlerExit(Handler handler, Request baseRequest, Duration inclusive, Duration exclusive, Throwable cause)
+            {
+                if (fail.getAndSet(false))
+                {
+                    throw new IllegalStateException("Expected by the test");
+                }
+                super.onHandlerExit(handler, baseRequest, inclusive, exclusive, cause);
+            }
+        };
+        MetricsHandler metricsHandler = new MetricsHandler(handlerListener);
+
+        ServletContextHandler contextHandler = new ServletContextHandler();
+        contextHandler.setContextPath("/");
+        contextHandler.addServlet(HelloServlet.class, "/hello");
+        StatisticsHandler statisticsHandler = new StatisticsHandler();
+        statisticsHandler.setHandler(contextHandler);
+
+        metricsHandler.addToAllConnectors(server);
+        metricsHandler.addToContext(contextHandler);
+        server.setHandler(statisticsHandler);
+        metricsHandler.addToAllHandlers(server);
+        server.start();
+
+        // The first exit fails, the frames of the thread must stay balanced for the next requests.
+        client.GET(server.getURI().resolve("/hello"));
+        for (int i = 0; i < 3; i++)
+        {
+            ContentResponse response = client.GET(server.getURI().resolve("/hello"));
+            assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+        }
+        // The failed exit is the innermost one, the outer wrappers still recorded the first request.
+        assertThat("Statistics count", handlerListener.getInclusiveHistogram(statisticsHandler).getCount(), is(4L));
+        assertThat("Exclusive", handlerListener.getExclusiveHistogram(statisticsHandler).getTotal(),
+            lessThanOrEqualTo(handlerListener.getInclusiveHistogram(statisticsHandler).getTotal()));
+    }
+
+    @Test
+    public void testNonBlockingIo() throws Exception
+    {
+        IoStatisticsListener ioListener = new IoStatisticsListener();
+        MetricsHandler metricsHandler = new MetricsHandler(ioListener);
+
+        ServletContextHandler contextHandler = new ServletContextHandler();
+        contextHandler.setContextPath("/");
+        ServletHolder holder = contextHandler.addServlet(AsyncUploadServlet.class, "/upload");
+        holder.setAsyncSupported(true);
+
+        metricsHandler.addToAllConnectors(server);
+        metricsHandler.addToContext(contextHandler);
+        server.setHandler(contextHandler);
+        server.start();
+
+        ContentResponse response = client.POST(server.getURI().resolve("/upload"))
+            .content(new BytesContentProvider(new byte[16 * 1024]))
+            .send();
+        assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+        assertThat("Response.content", response.getContentAsString(), is("Read 16384"));
+
+        Servlet servlet = ioListener.getServlets().iterator().next();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (ioListener.getIoWaitHistogram(servlet).getCount() == 0 && System.nanoTime() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertThat("I/O wait count", ioListener.getIoWaitHistogram(servlet).getCount(), is(1L));
+        assertThat("Data available count", ioListener.getCallbackHistogram(servlet, IoMetricsListener.Callback.DATA_AVAILABLE).getCount(), greaterThanOrEqualTo(1L));
+        assertThat("All data read count", ioListener.getCallbackHistogram(servlet, IoMetricsListener.Callback.ALL_DATA_READ).getCount(), is(1L));
+        assertThat("Write possible count", ioListener.getCallbackHistogram(servlet, IoMetricsListener.Callback.WRITE_POSSIBLE).getCount(), greaterThanOrEqualTo(1L));
+        assertThat("Callbacks per request", ioListener.getCallbacksPerRequest(servlet).getMax(), greaterThanOrEqualTo(3L));
+    }
+
+    @Test
+    public void testExemplars() throws Exception
+    {
+        LatencyMetricsListener latencyListener = new LatencyMetricsListener();
+        latencyListener.setRecordExemplars(true);
+        MetricsHandler metricsHandler = new MetricsHandler(latencyListener);
+
+        ServletContextHandler contextHandler = new ServletContextHandler();
+        contextHandler.setContextPath("/");
+        contextHandler.addServlet(HelloServlet.class, "/hello");
+
+        metricsHandler.addToAllConnectors(server);
+        metricsHandler.addToContext(contextHandler);
+        server.setHandler(contextHandler);
+        server.start();
+
+        ContentResponse response = client.GET(server.getURI().resolve("/hello"));
+        assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+
+        Servlet servlet = latencyListener.getServlets().iterator().next();
+        LatencyHistogram histogram = latencyListener.getServletHistogram(servlet);
+        Exemplars exemplars = latencyListener.getServletExemplars(servlet);
+        assertThat("Exemplars", exemplars.getExemplars().size(), is(1));
+        Exemplars.Exemplar exemplar = exemplars.getExemplarNear(histogram.getValueAtPercentile(99));
+        assertThat("Exemplar value", exemplar.getValue(), is(histogram.getMax()));
+        assertThat("Exemplar request ID", UUID.fromString(exemplar.getRequestId()), notNullValue());
+
+        // The slot of the bucket is overwritten in place.
+        exemplars.record(exemplar.getValue(), "other", exemplar.getTimestamp() + 1);
+        assertThat("Overwritten request ID", exemplars.getExemplar(exemplar.getBucketIndex()).getRequestId(), is("other"));
+        assertThat("Exemplars", exemplars.getExemplars().size(), is(1));
+    }
+
+    @Test
+    public void testBinaryRequestLog() throws Exception
+    {
+        Path directory = MavenTestingUtils.getTargetTestingPath(ServletContextHandlerMetricsTest.class.getSimpleName() + "-binaryLog");
+        FS.ensureEmpty(directory);
+        BinaryLogWriter writer = new BinaryLogWriter(directory, "requests");
+        BinaryRequestLog requestLog = new BinaryRequestLog(writer);
+        MetricsHandler metricsHandler = new MetricsHandler(requestLog);
+
+        ServletContextHandler contextHandler = new ServletContextHandler();
+        contextHandler.setContextPath("/");
+        contextHandler.addServlet(HelloServlet.class, "/hello");
+        contextHandler.addFilter(FooFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST));
+
+        metricsHandler.addToAllConnectors(server);
+        metricsHandler.addToContext(contextHandler);
+        server.addBean(writer);
+        server.setHandler(contextHandler);
+        server.start();
+
+        for (int i = 0; i < 3; i++)
+        {
+            ContentResponse response = client.GET(server.getURI().resolve("/hello"));
+            assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+        }
+        // The requests complete, and are logged, after their responses have been sent.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (writer.getWritten() + writer.getDropped() < 3 && System.nanoTime() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        server.stop();
+        assertThat("Written", writer.getWritten(), is(3L));
+        assertThat("Dropped", writer.getDropped(), is(0L));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BinaryRequestLogDecoder.decode(directory.resolve("requests-000001.bin"), new PrintStream(output, true, "UTF-8"));
+        String[] lines = output.toString("UTF-8").split(System.lineSeparator());
+        assertThat("Lines", lines.length, is(3));
+        for (String line : lines)
+        {
+            assertThat(line, containsString("status=200"));
+            assertThat(line, containsString("S / " + HelloServlet.class.getName()));
+            assertThat(line, containsString("F / " + FooFilter.class.getName()));
+        }
+    }
+
+    @Test
+    public void testBinaryRequestLogTruncatesRecords() throws Exception
+    {
+        Path directory = MavenTestingUtils.getTargetTestingPath(ServletContextHandlerMetricsTest.class.getSimpleName() + "-binaryLogTruncated");
+        FS.ensureEmpty(directory);
+        // The length of a record must fit in an unsigned short.
+        assertThrows(IllegalArgumentException.class, () -> new BinaryLogWriter(directory, "requests", 1024 * 1024, 4, 0xFFFF + 4));
+        assertThrows(IllegalArgumentException.class, () -> new BinaryLogWriter(directory, "requests", 64 * 1024, 0, 160));
+        // Too small a buffer for the record of a request with many calls.
+        BinaryLogWriter writer = new BinaryLogWriter(directory, "requests", 64 * 1024, 4, 160);
+        BinaryRequestLog requestLog = new BinaryRequestLog(writer);
+        MetricsHandler metricsHandler = new MetricsHandler(requestLog);
+
+        ServletContextHandler contextHandler = new ServletContextHandler();
+        contextHandler.setContextPath("/");
+        contextHandler.addServlet(HelloServlet.class, "/hello");
+        for (int i = 0; i < 10; i++)
+        {
+            contextHandler.addFilter(FooFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST));
+        }
+
+        metricsHandler.addToAllConnectors(server);
+        metricsHandler.addToContext(contextHandler);
+        server.addBean(writer);
+        server.setHandler(contextHandler);
+        server.start();
+
+        for (int i = 0; i < 5; i++)
+        {
+            ContentResponse response = client.GET(server.getURI().resolve("/hello"));
+            assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+        }
+        // The requests complete, and are logged, after their responses have been sent.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (writer.getWritten() + writer.getDropped() < 5 && System.nanoTime() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        server.stop();
+        // Every buffer went back to the pool.
+        assertThat("Written", writer.getWritten(), is(5L));
+        assertThat("Dropped", writer.getDropped(), is(0L));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BinaryRequestLogDecoder.decode(directory.resolve("requests-000001.bin"), new PrintStream(output, true, "UTF-8"));
+        String[] lines = output.toString("UTF-8").split(System.lineSeparator());
+        assertThat("Lines", lines.length, is(5));
+        for (String line : lines)
+        {
+            assertThat(line, containsString("F / " + FooFilter.class.getName()));
+            assertThat(line, containsString(", ...]"));
+        }
+    }
+
+    @Test
+    public void testSessionMetrics() throws Exception
+    {
+        SessionStatisticsListener sessionListener = new SessionStatisticsListener();
+        MetricsHandler metricsHandler = new MetricsHandler(sessionListener);
+
+        ServletContextHandler contextHandler = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        contextHandler.setContextPath("/");
+        contextHandler.addServlet(SessionServlet.class, "/session");
+
+        metricsHandler.addToAllConnectors(server);
+        metricsHandler.addToContext(contextHandler);
+        server.setHandler(contextHandler);
+        server.start();
+
+        ContentResponse response = client.GET(server.getURI().resolve("/session"));
+        assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+        ServletContext servletContext = contextHandler.getServletContext();
+        assertThat("Created", sessionListener.getCreatedSessions(servletContext), is(1L));
+        assertThat("Active", sessionListener.getActiveSessions(servletContext), is(1L));
+        // The session is saved when the request exits it, which can happen after the response is sent.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sessionListener.getStoreOperationHistogram(servletContext, SessionMetricsListener.StoreOperation.STORE).getCount() == 0 && System.nanoTime() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertThat("Stored", sessionListener.getStoreOperationHistogram(servletContext, SessionMetricsListener.StoreOperation.STORE).getCount(), greaterThanOrEqualTo(1L));
+
+        // The client keeps the session cookie.
+        response = client.GET(server.getURI().resolve("/session?invalidate=true"));
+        assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+        assertThat("Created", sessionListener.getCreatedSessions(servletContext), is(1L));
+        assertThat("Destroyed", sessionListener.getDestroyedSessions(servletContext), is(1L));
+        assertThat("Active", sessionListener.getActiveSessions(servletContext), is(0L));
+        assertThat("Deleted", sessionListener.getStoreOperationHistogram(servletContext, SessionMetricsListener.StoreOperation.DELETE).getCount(), is(1L));
+
+        // The session listener is removed when the context stops, and a single fresh one is added when it restarts.
+        contextHandler.stop();
+        contextHandler.start();
+        response = client.GET(server.getURI().resolve("/session"));
+        assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+        assertThat("Created", sessionListener.getCreatedSessions(servletContext), is(1L));
+        assertThat("Active", sessionListener.getActiveSessions(servletContext), is(1L));
+    }
+
+    @Test
+    public void testMetricRegistryEviction() throws Exception
+    {
+        LatencyMetricsListener latencyListener = new LatencyMetricsListener();
+        MetricRegistry registry = latencyListener.getMetricRegistry();
+        MetricsHandler metricsHandler = new MetricsHandler(latencyListener);
+
+        ServletContextHandler contextHandler = new ServletContextHandler();
+        contextHandler.setContextPath("/");
+        contextHandler.addServlet(HelloServlet.class, "/hello");
+        contextHandler.addFilter(FooFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST));
+
+        metricsHandler.addToContext(contextHandler);
+        server.setHandler(contextHandler);
+        server.start();
+
+        ContentResponse response = client.GET(server.getURI().resolve("/hello"));
+        assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+        assertThat("Servlets", latencyListener.getServlets().size(), is(1));
+        assertThat("Filters", latencyListener.getFilters().size(), is(1));
+        assertThat("Series", registry.getSeriesCount(), is(2));
+
+        // A redeploy releases the series of the previous Servlet and Filter instances.
+        contextHandler.stop();
+        assertThat("Servlets", latencyListener.getServlets().size(), is(0));
+        assertThat("Filters", latencyListener.getFilters().size(), is(0));
+        assertThat("Context evictions", registry.getContextEvictions(), is(2L));
+        contextHandler.start();
+
+        // The restarted context records new series.
+        response = client.GET(server.getURI().resolve("/hello"));
+        assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+        assertThat("Series", registry.getSeriesCount(), is(2));
+    }
 }
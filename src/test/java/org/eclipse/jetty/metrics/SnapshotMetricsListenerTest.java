@@ -0,0 +1,78 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.Servlet;
+
+import org.eclipse.jetty.metrics.servlets.HelloServlet;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class SnapshotMetricsListenerTest
+{
+    @Test
+    public void testSnapshotsPartitionTheRecordings() throws Exception
+    {
+        SnapshotMetricsListener listener = new SnapshotMetricsListener();
+        Servlet servlet = new HelloServlet();
+        int threads = 4;
+        int samples = 100_000;
+
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++)
+        {
+            Thread worker = new Thread(() ->
+            {
+                for (int i = 0; i < samples; i++)
+                {
+                    listener.onServletExit(null, servlet, null, Duration.ofNanos(1000), null);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        long count = 0;
+        long total = 0;
+        AtomicBoolean done = new AtomicBoolean();
+        while (!done.get())
+        {
+            done.set(workers.stream().noneMatch(Thread::isAlive));
+            SnapshotMetricsListener.Snapshot snapshot = listener.snapshot();
+            LatencyHistogram histogram = snapshot.getServletHistograms().get(servlet);
+            if (histogram != null)
+            {
+                // Count and total always come from the same interval.
+                assertThat(histogram.getTotal(), is(histogram.getCount() * 1000));
+                count += histogram.getCount();
+                total += histogram.getTotal();
+            }
+        }
+
+        assertThat(count, is((long)threads * samples));
+        assertThat(total, is((long)threads * samples * 1000));
+        assertThat(listener.snapshot().getServletHistograms().isEmpty(), is(true));
+    }
+}
@@ -0,0 +1,207 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.Servlet;
+
+import org.eclipse.jetty.metrics.servlets.HelloServlet;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.HandlerList;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class StatsDExporterTest
+{
+    private DatagramSocket socket;
+    private StatsDExporter exporter;
+
+    @BeforeEach
+    public void setUp() throws Exception
+    {
+        socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        socket.setSoTimeout(5000);
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        LifeCycle.stop(exporter);
+        socket.close();
+    }
+
+    @Test
+    public void testBatchedExport() throws Exception
+    {
+        SnapshotMetricsListener metricsListener = new SnapshotMetricsListener();
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort());
+        exporter = new StatsDExporter(metricsListener, address, "jetty", Duration.ZERO, 256);
+        exporter.start();
+
+        Servlet servlet = new HelloServlet();
+        for (int i = 1; i <= 100; i++)
+        {
+            metricsListener.onServletExit(null, servlet, null, Duration.ofMillis(i), null);
+        }
+        exporter.export();
+
+        // 5 metrics of about 60 bytes do not fit in 256 bytes.
+        assertThat(exporter.getSent(), is(2L));
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < exporter.getSent(); i++)
+        {
+            DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+            socket.receive(packet);
+            assertThat(packet.getLength(), lessThanOrEqualTo(256));
+            String payload = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+            for (String line : payload.split("\n"))
+            {
+                lines.add(line);
+            }
+        }
+
+        String name = "jetty.servlet.ROOT." + HelloServlet.class.getName().replace('.', '_');
+        assertThat(lines.size(), is(5));
+        assertThat(lines, hasItem(name + ".count:100|c"));
+        assertThat(lines, hasItem(name + ".max:100000|g"));
+
+        // Nothing was recorded since the previous export.
+        exporter.export();
+        assertThat(exporter.getSent(), is(2L));
+    }
+
+    @Test
+    public void testNamesAreStablePerContextAndComponent() throws Exception
+    {
+        SnapshotMetricsListener metricsListener = new SnapshotMetricsListener();
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort());
+        exporter = new StatsDExporter(metricsListener, address, "jetty", Duration.ZERO, 1024);
+        exporter.start();
+
+        Server server = new Server();
+        ServletContextHandler contextA = new ServletContextHandler();
+        contextA.setContextPath("/a");
+        contextA.addServlet(new ServletHolder("hello1", HelloServlet.class), "/hello1");
+        contextA.addServlet(new ServletHolder("hello2", HelloServlet.class), "/hello2");
+        for (String name : new String[]{"foo1", "foo2"})
+        {
+            FilterHolder holder = new FilterHolder(FooFilter.class);
+            holder.setName(name);
+            contextA.addFilter(holder, "/*", EnumSet.of(DispatcherType.REQUEST));
+        }
+        ServletContextHandler contextB = new ServletContextHandler();
+        contextB.setContextPath("/b");
+        contextB.addServlet(new ServletHolder("hello", HelloServlet.class), "/hello");
+        server.setHandler(new HandlerList(contextA, contextB));
+        try
+        {
+            server.start();
+            Servlet hello1 = contextA.getServletHandler().getServlet("hello1").getServlet();
+            Servlet hello2 = contextA.getServletHandler().getServlet("hello2").getServlet();
+            Servlet hello = contextB.getServletHandler().getServlet("hello").getServlet();
+            Filter foo1 = contextA.getServletHandler().getFilter("foo1").getFilter();
+            Filter foo2 = contextA.getServletHandler().getFilter("foo2").getFilter();
+
+            metricsListener.onServletExit(contextA.getServletContext(), hello1, null, Duration.ofMillis(1), null);
+            metricsListener.onServletExit(contextA.getServletContext(), hello2, null, Duration.ofMillis(1), null);
+            metricsListener.onServletExit(contextB.getServletContext(), hello, null, Duration.ofMillis(1), null);
+            metricsListener.onFilterExit(contextA.getServletContext(), foo1, null, Duration.ofMillis(1), null);
+            metricsListener.onFilterExit(contextA.getServletContext(), foo2, null, Duration.ofMillis(1), null);
+            List<String> names = exportNames();
+            assertThat(names.size(), is(5 * 5));
+            assertThat(names, hasItem("jetty.servlet.a.hello1.count"));
+            assertThat(names, hasItem("jetty.servlet.a.hello2.count"));
+            assertThat(names, hasItem("jetty.servlet.b.hello.count"));
+            assertThat(names, hasItem("jetty.filter.a.foo1.count"));
+            assertThat(names, hasItem("jetty.filter.a.foo2.count"));
+
+            // The names do not depend on which components were called in an interval.
+            metricsListener.onServletExit(contextA.getServletContext(), hello2, null, Duration.ofMillis(1), null);
+            metricsListener.onFilterExit(contextA.getServletContext(), foo2, null, Duration.ofMillis(1), null);
+            names = exportNames();
+            assertThat(names.size(), is(2 * 5));
+            assertThat(names, hasItem("jetty.servlet.a.hello2.count"));
+            assertThat(names, hasItem("jetty.filter.a.foo2.count"));
+
+            // The names of a stopped context are discarded with its latencies.
+            contextA.stop();
+            metricsListener.onServletContextStopped(contextA.getServletContext());
+            assertThat(metricsListener.isRecorded(hello1), is(false));
+            assertThat(metricsListener.isRecorded(hello), is(true));
+        }
+        finally
+        {
+            LifeCycle.stop(server);
+        }
+    }
+
+    private List<String> exportNames() throws Exception
+    {
+        long sent = exporter.getSent();
+        exporter.export();
+        List<String> names = new ArrayList<>();
+        for (long i = sent; i < exporter.getSent(); i++)
+        {
+            DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+            socket.receive(packet);
+            String payload = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+            for (String line : payload.split("\n"))
+            {
+                names.add(line.substring(0, line.indexOf(':')));
+            }
+        }
+        return names;
+    }
+
+    @Test
+    public void testOversizedLinesAreCountedApartFromDroppedDatagrams() throws Exception
+    {
+        SnapshotMetricsListener metricsListener = new SnapshotMetricsListener();
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort());
+        exporter = new StatsDExporter(metricsListener, address, "jetty", Duration.ZERO, 32);
+        exporter.start();
+
+        metricsListener.onServletExit(null, new HelloServlet(), null, Duration.ofMillis(1), null);
+        exporter.export();
+
+        assertThat(exporter.getOversized(), is(5L));
+        assertThat(exporter.getDropped(), is(0L));
+        assertThat(exporter.getSent(), is(0L));
+    }
+}
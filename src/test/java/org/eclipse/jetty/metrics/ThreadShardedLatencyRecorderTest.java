@@ -0,0 +1,71 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class ThreadShardedLatencyRecorderTest
+{
+    @Test
+    public void testFoldAndRetireDeadThreads() throws Exception
+    {
+        ThreadShardedLatencyRecorder recorder = new ThreadShardedLatencyRecorder();
+        int threads = 8;
+        int samples = 10_000;
+
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++)
+        {
+            Thread worker = new Thread(() ->
+            {
+                for (int i = 0; i < samples; i++)
+                {
+                    recorder.record(TimeUnit.MICROSECONDS.toNanos(100));
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers)
+        {
+            worker.join();
+        }
+
+        LatencyHistogram histogram = recorder.getHistogram();
+        assertThat(histogram.getCount(), is((long)threads * samples));
+        assertThat(histogram.getTotal(), is(threads * samples * TimeUnit.MICROSECONDS.toNanos(100)));
+        assertThat(histogram.getMax(), is(TimeUnit.MICROSECONDS.toNanos(100)));
+
+        // All the workers died, their shards have been retired.
+        assertThat(recorder.getShardCount(), is(0));
+
+        recorder.record(TimeUnit.MICROSECONDS.toNanos(200));
+        assertThat(recorder.getShardCount(), is(1));
+        histogram = recorder.getHistogram();
+        assertThat(histogram.getCount(), is((long)threads * samples + 1));
+        assertThat(histogram.getMax(), is(TimeUnit.MICROSECONDS.toNanos(200)));
+    }
+}
@@ -25,7 +25,9 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 import org.eclipse.jetty.annotations.AnnotationConfiguration;
 import org.eclipse.jetty.client.HttpClient;
@@ -56,6 +58,8 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.nullValue;
@@ -163,6 +167,58 @@ public class WebAppContextMetricsTest
         assertThat("Metrics Events Count", captureListener.getEvents().size(), is(expectedEvents.size()));
     }
 
+    @Test
+    public void testClassLoadingPhases() throws Exception
+    {
+        Path webappDir = createWebApp(workDir.getEmptyPathDir(), HelloServlet.class);
+
+        enableByteCodeScanning();
+
+        Map<ClassLoadingMetricsListener.Phase, ClassLoadingStats> phases = new EnumMap<>(ClassLoadingMetricsListener.Phase.class);
+        ClassLoadingMetricsListener classLoadingListener = new ClassLoadingCaptureListener(phases);
+        MetricsHandler metricsHandler = new MetricsHandler(classLoadingListener);
+
+        WebAppContext webapp = new WebAppContext();
+        webapp.setContextPath("/");
+        webapp.setWarResource(new PathResource(webappDir));
+
+        metricsHandler.addToAllConnectors(server);
+        metricsHandler.addToContext(webapp);
+        server.setHandler(webapp);
+        server.start();
+
+        assertThat("Class loader", webapp.getClassLoader() instanceof MetricsWebAppClassLoader, is(true));
+        assertThat("Phases", phases.keySet(), contains(ClassLoadingMetricsListener.Phase.STARTUP));
+        assertThat("Startup loadClass", phases.get(ClassLoadingMetricsListener.Phase.STARTUP).getLoadClassCalls(), greaterThan(0L));
+
+        ContentResponse response = client.GET(server.getURI().resolve("/hello"));
+        assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+
+        server.stop();
+        assertThat("Phases", phases.keySet(), contains(ClassLoadingMetricsListener.Phase.STARTUP, ClassLoadingMetricsListener.Phase.WARMUP));
+        long defined = phases.get(ClassLoadingMetricsListener.Phase.STARTUP).getClassesDefined() +
+            phases.get(ClassLoadingMetricsListener.Phase.WARMUP).getClassesDefined();
+        // The HelloServlet of WEB-INF/classes.
+        assertThat("Classes defined", defined, greaterThan(0L));
+        assertThat("Class loader discarded", webapp.getClassLoader(), nullValue());
+    }
+
+    private static class ClassLoadingCaptureListener extends AbstractServletMetricsListener implements ClassLoadingMetricsListener
+    {
+        private final Map<Phase, ClassLoadingStats> phases;
+
+        private ClassLoadingCaptureListener(Map<Phase, ClassLoadingStats> phases)
+        {
+            this.phases = phases;
+        }
+
+        @Override
+        public void onClassLoadingPhaseEnd(WebAppContext context, Phase phase, ClassLoadingStats stats)
+        {
+            phases.put(phase, stats);
+        }
+    }
+
     @Test
     @Disabled
     public void testCrossContextInclude() throws Exception
@@ -0,0 +1,104 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class WindowedHistogramTest
+{
+    @Test
+    public void testBucketIndexRoundTrip()
+    {
+        for (long value = 0; value < LatencyHistogram.MAX_VALUE; value = value * 3 + 1)
+        {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertThat("index of " + value, index, allOf(greaterThanOrEqualTo(0), lessThanOrEqualTo(LatencyHistogram.BUCKETS - 1)));
+            assertThat("lowest of " + value, LatencyHistogram.bucketLowestValue(index), lessThanOrEqualTo(value));
+            assertThat("next of " + value, LatencyHistogram.bucketLowestValue(index + 1), greaterThanOrEqualTo(value + 1));
+        }
+        assertThat(LatencyHistogram.bucketIndex(Long.MAX_VALUE), is(LatencyHistogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void testPercentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++)
+        {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+
+        assertThat(histogram.getCount(), is(1000L));
+        assertRelative(histogram.getValueAtPercentile(50), TimeUnit.MICROSECONDS.toNanos(500));
+        assertRelative(histogram.getValueAtPercentile(99), TimeUnit.MICROSECONDS.toNanos(990));
+        assertThat(histogram.getMax(), is(TimeUnit.MICROSECONDS.toNanos(1000)));
+    }
+
+    @Test
+    public void testWindowRotation()
+    {
+        AtomicLong clock = new AtomicLong(TimeUnit.SECONDS.toNanos(-5));
+        WindowedHistogram windowed = new WindowedHistogram(Duration.ofSeconds(1), 10, clock::get);
+
+        // 10 slow samples in the first second.
+        for (int i = 0; i < 10; i++)
+        {
+            windowed.record(TimeUnit.MILLISECONDS.toNanos(500));
+        }
+
+        // 100 fast samples in each of the next 4 seconds.
+        for (int s = 0; s < 4; s++)
+        {
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+            for (int i = 0; i < 100; i++)
+            {
+                windowed.record(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+
+        assertThat(windowed.getHistogram(Duration.ofSeconds(1)).getCount(), is(100L));
+        assertThat(windowed.getHistogram(Duration.ofSeconds(4)).getCount(), is(400L));
+        LatencyHistogram all = windowed.getHistogram(Duration.ofSeconds(5));
+        assertThat(all.getCount(), is(410L));
+        assertRelative(all.getMax(), TimeUnit.MILLISECONDS.toNanos(500));
+        assertRelative(windowed.getHistogram(Duration.ofSeconds(4)).getValueAtPercentile(99), TimeUnit.MILLISECONDS.toNanos(1));
+
+        // Lap the ring, the old samples must not be visible anymore.
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertThat(windowed.getHistogram(windowed.getMaxWindow()).getCount(), is(0L));
+        windowed.record(TimeUnit.MILLISECONDS.toNanos(2));
+        assertThat(windowed.getHistogram(windowed.getMaxWindow()).getCount(), is(1L));
+    }
+
+    private static void assertRelative(long actual, long expected)
+    {
+        long tolerance = expected / 16;
+        assertThat(actual, allOf(greaterThanOrEqualTo(expected - tolerance), lessThanOrEqualTo(expected + tolerance)));
+    }
+}
@@ -0,0 +1,99 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics.servlets;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Counts the uploaded bytes with a ReadListener, and writes the count with a WriteListener.
+ */
+public class AsyncUploadServlet extends HttpServlet
+{
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException
+    {
+        AsyncContext asyncContext = req.startAsync();
+        ServletInputStream input = req.getInputStream();
+        input.setReadListener(new ReadListener()
+        {
+            private final byte[] buffer = new byte[512];
+            private long count;
+
+            @Override
+            public void onDataAvailable() throws IOException
+            {
+                while (input.isReady())
+                {
+                    int read = input.read(buffer);
+                    if (read < 0)
+                    {
+                        return;
+                    }
+                    count += read;
+                }
+            }
+
+            @Override
+            public void onAllDataRead() throws IOException
+            {
+                resp.setContentType("text/plain");
+                ServletOutputStream output = resp.getOutputStream();
+                output.setWriteListener(new WriteListener()
+                {
+                    private boolean written;
+
+                    @Override
+                    public void onWritePossible() throws IOException
+                    {
+                        if (!written)
+                        {
+                            written = true;
+                            output.write(("Read " + count).getBytes(StandardCharsets.UTF_8));
+                        }
+                        if (output.isReady())
+                        {
+                            asyncContext.complete();
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t)
+                    {
+                        asyncContext.complete();
+                    }
+                });
+            }
+
+            @Override
+            public void onError(Throwable t)
+            {
+                asyncContext.complete();
+            }
+        });
+    }
+}
@@ -0,0 +1,201 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2020 Mort Bay Consulting Pty Ltd and others.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.metrics;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.servlet.DispatcherType;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.metrics.servlets.HelloServlet;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.toolchain.test.FS;
+import org.eclipse.jetty.toolchain.test.MavenTestingUtils;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledForJreRange;
+import org.junit.jupiter.api.condition.JRE;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+@EnabledForJreRange(min = JRE.JAVA_11)
+public class JfrMetricsListenerTest
+{
+    private static final String CALL = "org.eclipse.jetty.metrics.Call";
+    private static final String INIT = "org.eclipse.jetty.metrics.Init";
+
+    private Server server;
+    private HttpClient client;
+    private Recording recording;
+
+    @BeforeEach
+    public void setUp() throws Exception
+    {
+        server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(0);
+        server.addConnector(connector);
+
+        client = new HttpClient();
+        client.start();
+
+        recording = new Recording();
+        recording.enable(CALL).withThreshold(Duration.ZERO);
+        recording.enable(INIT).withThreshold(Duration.ZERO);
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        LifeCycle.stop(client);
+        LifeCycle.stop(server);
+        recording.close();
+    }
+
+    @Test
+    public void testCallAndInitEvents() throws Exception
+    {
+        assertThat("Supported", JfrMetricsListener.isSupported(), is(true));
+        MetricsHandler metricsHandler = new MetricsHandler(new JfrMetricsListener());
+
+        ServletContextHandler contextHandler = new ServletContextHandler();
+        contextHandler.setContextPath("/ctx");
+        contextHandler.addServlet(HelloServlet.class, "/hello");
+        contextHandler.addFilter(FooFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST));
+
+        metricsHandler.addToAllConnectors(server);
+        metricsHandler.addToContext(contextHandler);
+        server.setHandler(contextHandler);
+
+        recording.start();
+        server.start();
+
+        ContentResponse response = client.GET(server.getURI().resolve("/ctx/hello"));
+        assertThat("Response.status", response.getStatus(), is(HttpStatus.OK_200));
+
+        // Stopping the server waits for the filter exit, which may happen after the response is received.
+        server.stop();
+        List<RecordedEvent> events = readEvents();
+
+        List<RecordedEvent> inits = events(events, INIT);
+        assertThat("Init events", inits.size(), is(2));
+        RecordedEvent filterInit = find(inits, FooFilter.class);
+        assertThat("Filter init contextPath", filterInit.getString("contextPath"), is("/ctx"));
+        assertThat("Filter init filter", filterInit.getBoolean("filter"), is(true));
+        RecordedEvent servletInit = find(inits, HelloServlet.class);
+        assertThat("Servlet init contextPath", servletInit.getString("contextPath"), is("/ctx"));
+        assertThat("Servlet init filter", servletInit.getBoolean("filter"), is(false));
+
+        List<RecordedEvent> calls = events(events, CALL);
+        assertThat("Call events", calls.size(), is(2));
+        RecordedEvent filterCall = find(calls, FooFilter.class);
+        RecordedEvent servletCall = find(calls, HelloServlet.class);
+        for (RecordedEvent call : calls)
+        {
+            assertThat("Call contextPath", call.getString("contextPath"), is("/ctx"));
+            assertThat("Call dispatcherType", call.getString("dispatcherType"), is(DispatcherType.REQUEST.name()));
+            assertThat("Call requestId", call.getString("requestId"), notNullValue());
+            assertThat("Call failure", call.getString("failure"), nullValue());
+        }
+        assertThat("Filter call filter", filterCall.getBoolean("filter"), is(true));
+        assertThat("Servlet call filter", servletCall.getBoolean("filter"), is(false));
+        assertThat("Same request", servletCall.getString("requestId"), is(filterCall.getString("requestId")));
+
+        // The servlet call is nested in the filter call.
+        assertThat("Servlet call start", servletCall.getStartTime(), greaterThanOrEqualTo(filterCall.getStartTime()));
+        assertThat("Servlet call end", servletCall.getEndTime(), lessThanOrEqualTo(filterCall.getEndTime()));
+    }
+
+    @Test
+    public void testUnmatchedNotificationsOfAnotherType() throws Exception
+    {
+        JfrMetricsListener listener = new JfrMetricsListener();
+        HelloServlet servlet = new HelloServlet();
+        FooFilter filter = new FooFilter();
+
+        recording.start();
+        // The exit of this call is not notified, eg: because the listener was swapped.
+        listener.onFilterEnter(null, filter, null);
+        // A ready notified without its starting must not pop the pending call.
+        listener.onServletReady(null, servlet, Duration.ZERO);
+        listener.onServletEnter(null, servlet, null);
+        listener.onServletExit(null, servlet, null, Duration.ZERO, null);
+        listener.onServletStarting(null, servlet);
+        listener.onServletReady(null, servlet, Duration.ZERO);
+        listener.onFilterExit(null, filter, null, Duration.ZERO, null);
+
+        List<RecordedEvent> events = readEvents();
+
+        List<RecordedEvent> inits = events(events, INIT);
+        assertThat("Init events", inits.size(), is(1));
+        assertThat("Init component", inits.get(0).getString("component"), is(HelloServlet.class.getName()));
+
+        List<RecordedEvent> calls = events(events, CALL);
+        assertThat("Call events", calls.size(), is(2));
+        RecordedEvent filterCall = find(calls, FooFilter.class);
+        RecordedEvent servletCall = find(calls, HelloServlet.class);
+        assertThat("Filter call filter", filterCall.getBoolean("filter"), is(true));
+        assertThat("Servlet call filter", servletCall.getBoolean("filter"), is(false));
+        assertThat("Servlet call start", servletCall.getStartTime(), greaterThanOrEqualTo(filterCall.getStartTime()));
+        assertThat("Servlet call end", servletCall.getEndTime(), lessThanOrEqualTo(filterCall.getEndTime()));
+    }
+
+    private List<RecordedEvent> readEvents() throws Exception
+    {
+        recording.stop();
+        Path directory = MavenTestingUtils.getTargetTestingPath(JfrMetricsListenerTest.class.getSimpleName());
+        FS.ensureEmpty(directory);
+        Path file = directory.resolve("recording.jfr");
+        recording.dump(file);
+        return RecordingFile.readAllEvents(file);
+    }
+
+    private static List<RecordedEvent> events(List<RecordedEvent> events, String name)
+    {
+        return events.stream()
+            .filter(event -> event.getEventType().getName().equals(name))
+            .collect(Collectors.toList());
+    }
+
+    private static RecordedEvent find(List<RecordedEvent> events, Class<?> component)
+    {
+        List<RecordedEvent> found = events.stream()
+            .filter(event -> component.getName().equals(event.getString("component")))
+            .collect(Collectors.toList());
+        assertThat(component.getSimpleName() + " events", found.size(), is(1));
+        return found.get(0);
+    }
+}